@@ -0,0 +1,76 @@
+package markdown;
+
+import fi.iki.elonen.NanoHTTPD;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import webserver.BenchmarkFiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MarkdownWebServerPlugin.serveFile on a small and a large document, rendering
+ * every time (cache off) or answering from the rendered page cache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MarkdownBenchmark {
+    @Param({"small", "large"})
+    public String document;
+
+    @Param({"0", "16m"})
+    public String cacheSize;
+
+    private File root;
+    private File file;
+    private MarkdownWebServerPlugin plugin;
+    private final Map<String, String> headers = Collections.emptyMap();
+
+    @Setup
+    public void setUp() throws IOException {
+        StringBuilder md = new StringBuilder();
+        int sections = "small".equals(document) ? 1 : 500;
+        for (int i = 0; i < sections; i++) {
+            md.append("## Section ").append(i).append("\n\n")
+                    .append("Some *emphasis*, some **strong** text and a [link](http://example.com/").append(i)
+                    .append(").\n\n* one\n* two\n* three\n\n    code block ").append(i).append("\n\n");
+        }
+        root = BenchmarkFiles.createRoot("markdown-bench");
+        file = BenchmarkFiles.write(root, "doc.md", md.toString().getBytes(StandardCharsets.UTF_8));
+        Map<String, String> options = new HashMap<>();
+        options.put(MarkdownWebServerPlugin.CACHE_SIZE_OPTION, cacheSize);
+        plugin = new MarkdownWebServerPlugin();
+        plugin.initialize(options);
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkFiles.delete(root);
+    }
+
+    @Benchmark
+    public NanoHTTPD.Response serveFile() throws IOException {
+        NanoHTTPD.Response res = plugin.serveFile("/doc.md", headers, null, file, "text/html");
+        res.close();
+        return res;
+    }
+}
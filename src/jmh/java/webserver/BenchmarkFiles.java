@@ -0,0 +1,55 @@
+package webserver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Temporary document roots for the benchmarks.
+ */
+public final class BenchmarkFiles {
+    private BenchmarkFiles() {
+    }
+
+    public static File createRoot(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    public static File write(File dir, String name, byte[] content) throws IOException {
+        File file = new File(dir, name);
+        file.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+        return file;
+    }
+
+    public static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    // 生成一个有 count 个文件的目录
+    public static File directoryWith(File root, String name, int count) throws IOException {
+        File dir = new File(root, name);
+        dir.mkdirs();
+        for (int i = 0; i < count; i++) {
+            new File(dir, "file-" + i + ".txt").createNewFile();
+        }
+        return dir;
+    }
+
+    public static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,85 @@
+package webserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A SimpleWebServer on localhost driven over keep-alive HTTP connections
+ * (HttpURLConnection reuses them when the body is read completely).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dhttp.maxConnections=64")
+@Threads(4)
+@State(Scope.Benchmark)
+public class EndToEndBenchmark {
+    @Param({"/small.txt", "/medium.bin", "/dir/"})
+    public String path;
+
+    @Param({"false", "true"})
+    public boolean caches;
+
+    private File root;
+    private SimpleWebServer server;
+    private URL url;
+
+    @Setup
+    public void setUp() throws IOException {
+        root = BenchmarkFiles.createRoot("e2e-bench");
+        BenchmarkFiles.write(root, "small.txt", "hello world\n".getBytes("UTF-8"));
+        BenchmarkFiles.write(root, "medium.bin", BenchmarkFiles.randomBytes(64 * 1024));
+        BenchmarkFiles.directoryWith(root, "dir", 200);
+        server = new SimpleWebServer("127.0.0.1", 0, Collections.singletonList(root), null);
+        if (caches) {
+            server.setFileCache(new HotFileCache(16 * 1024 * 1024, 128 * 1024));
+            server.setListingCache(new DirectoryListingCache(100000));
+            server.setResolutionCache(new ResolutionCache(Collections.singletonList(root), 1000, 2000, 100));
+        }
+        server.start(5000, true);
+        url = new URL("http://127.0.0.1:" + server.getListeningPort() + path);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+        BenchmarkFiles.delete(root);
+    }
+
+    @Benchmark
+    public long get() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        long total = 0;
+        byte[] buffer = new byte[16 * 1024];
+        try (InputStream in = connection.getInputStream()) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                total += n;
+            }
+        }
+        if (connection.getResponseCode() != 200) {
+            throw new IOException("HTTP " + connection.getResponseCode());
+        }
+        return total;
+    }
+}
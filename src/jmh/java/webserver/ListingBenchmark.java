@@ -0,0 +1,60 @@
+package webserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Directory listings of a small and a huge directory, with and without the listing cache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ListingBenchmark {
+    @Param({"10", "20000"})
+    public int entries;
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    private File root;
+    private File directory;
+    private SimpleWebServer server;
+
+    @Setup
+    public void setUp() throws IOException {
+        root = BenchmarkFiles.createRoot("listing-bench");
+        directory = BenchmarkFiles.directoryWith(root, "dir", entries);
+        server = new SimpleWebServer(null, 0, Collections.singletonList(root), null);
+        if (cached) {
+            server.setListingCache(new DirectoryListingCache(1000000));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkFiles.delete(root);
+    }
+
+    @Benchmark
+    public String listDirectory() {
+        return server.listDirectory("/dir/", directory);
+    }
+}
@@ -0,0 +1,93 @@
+package webserver;
+
+import fi.iki.elonen.NanoHTTPD;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sending a fixed-length response with the headers of a static file, through
+ * {@link PooledResponse} and through NanoHTTPD's own Response. Run with
+ * {@code -prof gc} to see the bytes allocated per response.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResponseSendBenchmark {
+    @Param({"0", "1024", "16384"})
+    public int size;
+
+    private byte[] body;
+    private final DiscardStream out = new DiscardStream();
+
+    // 丢弃写入的数据，只计数
+    private static final class DiscardStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    // send() 是 protected 的，子类里才能调用
+    private static final class NanoResponse extends NanoHTTPD.Response {
+        private NanoResponse(IStatus status, String mimeType, byte[] body) {
+            super(status, mimeType, new ByteArrayInputStream(body), body.length);
+        }
+
+        private void sendTo(OutputStream out) {
+            send(out);
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        body = BenchmarkFiles.randomBytes(size);
+    }
+
+    private void addHeaders(NanoHTTPD.Response res) {
+        res.addHeader("Accept-Ranges", "bytes");
+        res.addHeader("ETag", "5d41402a");
+        res.addHeader("Last-Modified", "Sun, 18 Oct 2026 03:00:00 GMT");
+        res.setRequestMethod(NanoHTTPD.Method.GET);
+    }
+
+    @Benchmark
+    public long pooled() {
+        PooledResponse res = new PooledResponse(NanoHTTPD.Response.Status.OK, "text/html",
+                new ByteArrayInputStream(body), body.length);
+        res.setFixedLength(true);
+        addHeaders(res);
+        res.send(out);
+        return out.count;
+    }
+
+    @Benchmark
+    public long nanohttpd() {
+        NanoResponse res = new NanoResponse(NanoHTTPD.Response.Status.OK, "text/html", body);
+        addHeaders(res);
+        res.sendTo(out);
+        return out.count;
+    }
+}
@@ -0,0 +1,72 @@
+package webserver;
+
+import fi.iki.elonen.NanoHTTPD;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * serveFile up to the point where the response would be sent: conditional and
+ * Range header handling plus opening the body, from disk or from the hot file cache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ServeFileBenchmark {
+    @Param({"", "bytes=0-1023", "bytes=4096-", "bytes=1000000-"})
+    public String range;
+
+    @Param({"false", "true"})
+    public boolean hotCache;
+
+    private File root;
+    private File file;
+    private SimpleWebServer server;
+    private Map<String, String> header;
+
+    @Setup
+    public void setUp() throws IOException {
+        root = BenchmarkFiles.createRoot("serve-bench");
+        file = BenchmarkFiles.write(root, "data.bin", BenchmarkFiles.randomBytes(32 * 1024));
+        server = new SimpleWebServer(null, 0, Collections.singletonList(root), null);
+        server.setZeroCopy(false);
+        if (hotCache) {
+            server.setFileCache(new HotFileCache(1024 * 1024, 64 * 1024));
+        }
+        header = new HashMap<>();
+        if (!range.isEmpty()) {
+            header.put("range", range);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkFiles.delete(root);
+    }
+
+    @Benchmark
+    public NanoHTTPD.Response serveFile() throws IOException {
+        NanoHTTPD.Response res = server.serveFile(header, file, "application/octet-stream");
+        res.close();
+        return res;
+    }
+}
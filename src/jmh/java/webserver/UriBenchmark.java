@@ -0,0 +1,79 @@
+package webserver;
+
+import fi.iki.elonen.NanoHTTPD;
+import markdown.MarkdownWebServerPlugin;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * encodeUri, MIME type lookup and the resolution of a URI to a file and plugin.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UriBenchmark {
+    @Param({"/docs/readme.md", "/static/some dir/app.min.js", "/a/b/c/d/e/f/g/index.html"})
+    public String uri;
+
+    private File root;
+    private SimpleWebServer server;
+    private SimpleWebServer cachedServer;
+
+    @Setup
+    public void setUp() throws IOException {
+        root = BenchmarkFiles.createRoot("uri-bench");
+        BenchmarkFiles.write(root, uri.substring(1), "# hello\n".getBytes(StandardCharsets.UTF_8));
+        SimpleWebServer.registerPluginForMimeType(new String[]{"index.md"}, "text/markdown",
+                new MarkdownWebServerPlugin(), new HashMap<String, String>());
+        server = new SimpleWebServer(null, 0, Collections.singletonList(root), null);
+        cachedServer = new SimpleWebServer(null, 0, Collections.singletonList(root), null);
+        cachedServer.setResolutionCache(new ResolutionCache(Collections.singletonList(root), 1000, 2000, 100));
+    }
+
+    @TearDown
+    public void tearDown() {
+        cachedServer.getResolutionCache().close();
+        BenchmarkFiles.delete(root);
+    }
+
+    @Benchmark
+    public String encodeUri() {
+        return SimpleWebServer.encodeUri(uri);
+    }
+
+    @Benchmark
+    public String mimeType() {
+        return NanoHTTPD.getMimeTypeForFile(uri);
+    }
+
+    // 文件系统检查 + MIME 类型 + 插件查找
+    @Benchmark
+    public Resolution resolve() {
+        return server.resolve(uri);
+    }
+
+    @Benchmark
+    public Resolution resolveCached() {
+        return cachedServer.resolve(uri);
+    }
+}
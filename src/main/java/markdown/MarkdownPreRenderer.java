@@ -0,0 +1,217 @@
+package markdown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Renders every markdown file under the roots to HTML ahead of time, in
+ * parallel on all cores:
+ * <pre>
+ *   java markdown.MarkdownPreRenderer -d docs [-d more] --out=/var/cache/md [--threads=N]
+ * </pre>
+ * Files whose source is unchanged since the last run (per the manifest)
+ * are skipped, pages of deleted sources are removed. Start the server with
+ * -X:markdown.prerendered=DIR to serve the output as static files.
+ */
+public class MarkdownPreRenderer {
+    private final List<File> rootDirs;
+    private final File outDir;
+    private final ProcessorPool processors;
+    private final int threads;
+
+    private int rendered;
+    private int skipped;
+    private int removed;
+    private int failed;
+
+    public MarkdownPreRenderer(List<File> rootDirs, File outDir, int threads, long renderTimeout) {
+        this.rootDirs = rootDirs;
+        this.outDir = outDir.getAbsoluteFile();
+        this.threads = threads;
+        this.processors = new ProcessorPool(threads, renderTimeout);
+    }
+
+    public void run() throws IOException, InterruptedException {
+        if (!this.outDir.isDirectory() && !this.outDir.mkdirs()) {
+            throw new IOException("could not create " + this.outDir);
+        }
+        Map<String, PreRenderedPages.Entry> previous = PreRenderedPages.readManifest(this.outDir);
+        Map<String, File> sources = findSources();
+
+        Map<String, PreRenderedPages.Entry> current = new LinkedHashMap<>();
+        List<Future<PreRenderedPages.Entry>> results = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(this.threads);
+        try {
+            for (Map.Entry<String, File> source : sources.entrySet()) {
+                final File file = source.getValue();
+                final String html = source.getKey().substring(1) + ".html";
+                final String key = PreRenderedPages.key(file);
+                PreRenderedPages.Entry old = previous.get(key);
+                if (old != null && old.getHtml().equals(html)
+                        && old.isCurrent(this.outDir, file.lastModified(), file.length())) {
+                    current.put(key, old);
+                    this.skipped++;
+                    continue;
+                }
+                results.add(executor.submit(new Callable<PreRenderedPages.Entry>() {
+                    @Override
+                    public PreRenderedPages.Entry call() throws Exception {
+                        return render(file, key, html);
+                    }
+                }));
+            }
+            for (Future<PreRenderedPages.Entry> result : results) {
+                PreRenderedPages.Entry entry = result.get();
+                if (entry != null) {
+                    current.put(entry.getSource(), entry);
+                    this.rendered++;
+                } else {
+                    this.failed++;
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // 源文件已删除（或渲染失败）的页面不再保留
+        for (PreRenderedPages.Entry old : previous.values()) {
+            PreRenderedPages.Entry entry = current.get(old.getSource());
+            if (entry == null || !entry.getHtml().equals(old.getHtml())) {
+                if (new File(this.outDir, old.getHtml()).delete()) {
+                    this.removed++;
+                }
+            }
+        }
+        PreRenderedPages.writeManifest(this.outDir, current.values());
+    }
+
+    // uri -> 源文件，多个根目录中有相同 uri 时和服务器一样，前面的优先
+    private Map<String, File> findSources() throws IOException {
+        final Map<String, File> sources = new LinkedHashMap<>();
+        // 和服务器注册插件时一样，由 index 文件名得到扩展名
+        final Set<String> extensions = new HashSet<>();
+        MarkdownWebServerPluginInfo info = new MarkdownWebServerPluginInfo();
+        for (String mime : info.getMimeTypes()) {
+            for (String indexFile : info.getIndexFilesForMimeType(mime)) {
+                extensions.add(indexFile.substring(indexFile.indexOf('.') + 1).toLowerCase());
+            }
+        }
+        for (File root : this.rootDirs) {
+            final Path rootPath = root.getAbsoluteFile().toPath().normalize();
+            if (!Files.isDirectory(rootPath)) {
+                System.err.println("skipping " + root + ", not a directory");
+                continue;
+            }
+            Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    String name = file.getFileName().toString();
+                    int dot = name.lastIndexOf('.');
+                    if (attrs.isRegularFile() && dot >= 0 && extensions.contains(name.substring(dot + 1).toLowerCase())) {
+                        StringBuilder uri = new StringBuilder();
+                        for (Path part : rootPath.relativize(file)) {
+                            uri.append('/').append(part.toString());
+                        }
+                        if (!sources.containsKey(uri.toString())) {
+                            sources.put(uri.toString(), file.toFile());
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    System.err.println("skipping " + file + ": " + exc);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        return sources;
+    }
+
+    /**
+     * @return the manifest entry, null if the file could not be read or rendered (it is then rendered live)
+     */
+    private PreRenderedPages.Entry render(File file, String key, String html) throws IOException, InterruptedException {
+        // 先取修改时间：渲染期间源文件被修改时，记录的是旧版本，服务器会改为实时渲染
+        long lastModified = file.lastModified();
+        long length = file.length();
+        String source = MarkdownWebServerPlugin.readSource(file);
+        String rendered = source != null ? this.processors.markdownToHtml(source) : null;
+        if (rendered == null) {
+            System.err.println("could not render " + file);
+            return null;
+        }
+        byte[] bytes = rendered.getBytes(StandardCharsets.UTF_8);
+        File out = new File(this.outDir, html);
+        File parent = out.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("could not create " + parent);
+        }
+        // 写到临时文件再改名，正在运行的服务器不会读到写了一半的页面
+        File tmp = new File(parent, "." + out.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try (OutputStream os = new FileOutputStream(tmp)) {
+            os.write(bytes);
+        }
+        Files.move(tmp.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return new PreRenderedPages.Entry(key, lastModified, length, html, bytes.length);
+    }
+
+    @Override
+    public String toString() {
+        return "MarkdownPreRenderer{rendered=" + rendered + ", skipped=" + skipped + ", removed=" + removed
+                + ", failed=" + failed + ", threads=" + threads + ", " + processors + "}";
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<File> rootDirs = new ArrayList<>();
+        String out = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long renderTimeout = 10000;
+        for (int i = 0; i < args.length; i++) {
+            if (("-d".equals(args[i]) || "--dir".equals(args[i])) && i + 1 < args.length) {
+                rootDirs.add(new File(args[++i]));
+            } else if (args[i].startsWith("--out=")) {
+                out = args[i].substring("--out=".length());
+            } else if (args[i].startsWith("--threads=")) {
+                threads = Math.max(1, Integer.parseInt(args[i].substring("--threads=".length())));
+            } else if (args[i].startsWith(MarkdownWebServerPlugin.RENDER_TIMEOUT_OPTION + "=")) {
+                renderTimeout = Long.parseLong(args[i].substring(args[i].indexOf('=') + 1).trim());
+            }
+        }
+        if (out == null) {
+            System.err.println("usage: MarkdownPreRenderer -d ROOT [-d ROOT ...] --out=DIR [--threads=N]"
+                    + " [" + MarkdownWebServerPlugin.RENDER_TIMEOUT_OPTION + "=MILLIS]");
+            System.exit(2);
+        }
+        if (rootDirs.isEmpty()) {
+            rootDirs.add(new File("."));
+        }
+        long start = System.nanoTime();
+        MarkdownPreRenderer renderer = new MarkdownPreRenderer(rootDirs, new File(out), threads, renderTimeout);
+        renderer.run();
+        System.out.println(renderer + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+}
@@ -1,21 +1,36 @@
 package markdown;
 
 import fi.iki.elonen.NanoHTTPD;
+import webserver.BodyWriter;
+import webserver.CompressionCache;
+import webserver.HttpDates;
+import webserver.SimpleWebServer;
+import webserver.StaticFile;
+import webserver.StreamingResponse;
 import webserver.WebServerPlugin;
-import org.pegdown.PegDownProcessor;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class MarkdownWebServerPlugin implements WebServerPlugin {
-    private final PegDownProcessor processor;
+    private ProcessorPool processors;
     private static final Logger LOG = Logger.getLogger(MarkdownWebServerPlugin.class.getName());
+    // -X:markdown.cache-size=16m  -X:markdown.cache-ttl=600 (秒，0 表示不过期)
+    public static final String CACHE_SIZE_OPTION = "-X:markdown.cache-size";
+    public static final String CACHE_TTL_OPTION = "-X:markdown.cache-ttl";
+    // -X:markdown.processors=8  -X:markdown.render-timeout=2000 (毫秒)
+    public static final String PROCESSORS_OPTION = "-X:markdown.processors";
+    public static final String RENDER_TIMEOUT_OPTION = "-X:markdown.render-timeout";
+    private static final long DEFAULT_RENDER_TIMEOUT = 2000;
+    private static final long DEFAULT_CACHE_SIZE = 16 * 1024 * 1024;
+    // -X:markdown.prerendered=DIR，MarkdownPreRenderer 的输出目录
+    public static final String PRERENDERED_OPTION = "-X:markdown.prerendered";
 
-    public MarkdownWebServerPlugin() {
-        this.processor = new PegDownProcessor();
-    }
+    private RenderedPageCache cache;
+    private PreRenderedPages prerendered;
 
     @Override
     public boolean canServeUri(String uri, File rootDir) {
@@ -25,23 +40,186 @@ public class MarkdownWebServerPlugin implements WebServerPlugin {
 
     @Override
     public void initialize(Map<String, String> commandLineOptions) {
+        long cacheSize = DEFAULT_CACHE_SIZE;
+        long ttl = 0;
+        if (commandLineOptions.get(CACHE_SIZE_OPTION) != null) {
+            cacheSize = SimpleWebServer.parseSize(commandLineOptions.get(CACHE_SIZE_OPTION));
+        }
+        if (commandLineOptions.get(CACHE_TTL_OPTION) != null) {
+            ttl = Long.parseLong(commandLineOptions.get(CACHE_TTL_OPTION).trim()) * 1000;
+        }
+        this.cache = cacheSize > 0 ? new RenderedPageCache(cacheSize, ttl) : null;
+
+        int poolSize = Runtime.getRuntime().availableProcessors();
+        long renderTimeout = DEFAULT_RENDER_TIMEOUT;
+        if (commandLineOptions.get(PROCESSORS_OPTION) != null) {
+            poolSize = Integer.parseInt(commandLineOptions.get(PROCESSORS_OPTION).trim());
+        }
+        if (commandLineOptions.get(RENDER_TIMEOUT_OPTION) != null) {
+            renderTimeout = Long.parseLong(commandLineOptions.get(RENDER_TIMEOUT_OPTION).trim());
+        }
+        this.processors = new ProcessorPool(Math.max(1, poolSize), renderTimeout);
+        if (commandLineOptions.get(PRERENDERED_OPTION) != null) {
+            this.prerendered = new PreRenderedPages(new File(commandLineOptions.get(PRERENDERED_OPTION).trim()));
+        }
     }
 
     @Override
-    public NanoHTTPD.Response serveFile(String uri, Map<String, String> headers, NanoHTTPD.IHTTPSession session, File file, String mimeType) {
-        String markdownSource = readSource(file);
-        byte[] bytes;
-        try {
-            bytes = this.processor.markdownToHtml(markdownSource).getBytes("utf-8");
-        } catch (UnsupportedEncodingException e) {
-            MarkdownWebServerPlugin.LOG.log(Level.SEVERE, "encoding problem, responding nothing", e);
-            bytes = new byte[0];
+    public NanoHTTPD.Response serveFile(String uri, Map<String, String> headers, NanoHTTPD.IHTTPSession session, final File file, String mimeType) {
+        long lastModified = file.lastModified();
+        long length = file.length();
+        // 批量渲染的结果仍是最新的：交给服务器按静态文件发送（ETag、Range、压缩）
+        File html = this.prerendered != null ? this.prerendered.get(file, lastModified, length) : null;
+        if (html != null) {
+            return new StaticFile(html, NanoHTTPD.MIME_HTML);
+        }
+        String path = file.getAbsolutePath();
+        String etag = Integer.toHexString((path + lastModified + "" + length).hashCode());
+
+        // 客户端已有当前版本（或它的压缩版本），不需要渲染
+        String ifNoneMatch = headers.get("if-none-match");
+        if (ifNoneMatch != null ? CompressionCache.matchesAnyVariant(ifNoneMatch, etag)
+                : HttpDates.notModifiedSince(lastModified, headers.get("if-modified-since"))) {
+            NanoHTTPD.Response res = NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.NOT_MODIFIED,
+                    NanoHTTPD.MIME_HTML, "");
+            res.addHeader("ETag", etag);
+            res.addHeader("Last-Modified", HttpDates.format(lastModified));
+            return res;
+        }
+
+        RenderedPageCache.Page page = this.cache != null ? this.cache.get(path, lastModified, length) : null;
+        NanoHTTPD.Response res;
+        if (page != null) {
+            res = htmlResponse(page.getHtml());
+        } else {
+            final String markdownSource = readSource(file);
+            if (markdownSource == null) {
+                return null;
+            }
+            if (this.cache == null) {
+                // 不缓存时发送时才渲染，HTML 直接编码写入连接，HEAD 请求不渲染
+                res = StreamingResponse.chunked(NanoHTTPD.Response.Status.OK, NanoHTTPD.MIME_HTML, new BodyWriter() {
+                    @Override
+                    public void writeTo(OutputStream out) throws IOException {
+                        try {
+                            String rendered = render(file, markdownSource);
+                            writeHtml(rendered != null ? rendered : textFallback(markdownSource), out);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("interrupted while rendering " + file);
+                        }
+                    }
+                });
+            } else {
+                final String rendered;
+                try {
+                    rendered = render(file, markdownSource);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+                if (rendered == null) {
+                    // 纯文本只是这一次的替代品：不缓存，也不给 ETag，下次请求重新渲染
+                    return htmlResponse(textFallback(markdownSource).getBytes(StandardCharsets.UTF_8));
+                }
+                if (this.cache.fits(utf8Length(rendered))) {
+                    byte[] bytes = rendered.getBytes(StandardCharsets.UTF_8);
+                    this.cache.put(path, new RenderedPageCache.Page(bytes, lastModified, length));
+                    res = htmlResponse(bytes);
+                } else {
+                    // 太大，不会被缓存，不必再复制成 byte[]
+                    res = StreamingResponse.chunked(NanoHTTPD.Response.Status.OK, NanoHTTPD.MIME_HTML,
+                            new BodyWriter() {
+                                @Override
+                                public void writeTo(OutputStream out) throws IOException {
+                                    writeHtml(rendered, out);
+                                }
+                            });
+                }
+            }
+        }
+        res.addHeader("ETag", etag);
+        res.addHeader("Last-Modified", HttpDates.format(lastModified));
+        return res;
+    }
+
+    private static NanoHTTPD.Response htmlResponse(byte[] bytes) {
+        return NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.OK, NanoHTTPD.MIME_HTML,
+                new ByteArrayInputStream(bytes), bytes.length);
+    }
+
+    // 渲染超时或失败时返回 null，由调用方按纯文本显示
+    private String render(File file, String markdownSource) throws InterruptedException {
+        String rendered = this.processors.markdownToHtml(markdownSource);
+        if (rendered == null) {
+            MarkdownWebServerPlugin.LOG.log(Level.WARNING, "rendering " + file
+                    + " timed out or failed, serving it as text; " + this.processors);
         }
-        return markdownSource == null ? null : NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.OK,
-                NanoHTTPD.MIME_HTML, new ByteArrayInputStream(bytes), bytes.length);
+        return rendered;
+    }
+
+    // 编码后的字节数，不必先编码一遍
+    static long utf8Length(String s) {
+        long bytes = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    private static String textFallback(String markdownSource) {
+        return "<pre>" + escapeHtml(markdownSource) + "</pre>";
+    }
+
+    private static void writeHtml(String html, OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        writer.write(html);
+        writer.flush();
+    }
+
+    private static String escapeHtml(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 16);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '"':
+                    sb.append("&quot;");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    // 服务器退出时打印
+    @Override
+    public String toString() {
+        return "MarkdownWebServerPlugin{" + this.processors + (this.cache != null ? ", " + this.cache : "")
+                + "}";
     }
 
-    private String readSource(File file) {
+    static String readSource(File file) {
         try {
             BufferedReader reader = new BufferedReader(new FileReader(file));
             StringBuilder sb = new StringBuilder();
@@ -0,0 +1,178 @@
+package markdown;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The output of {@link MarkdownPreRenderer}: HTML files in a directory and a
+ * manifest recording which source (path, lastModified, length) each was
+ * rendered from. A page is only used while its source is unchanged; the
+ * manifest is re-read when a new batch run replaces it.
+ */
+public class PreRenderedPages {
+    private static final Logger LOG = Logger.getLogger(PreRenderedPages.class.getName());
+    public static final String MANIFEST = "manifest.txt";
+    private static final String HEADER = "# markdown pre-render manifest: lastModified length htmlLength html source";
+    // 最多每秒检查一次 manifest 是否被新的批量渲染替换
+    private static final long RELOAD_CHECK_MILLIS = 1000;
+
+    private final File dir;
+    private final File manifest;
+    private volatile Map<String, Entry> entries = new HashMap<>();
+    private volatile long manifestModified = -1;
+    private volatile long checkedAt;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public static final class Entry {
+        private final String source;
+        private final long lastModified;
+        private final long length;
+        private final String html;      // 相对于输出目录
+        private final long htmlLength;
+
+        public Entry(String source, long lastModified, long length, String html, long htmlLength) {
+            this.source = source;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.html = html;
+            this.htmlLength = htmlLength;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        public String getHtml() {
+            return html;
+        }
+
+        /**
+         * @return true if the source is unchanged and the html file is still the one written
+         */
+        public boolean isCurrent(File dir, long sourceLastModified, long sourceLength) {
+            return this.lastModified == sourceLastModified && this.length == sourceLength
+                    && new File(dir, this.html).length() == this.htmlLength;
+        }
+    }
+
+    public PreRenderedPages(File dir) {
+        this.dir = dir.getAbsoluteFile();
+        this.manifest = new File(this.dir, MANIFEST);
+        reloadIfChanged();
+    }
+
+    /**
+     * @return the pre-rendered html of the source, null if there is none or the source changed since
+     */
+    public File get(File source, long lastModified, long length) {
+        long now = System.currentTimeMillis();
+        if (now - this.checkedAt >= RELOAD_CHECK_MILLIS) {
+            this.checkedAt = now;
+            reloadIfChanged();
+        }
+        Entry entry = this.entries.get(key(source));
+        if (entry == null || !entry.isCurrent(this.dir, lastModified, length)) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+        this.hits.incrementAndGet();
+        return new File(this.dir, entry.html);
+    }
+
+    private synchronized void reloadIfChanged() {
+        long modified = this.manifest.lastModified();
+        if (modified == this.manifestModified) {
+            return;
+        }
+        try {
+            this.entries = readManifest(this.dir);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "could not read " + this.manifest + ", rendering live", e);
+            this.entries = new HashMap<>();
+        }
+        this.manifestModified = modified;
+    }
+
+    static String key(File source) {
+        return source.getAbsoluteFile().toPath().normalize().toString();
+    }
+
+    /**
+     * @return the entries by source path, empty if there is no manifest yet
+     */
+    public static Map<String, Entry> readManifest(File dir) throws IOException {
+        Map<String, Entry> entries = new HashMap<>();
+        File file = new File(dir, MANIFEST);
+        if (!file.isFile()) {
+            return entries;
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t", 5);
+                if (fields.length != 5) {
+                    throw new IOException("bad manifest line: " + line);
+                }
+                try {
+                    Entry entry = new Entry(fields[4], Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                            fields[3], Long.parseLong(fields[2]));
+                    entries.put(entry.source, entry);
+                } catch (NumberFormatException e) {
+                    throw new IOException("bad manifest line: " + line, e);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Replaces the manifest atomically, so a running server never reads a partial one.
+     */
+    public static void writeManifest(File dir, Collection<Entry> entries) throws IOException {
+        File tmp = new File(dir, MANIFEST + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            writer.write(HEADER + "\n");
+            for (Entry entry : entries) {
+                writer.write(entry.lastModified + "\t" + entry.length + "\t" + entry.htmlLength + "\t"
+                        + entry.html + "\t" + entry.source + "\n");
+            }
+        }
+        Files.move(tmp.toPath(), new File(dir, MANIFEST).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "PreRenderedPages{dir=" + this.dir + ", pages=" + this.entries.size() + ", hits=" + getHits()
+                + ", misses=" + getMisses() + "}";
+    }
+}
@@ -0,0 +1,114 @@
+package markdown;
+
+import org.pegdown.Extensions;
+import org.pegdown.PegDownProcessor;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PegDownProcessor is not safe for concurrent use, so each render borrows
+ * its own instance. Every processor is created with a parsing time limit.
+ */
+public class ProcessorPool {
+    private final BlockingQueue<PegDownProcessor> processors;
+    private final int size;
+
+    private final AtomicLong renders = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong renderNanos = new AtomicLong();
+    private final AtomicLong maxRenderNanos = new AtomicLong();
+
+    public ProcessorPool(int size, long maxParsingTimeMillis) {
+        this.size = size;
+        this.processors = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) {
+            this.processors.add(new PegDownProcessor(Extensions.NONE, maxParsingTimeMillis));
+        }
+    }
+
+    /**
+     * @return the html, or null if parsing took longer than the time limit or failed
+     */
+    public String markdownToHtml(String markdownSource) throws InterruptedException {
+        long start = System.nanoTime();
+        PegDownProcessor processor = this.processors.take();
+        long acquired = System.nanoTime();
+        record(this.waitNanos, this.maxWaitNanos, acquired - start);
+        String html;
+        try {
+            html = processor.markdownToHtml(markdownSource);
+            if (html == null) {
+                // pegdown returns null when parsing took longer than the limit
+                this.timeouts.incrementAndGet();
+            }
+        } catch (RuntimeException | StackOverflowError e) {
+            // deeply nested input overflows the parser's recursion
+            this.failures.incrementAndGet();
+            html = null;
+        } finally {
+            this.processors.add(processor);
+        }
+        record(this.renderNanos, this.maxRenderNanos, System.nanoTime() - acquired);
+        this.renders.incrementAndGet();
+        return html;
+    }
+
+    private static void record(AtomicLong total, AtomicLong max, long nanos) {
+        total.addAndGet(nanos);
+        long current;
+        while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+            // retry
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getIdle() {
+        return this.processors.size();
+    }
+
+    public long getRenders() {
+        return this.renders.get();
+    }
+
+    public long getTimeouts() {
+        return this.timeouts.get();
+    }
+
+    public long getFailures() {
+        return this.failures.get();
+    }
+
+    public long getTotalWaitNanos() {
+        return this.waitNanos.get();
+    }
+
+    public long getMaxWaitNanos() {
+        return this.maxWaitNanos.get();
+    }
+
+    public long getTotalRenderNanos() {
+        return this.renderNanos.get();
+    }
+
+    public long getMaxRenderNanos() {
+        return this.maxRenderNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        long n = Math.max(1, getRenders());
+        return "ProcessorPool{size=" + size + ", idle=" + getIdle() + ", renders=" + getRenders()
+                + ", timeouts=" + getTimeouts() + ", failures=" + getFailures()
+                + ", avgWaitUs=" + getTotalWaitNanos() / n / 1000 + ", maxWaitUs=" + getMaxWaitNanos() / 1000
+                + ", avgRenderUs=" + getTotalRenderNanos() / n / 1000 + ", maxRenderUs=" + getMaxRenderNanos() / 1000
+                + "}";
+    }
+}
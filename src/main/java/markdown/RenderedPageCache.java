@@ -0,0 +1,90 @@
+package markdown;
+
+import webserver.SizedLruMap;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rendered HTML of markdown files, keyed by path and checked against the
+ * source's lastModified and length. Bounded by total bytes (LRU) and an
+ * optional time-to-live.
+ */
+public class RenderedPageCache {
+    private final long ttlMillis;
+    private final SizedLruMap<Page> pages;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public static final class Page {
+        private final byte[] html;
+        private final long lastModified;
+        private final long sourceLength;
+        private final long createdAt;
+
+        public Page(byte[] html, long lastModified, long sourceLength) {
+            this.html = html;
+            this.lastModified = lastModified;
+            this.sourceLength = sourceLength;
+            this.createdAt = System.currentTimeMillis();
+        }
+
+        public byte[] getHtml() {
+            return html;
+        }
+    }
+
+    /**
+     * @param ttlMillis 0 means entries only expire when the source changes
+     */
+    public RenderedPageCache(long maxBytes, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.pages = new SizedLruMap<Page>(maxBytes) {
+            @Override
+            protected long sizeOf(Page page) {
+                return page.html.length;
+            }
+        };
+    }
+
+    /**
+     * @return false if a page of this many bytes would not be kept
+     */
+    public boolean fits(long bytes) {
+        return bytes <= this.pages.getMaxSize();
+    }
+
+    public synchronized Page get(String path, long lastModified, long sourceLength) {
+        Page page = this.pages.get(path);
+        if (page != null && page.lastModified == lastModified && page.sourceLength == sourceLength
+                && (this.ttlMillis <= 0 || System.currentTimeMillis() - page.createdAt < this.ttlMillis)) {
+            this.hits.incrementAndGet();
+            return page;
+        }
+        this.misses.incrementAndGet();
+        return null;
+    }
+
+    public synchronized void put(String path, Page page) {
+        this.pages.put(path, page);
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    public synchronized long getEvictions() {
+        return this.pages.getEvictions();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RenderedPageCache{hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions()
+                + ", entries=" + this.pages.size() + ", bytes=" + this.pages.getCurrentSize() + "/"
+                + this.pages.getMaxSize() + "}";
+    }
+}
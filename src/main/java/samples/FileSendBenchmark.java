@@ -0,0 +1,102 @@
+package samples;
+
+import webserver.SimpleWebServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+
+/**
+ * Compares the stream send path of SimpleWebServer with the zero-copy one by
+ * downloading a large file over localhost.
+ * Usage: FileSendBenchmark [size in MB] [rounds]
+ */
+public class FileSendBenchmark {
+    private static long download(String url, Range range) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        if (range != null) {
+            connection.setRequestProperty("Range", "bytes=" + range.start + "-" + range.end);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        try (InputStream in = connection.getInputStream()) {
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                total += count;
+            }
+        }
+        return total;
+    }
+
+    private static class Range {
+        private final long start;
+        private final long end;
+
+        private Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static long processCpuNanos() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    private static void run(File dir, File file, boolean zeroCopy, int rounds, Range range) throws IOException {
+        SimpleWebServer server = new SimpleWebServer("127.0.0.1", 0, Collections.singletonList(dir), null);
+        server.setZeroCopy(zeroCopy);
+        server.start();
+        try {
+            String url = "http://127.0.0.1:" + server.getListeningPort() + "/" + file.getName();
+            download(url, range);   // warm up
+
+            long bytes = 0;
+            long cpu = processCpuNanos();
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                bytes += download(url, range);
+            }
+            long elapsed = System.nanoTime() - start;
+            cpu = processCpuNanos() - cpu;
+
+            double mb = bytes / (1024.0 * 1024.0);
+            System.out.printf("%-10s %-8s %10.1f MB/s %10.1f ms cpu/GB%n",
+                    zeroCopy ? "zero-copy" : "stream", range == null ? "full" : "range",
+                    mb / (elapsed / 1e9), cpu / 1e6 / (mb / 1024.0));
+        } finally {
+            server.stop();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        File dir = new File(System.getProperty("java.io.tmpdir"), "file-send-benchmark");
+        dir.mkdirs();
+        File file = new File(dir, "payload.bin");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength((long) sizeMb * 1024 * 1024);
+        }
+        try {
+            Range range = new Range(file.length() / 4, file.length() / 4 * 3);
+            for (boolean zeroCopy : new boolean[]{false, true}) {
+                run(dir, file, zeroCopy, rounds, null);
+                run(dir, file, zeroCopy, rounds, range);
+            }
+        } finally {
+            file.delete();
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,455 @@
+package samples;
+
+import fi.iki.elonen.NanoHTTPD;
+import webserver.DirectoryListingCache;
+import webserver.HotFileCache;
+import webserver.LatencyHistogram;
+import webserver.ResolutionCache;
+import webserver.SimpleWebServer;
+import webserver.WorkerPoolAsyncRunner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a web server started in the same process with N keep-alive
+ * connections and reports throughput, errors and latency percentiles.
+ * <p>
+ * Closed loop (default): every connection sends its next request as soon as
+ * the previous response is read. Open loop (--rate=R): requests are scheduled
+ * at a fixed total rate and latency is measured from the scheduled send time,
+ * so a stalled server is charged for the requests it held back (no coordinated
+ * omission). In closed loop, --expected-interval=MS corrects the histogram the
+ * same way after the fact.
+ * <p>
+ * The URL list (--urls=FILE) has one request per line, a path optionally
+ * followed by "|Header: value" parts, e.g. {@code /big.bin|Range: bytes=0-1023}
+ * or {@code /a.txt|If-None-Match: "1f2e"}. Lines starting with '#' are ignored.
+ * <p>
+ * Usage: LoadGenerator [--server=simple|hello|debug|none] [-d DIR] [--host=H] [--port=P]
+ * [--connections=N] [--duration=S] [--warmup=S] [--rate=R] [--expected-interval=MS] [--urls=FILE]
+ * [--workers=N] [--queue=N] [--cache=SIZE] [--listing-cache=N] [--resolve-cache=N]
+ */
+public class LoadGenerator {
+    private static final class Request {
+        private final byte[] bytes;
+
+        private Request(String line, String host) {
+            String[] parts = line.split("\\|");
+            StringBuilder sb = new StringBuilder();
+            sb.append("GET ").append(parts[0].trim()).append(" HTTP/1.1\r\nHost: ").append(host).append("\r\n");
+            for (int i = 1; i < parts.length; i++) {
+                sb.append(parts[i].trim()).append("\r\n");
+            }
+            sb.append("\r\n");
+            this.bytes = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private static final class Results {
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong ioErrors = new AtomicLong();
+        private final AtomicLong reconnects = new AtomicLong();
+        private final Map<Integer, AtomicLong> statuses = Collections.synchronizedMap(new TreeMap<Integer, AtomicLong>());
+        private volatile boolean recording;
+
+        private void status(int status) {
+            AtomicLong count = statuses.get(status);
+            if (count == null) {
+                synchronized (statuses) {
+                    count = statuses.get(status);
+                    if (count == null) {
+                        count = new AtomicLong();
+                        statuses.put(status, count);
+                    }
+                }
+            }
+            count.incrementAndGet();
+        }
+
+        // 按预期间隔补记被“协调遗漏”的请求
+        private void record(long micros, long expectedIntervalMicros) {
+            histogram.record(micros);
+            if (expectedIntervalMicros > 0) {
+                for (long missing = micros - expectedIntervalMicros; missing >= expectedIntervalMicros;
+                     missing -= expectedIntervalMicros) {
+                    histogram.record(missing);
+                }
+            }
+        }
+    }
+
+    /**
+     * One keep-alive connection with a minimal HTTP/1.1 response parser.
+     */
+    private static final class Connection {
+        private final String host;
+        private final int port;
+        private Socket socket;
+        private OutputStream out;
+        private InputStream in;
+        private final byte[] buffer = new byte[64 * 1024];
+
+        private Connection(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        private void connect() throws IOException {
+            close();
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), 5000);
+            socket.setSoTimeout(30000);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+        }
+
+        private boolean isOpen() {
+            return socket != null && !socket.isClosed();
+        }
+
+        private void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                socket = null;
+            }
+        }
+
+        /**
+         * Sends the request and reads the whole response.
+         *
+         * @return the status code
+         */
+        private int exchange(Request request, Results results) throws IOException {
+            out.write(request.bytes);
+            out.flush();
+            String statusLine = readLine();
+            if (statusLine == null) {
+                throw new IOException("connection closed");
+            }
+            int status = Integer.parseInt(statusLine.split(" ")[1]);
+            long contentLength = -1;
+            boolean chunked = false;
+            boolean close = false;
+            String line;
+            while ((line = readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim().toLowerCase();
+                String value = line.substring(colon + 1).trim();
+                if ("content-length".equals(name)) {
+                    contentLength = Long.parseLong(value);
+                } else if ("transfer-encoding".equals(name) && value.toLowerCase().contains("chunked")) {
+                    chunked = true;
+                } else if ("connection".equals(name) && "close".equalsIgnoreCase(value)) {
+                    close = true;
+                }
+            }
+            long body;
+            if (status == 304 || status == 204 || (status >= 100 && status < 200)) {
+                body = 0;
+            } else if (chunked) {
+                body = 0;
+                while (true) {
+                    String size = readLine();
+                    int semicolon = size.indexOf(';');
+                    long chunk = Long.parseLong((semicolon >= 0 ? size.substring(0, semicolon) : size).trim(), 16);
+                    if (chunk == 0) {
+                        while ((line = readLine()) != null && !line.isEmpty()) {
+                            // trailers
+                        }
+                        break;
+                    }
+                    skip(chunk);
+                    readLine();
+                    body += chunk;
+                }
+            } else if (contentLength >= 0) {
+                skip(contentLength);
+                body = contentLength;
+            } else {
+                body = 0;
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    body += n;
+                }
+                close = true;
+            }
+            results.bytes.addAndGet(body);
+            if (close) {
+                close();
+            }
+            return status;
+        }
+
+        private void skip(long count) throws IOException {
+            while (count > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+                if (n < 0) {
+                    throw new IOException("connection closed in the body");
+                }
+                count -= n;
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder sb = new StringBuilder(64);
+            int c;
+            while ((c = in.read()) >= 0) {
+                if (c == '\n') {
+                    int len = sb.length();
+                    if (len > 0 && sb.charAt(len - 1) == '\r') {
+                        sb.setLength(len - 1);
+                    }
+                    return sb.toString();
+                }
+                sb.append((char) c);
+            }
+            return sb.length() > 0 ? sb.toString() : null;
+        }
+    }
+
+    private static List<Request> readRequests(String file, String host) throws IOException {
+        List<Request> requests = new ArrayList<>();
+        if (file == null) {
+            requests.add(new Request("/", host));
+            return requests;
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    requests.add(new Request(line, host));
+                }
+            }
+        }
+        if (requests.isEmpty()) {
+            throw new IOException("no requests in " + file);
+        }
+        return requests;
+    }
+
+    private static void drive(String host, int port, List<Request> requests, int index, int connections,
+                              double rate, long expectedIntervalMicros, long endNanos, Results results) {
+        Connection connection = new Connection(host, port);
+        // 开环模式下每个连接承担 rate / connections 的请求速率，延迟从计划发送时间算起
+        long intervalNanos = rate > 0 ? (long) (1e9 * connections / rate) : 0;
+        long next = System.nanoTime() + (intervalNanos > 0 ? intervalNanos * index / connections : 0);
+        int i = index;
+        try {
+            while (true) {
+                long start;
+                if (intervalNanos > 0) {
+                    long now = System.nanoTime();
+                    if (next > now) {
+                        LockSupport.parkNanos(next - now);
+                    }
+                    start = next;
+                    next += intervalNanos;
+                } else {
+                    start = System.nanoTime();
+                }
+                if (start >= endNanos) {
+                    return;
+                }
+                Request request = requests.get(i++ % requests.size());
+                try {
+                    if (!connection.isOpen()) {
+                        connection.connect();
+                        results.reconnects.incrementAndGet();
+                    }
+                    int status = connection.exchange(request, results);
+                    if (results.recording) {
+                        results.status(status);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    connection.close();
+                    if (results.recording) {
+                        results.ioErrors.incrementAndGet();
+                    }
+                }
+                if (results.recording) {
+                    results.requests.incrementAndGet();
+                    results.record((System.nanoTime() - start) / 1000, intervalNanos > 0 ? 0 : expectedIntervalMicros);
+                }
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static void report(Results results, double seconds, int connections, double rate) {
+        long[] snapshot = results.histogram.snapshot();
+        System.out.printf("%s, %d connections, %.1f s%n",
+                rate > 0 ? String.format("open loop at %.0f req/s", rate) : "closed loop", connections, seconds);
+        System.out.printf("requests:   %d (%.1f req/s), %.1f MB/s%n", results.requests.get(),
+                results.requests.get() / seconds, results.bytes.get() / seconds / (1024 * 1024));
+        System.out.printf("errors:     %d i/o, %d reconnects%n", results.ioErrors.get(), results.reconnects.get());
+        synchronized (results.statuses) {
+            for (Map.Entry<Integer, AtomicLong> entry : results.statuses.entrySet()) {
+                System.out.printf("status %d: %d%n", entry.getKey(), entry.getValue().get());
+            }
+        }
+        System.out.printf("latency:    p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms%n",
+                LatencyHistogram.percentile(snapshot, 0.5) / 1000.0,
+                LatencyHistogram.percentile(snapshot, 0.9) / 1000.0,
+                LatencyHistogram.percentile(snapshot, 0.99) / 1000.0,
+                LatencyHistogram.percentile(snapshot, 0.999) / 1000.0,
+                LatencyHistogram.percentile(snapshot, 1.0) / 1000.0);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String serverType = "simple";
+        String host = "127.0.0.1";
+        int port = 0;
+        File dir = new File(".").getAbsoluteFile();
+        int connections = 16;
+        double duration = 10;
+        double warmup = 2;
+        double rate = 0;
+        long expectedIntervalMicros = 0;
+        String urls = null;
+        int workers = 0;
+        int queueSize = 256;
+        long cacheSize = 0;
+        long listingCacheEntries = 0;
+        int resolutionCacheEntries = 0;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            String value = arg.indexOf('=') > 0 ? arg.substring(arg.indexOf('=') + 1) : null;
+            if (arg.startsWith("--server=")) {
+                serverType = value;
+            } else if (("-d".equals(arg) || "--dir".equals(arg)) && i + 1 < args.length) {
+                dir = new File(args[++i]).getAbsoluteFile();
+            } else if (arg.startsWith("-d=") || arg.startsWith("--dir=")) {
+                dir = new File(value).getAbsoluteFile();
+            } else if (arg.startsWith("--host=")) {
+                host = value;
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(value);
+            } else if (arg.startsWith("--connections=")) {
+                connections = Integer.parseInt(value);
+            } else if (arg.startsWith("--duration=")) {
+                duration = Double.parseDouble(value);
+            } else if (arg.startsWith("--warmup=")) {
+                warmup = Double.parseDouble(value);
+            } else if (arg.startsWith("--rate=")) {
+                rate = Double.parseDouble(value);
+            } else if (arg.startsWith("--expected-interval=")) {
+                expectedIntervalMicros = (long) (Double.parseDouble(value) * 1000);
+            } else if (arg.startsWith("--urls=")) {
+                urls = value;
+            } else if (arg.startsWith("--workers=")) {
+                workers = Integer.parseInt(value);
+            } else if (arg.startsWith("--queue=")) {
+                queueSize = Integer.parseInt(value);
+            } else if (arg.startsWith("--cache=")) {
+                cacheSize = SimpleWebServer.parseSize(value);
+            } else if (arg.startsWith("--listing-cache=")) {
+                listingCacheEntries = Long.parseLong(value);
+            } else if (arg.startsWith("--resolve-cache=")) {
+                resolutionCacheEntries = Integer.parseInt(value);
+            }
+        }
+
+        NanoHTTPD server;
+        if ("simple".equals(serverType)) {
+            SimpleWebServer simple = new SimpleWebServer(host, port, Collections.singletonList(dir), null);
+            if (workers > 0) {
+                simple.setAsyncRunner(new WorkerPoolAsyncRunner(workers, queueSize));
+            }
+            if (cacheSize > 0) {
+                simple.setFileCache(new HotFileCache(cacheSize, 64 * 1024));
+            }
+            if (listingCacheEntries > 0) {
+                simple.setListingCache(new DirectoryListingCache(listingCacheEntries));
+            }
+            if (resolutionCacheEntries > 0) {
+                simple.setResolutionCache(new ResolutionCache(Collections.singletonList(dir),
+                        resolutionCacheEntries, 2000, 10000));
+            }
+            server = simple;
+        } else if ("hello".equals(serverType)) {
+            server = new HelloServer();
+        } else if ("debug".equals(serverType)) {
+            server = new DebugServer();
+        } else {
+            server = null;      // 压测一个已经在运行的服务器
+        }
+        if (server != null) {
+            server.start(NanoHTTPD.SOCKET_READ_TIMEOUT, true);
+            port = server.getListeningPort();
+        }
+
+        try {
+            final List<Request> requests = readRequests(urls, host + ":" + port);
+            final Results results = new Results();
+            long startNanos = System.nanoTime();
+            final long recordFrom = startNanos + (long) (warmup * 1e9);
+            final long endNanos = recordFrom + (long) (duration * 1e9);
+            final CountDownLatch done = new CountDownLatch(connections);
+            for (int c = 0; c < connections; c++) {
+                final int index = c;
+                final String targetHost = host;
+                final int targetPort = port;
+                final int connectionCount = connections;
+                final double targetRate = rate;
+                final long interval = expectedIntervalMicros;
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            drive(targetHost, targetPort, requests, index, connectionCount, targetRate, interval,
+                                    endNanos, results);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }, "load-" + c);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            LockSupport.parkNanos(Math.max(0, recordFrom - System.nanoTime()));
+            results.recording = true;
+            long measuredStart = System.nanoTime();
+            done.await(Math.max(1, (long) (duration * 2 + 60)), TimeUnit.SECONDS);
+            results.recording = false;
+            report(results, (System.nanoTime() - measuredStart) / 1e9, connections, rate);
+        } finally {
+            if (server != null) {
+                server.stop();
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package webserver;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Base class for the AsyncRunners of SimpleWebServer. It keeps track of the
+ * open connections and answers connections the runner cannot take with 503.
+ */
+public abstract class AbstractAsyncRunner implements NanoHTTPD.AsyncRunner {
+    private static final byte[] SERVICE_UNAVAILABLE = ("HTTP/1.1 " + HttpStatus.SERVICE_UNAVAILABLE.getDescription()
+            + "\r\nContent-Type: " + NanoHTTPD.MIME_PLAINTEXT
+            + "\r\nRetry-After: 1\r\nConnection: close\r\nContent-Length: 20\r\n\r\nServer is too busy.\n")
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private final Set<NanoHTTPD.ClientHandler> running = ConcurrentHashMap.newKeySet();
+    // ClientHandler 不对外暴露 socket，拒绝连接时需要用它返回 503
+    private final Map<NanoHTTPD.ClientHandler, Socket> sockets = new ConcurrentHashMap<>();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * Remembers the socket of a handler, called by the server before {@link #exec}.
+     */
+    public void register(NanoHTTPD.ClientHandler handler, Socket socket) {
+        this.sockets.put(handler, socket);
+    }
+
+    protected Socket socketOf(NanoHTTPD.ClientHandler clientHandler) {
+        return this.sockets.get(clientHandler);
+    }
+
+    @Override
+    public final void exec(NanoHTTPD.ClientHandler clientHandler) {
+        this.accepted.incrementAndGet();
+        this.running.add(clientHandler);
+        if (!dispatch(clientHandler)) {
+            reject(clientHandler);
+        }
+    }
+
+    /**
+     * Runs the handler on some thread.
+     *
+     * @return false if the runner has no capacity left for the connection
+     */
+    protected abstract boolean dispatch(NanoHTTPD.ClientHandler clientHandler);
+
+    /**
+     * Answers the connection with 503 and closes it.
+     */
+    protected void reject(NanoHTTPD.ClientHandler clientHandler) {
+        this.rejections.incrementAndGet();
+        Socket socket = this.sockets.get(clientHandler);
+        if (socket != null) {
+            try {
+                OutputStream out = socket.getOutputStream();
+                out.write(SERVICE_UNAVAILABLE);
+                out.flush();
+            } catch (IOException e) {
+                // the client is gone anyway
+            }
+        }
+        clientHandler.close();
+        closed(clientHandler);
+    }
+
+    @Override
+    public void closed(NanoHTTPD.ClientHandler clientHandler) {
+        this.running.remove(clientHandler);
+        this.sockets.remove(clientHandler);
+    }
+
+    @Override
+    public void closeAll() {
+        // copy of the set for concurrency
+        for (NanoHTTPD.ClientHandler clientHandler : new ArrayList<>(this.running)) {
+            clientHandler.close();
+        }
+    }
+
+    /**
+     * @return connections that are open, running or waiting for a worker
+     */
+    public int getConnections() {
+        return this.running.size();
+    }
+
+    public long getAccepted() {
+        return this.accepted.get();
+    }
+
+    public long getRejections() {
+        return this.rejections.get();
+    }
+
+    public abstract int getActiveWorkers();
+
+    public abstract int getQueueDepth();
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{connections=" + getConnections() + ", activeWorkers=" + getActiveWorkers()
+                + ", queueDepth=" + getQueueDepth() + ", accepted=" + getAccepted()
+                + ", rejections=" + getRejections() + "}";
+    }
+}
@@ -0,0 +1,302 @@
+package webserver;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Access log written off the request threads. A request thread only claims a
+ * slot in a lock-free ring buffer; a background thread formats the entries
+ * (Common, Combined or JSON lines) and writes them in batches to a file that is
+ * rotated by size, or to stdout. When the buffer is full entries are dropped
+ * and counted, or the request thread waits for space.
+ */
+public class AccessLog implements Closeable {
+    private static final Logger LOG = Logger.getLogger(AccessLog.class.getName());
+
+    public enum Format { COMMON, COMBINED, JSON }
+
+    private static final int BATCH_SIZE = 512;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final DateTimeFormatter CLF_TIME =
+            DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+
+    private final Format format;
+    private final boolean blockWhenFull;
+    private final File file;            // null: stdout
+    private final long maxFileSize;
+    private final int maxFiles;
+
+    // 多生产者单消费者的环形缓冲区：生产者 CAS 抢占序号后写入槽位，消费者按序号读取
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+
+    private final Thread writer;
+    private volatile boolean running = true;
+    private OutputStream out;
+    private long written;
+
+    private final AtomicLong logged = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param file        log file, null for stdout
+     * @param bufferSize  number of entries the ring buffer holds, rounded up to a power of two
+     * @param maxFileSize rotate when the file grows beyond this, 0 to never rotate
+     * @param maxFiles    number of rotated files (file.1 .. file.N) to keep
+     */
+    public AccessLog(File file, Format format, int bufferSize, boolean blockWhenFull, long maxFileSize, int maxFiles)
+            throws IOException {
+        this.file = file;
+        this.format = format;
+        this.blockWhenFull = blockWhenFull;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        openOutput();
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        });
+        this.writer.setDaemon(true);
+        this.writer.setName("AccessLog Writer");
+        this.writer.start();
+    }
+
+    /**
+     * One request, filled in by the request thread.
+     */
+    static final class Entry {
+        private final long time;
+        private final String remote;
+        private final String method;
+        private final String uri;
+        private final String referer;
+        private final String userAgent;
+        private final int status;
+        private final long bytes;
+        private final long latencyNanos;
+
+        private Entry(NanoHTTPD.IHTTPSession session, int status, long bytes, long latencyNanos) {
+            Map<String, String> header = session.getHeaders();
+            this.time = System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+            this.remote = header.get("remote-addr");
+            this.method = String.valueOf(session.getMethod());
+            this.uri = session.getUri();
+            this.referer = header.get("referer");
+            this.userAgent = header.get("user-agent");
+            this.status = status;
+            this.bytes = bytes;
+            this.latencyNanos = latencyNanos;
+        }
+    }
+
+    /**
+     * Queues a request that has been answered. Called after the response has been sent,
+     * while the session still holds the request's headers.
+     */
+    public void log(NanoHTTPD.IHTTPSession session, int status, long bytes, long latencyNanos) {
+        publish(new Entry(session, status, bytes, latencyNanos));
+    }
+
+    void publish(Entry entry) {
+        while (true) {
+            long seq = this.claimed.get();
+            if (seq - this.consumed.get() >= this.slots.length()) {
+                if (!this.blockWhenFull || !this.running) {
+                    this.dropped.incrementAndGet();
+                    return;
+                }
+                LockSupport.parkNanos(100_000);
+                continue;
+            }
+            if (this.claimed.compareAndSet(seq, seq + 1)) {
+                this.slots.lazySet((int) seq & this.mask, entry);
+                return;
+            }
+        }
+    }
+
+    private void writeLoop() {
+        StringBuilder batch = new StringBuilder(BATCH_SIZE * 160);
+        long nextSeq = this.consumed.get();
+        while (true) {
+            boolean stopping = !this.running;
+            int count = 0;
+            while (count < BATCH_SIZE) {
+                int index = (int) nextSeq & this.mask;
+                Entry entry = this.slots.get(index);
+                if (entry == null) {
+                    break;      // empty, or claimed but not yet written
+                }
+                this.slots.lazySet(index, null);
+                nextSeq++;
+                this.consumed.lazySet(nextSeq);
+                format(batch, entry);
+                count++;
+            }
+            if (batch.length() > 0) {
+                write(batch);
+                batch.setLength(0);
+                this.logged.addAndGet(count);
+            }
+            if (count < BATCH_SIZE) {
+                flush();
+                if (stopping && this.claimed.get() == nextSeq) {
+                    return;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    private void format(StringBuilder sb, Entry entry) {
+        if (this.format == Format.JSON) {
+            sb.append("{\"time\":\"").append(Instant.ofEpochMilli(entry.time)).append("\",\"remote\":");
+            jsonOrNull(sb, entry.remote);
+            sb.append(",\"method\":");
+            jsonOrNull(sb, entry.method);
+            sb.append(",\"uri\":");
+            jsonOrNull(sb, entry.uri);
+            sb.append(",\"status\":").append(entry.status)
+                    .append(",\"bytes\":").append(entry.bytes)
+                    .append(",\"latency_us\":").append(entry.latencyNanos / 1000)
+                    .append(",\"referer\":");
+            jsonOrNull(sb, entry.referer);
+            sb.append(",\"user_agent\":");
+            jsonOrNull(sb, entry.userAgent);
+            sb.append("}\n");
+            return;
+        }
+        // host ident authuser [date] "request" status bytes
+        sb.append(entry.remote != null ? entry.remote : "-").append(" - - [")
+                .append(CLF_TIME.format(Instant.ofEpochMilli(entry.time))).append("] \"")
+                .append(entry.method).append(' ').append(entry.uri).append(" HTTP/1.1\" ")
+                .append(entry.status).append(' ');
+        if (entry.bytes > 0) {
+            sb.append(entry.bytes);
+        } else {
+            sb.append('-');
+        }
+        if (this.format == Format.COMBINED) {
+            sb.append(" \"").append(entry.referer != null ? entry.referer : "-").append("\" \"")
+                    .append(entry.userAgent != null ? entry.userAgent : "-").append('"');
+        }
+        // 附加的响应时间（微秒）
+        sb.append(' ').append(entry.latencyNanos / 1000).append('\n');
+    }
+
+    private static void jsonOrNull(StringBuilder sb, String value) {
+        if (value == null) {
+            sb.append("null");
+        } else {
+            ListingRenderer.jsonString(sb, value);
+        }
+    }
+
+    private void openOutput() throws IOException {
+        if (this.file == null) {
+            this.out = System.out;
+            return;
+        }
+        this.out = new FileOutputStream(this.file, true);
+        this.written = this.file.length();
+    }
+
+    private void write(StringBuilder batch) {
+        byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            this.out.write(bytes);
+            this.written += bytes.length;
+            if (this.file != null && this.maxFileSize > 0 && this.written >= this.maxFileSize) {
+                rotate();
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "could not write the access log", e);
+        }
+    }
+
+    // access.log -> access.log.1 -> access.log.2 ...，超出 maxFiles 的删除
+    private void rotate() throws IOException {
+        this.out.close();
+        File oldest = new File(this.file.getPath() + "." + this.maxFiles);
+        if (oldest.exists() && !oldest.delete()) {
+            LOG.warning("could not delete " + oldest);
+        }
+        for (int i = this.maxFiles - 1; i >= 1; i--) {
+            File f = new File(this.file.getPath() + "." + i);
+            if (f.exists() && !f.renameTo(new File(this.file.getPath() + "." + (i + 1)))) {
+                LOG.warning("could not rename " + f);
+            }
+        }
+        if (this.maxFiles > 0 && !this.file.renameTo(new File(this.file.getPath() + ".1"))) {
+            LOG.warning("could not rename " + this.file);
+        }
+        this.out = new FileOutputStream(this.file, false);
+        this.written = this.file.length();
+    }
+
+    private void flush() {
+        try {
+            this.out.flush();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "could not flush the access log", e);
+        }
+    }
+
+    /**
+     * Writes what is still buffered and stops the writer thread.
+     */
+    @Override
+    public void close() {
+        this.running = false;
+        try {
+            this.writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.file != null) {
+            try {
+                this.out.close();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "could not close the access log", e);
+            }
+        }
+    }
+
+    public long getLogged() {
+        return this.logged.get();
+    }
+
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    @Override
+    public String toString() {
+        return "AccessLog{logged=" + getLogged() + ", dropped=" + getDropped()
+                + ", pending=" + (this.claimed.get() - this.consumed.get()) + "/" + this.slots.length() + "}";
+    }
+}
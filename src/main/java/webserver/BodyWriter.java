@@ -0,0 +1,18 @@
+package webserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Produces the body of a {@link StreamingResponse}. It is called while the
+ * response is being sent, and never for HEAD requests. The stream writes
+ * through to the connection and blocks while the client is not reading,
+ * so a writer never holds more than its own buffers in memory.
+ */
+public interface BodyWriter {
+    /**
+     * @param out the body; framing (Content-Length or chunked) and content coding are done by the server.
+     *            Don't close it.
+     */
+    void writeTo(OutputStream out) throws IOException;
+}
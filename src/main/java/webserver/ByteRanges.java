@@ -0,0 +1,231 @@
+package webserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Range header parsing (RFC 7233): "a-b", open-ended "a-" and suffix "-n"
+ * specs, ends past EOF are clamped, unsatisfiable specs are dropped, and
+ * overlapping or adjacent ranges are merged. Several ranges are sent as a
+ * multipart/byteranges body that is streamed from the file part by part.
+ */
+public final class ByteRanges {
+    // 合并之后仍超过这个数量的 Range 请求按普通请求处理，返回整个文件
+    public static final int MAX_RANGES = 64;
+    // 解析前的 spec 数量上限，防止用很长的 Range 头消耗 CPU
+    private static final int MAX_SPECS = 1000;
+
+    private ByteRanges() {
+    }
+
+    /**
+     * @return the satisfiable ranges as {start, end} (inclusive), sorted and merged; an empty list if none
+     * is satisfiable (416); null if the header is not a valid byte range set or has too many ranges,
+     * in which case it must be ignored and the whole file sent
+     */
+    public static List<long[]> parse(String header, long length) {
+        if (header == null) {
+            return null;
+        }
+        String value = header.trim();
+        if (value.length() < 6 || !value.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = value.substring(6).split(",");
+        if (specs.length > MAX_SPECS) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>();
+        int count = 0;
+        for (String s : specs) {
+            String spec = s.trim();
+            if (spec.isEmpty()) {
+                continue;       // "bytes=0-1,,5-6" 中的空元素是允许的
+            }
+            count++;
+            int minus = spec.indexOf('-');
+            if (minus < 0) {
+                return null;
+            }
+            try {
+                if (minus == 0) {
+                    // suffix: the last n bytes
+                    long suffix = Long.parseLong(spec.substring(1).trim());
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    if (suffix > 0 && length > 0) {
+                        ranges.add(new long[]{Math.max(0, length - suffix), length - 1});
+                    }
+                    continue;
+                }
+                long start = Long.parseLong(spec.substring(0, minus).trim());
+                String last = spec.substring(minus + 1).trim();
+                long end = last.isEmpty() ? length - 1 : Long.parseLong(last);
+                if (start < 0 || (!last.isEmpty() && end < start)) {
+                    return null;
+                }
+                if (start < length) {
+                    ranges.add(new long[]{start, Math.min(end, length - 1)});
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+        List<long[]> merged = merge(ranges);
+        return merged.size() > MAX_RANGES ? null : merged;
+    }
+
+    private static List<long[]> merge(List<long[]> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        Collections.sort(ranges, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+        List<long[]> merged = new ArrayList<>();
+        long[] current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            long[] next = ranges.get(i);
+            if (next[0] <= current[1] + 1) {
+                current = new long[]{current[0], Math.max(current[1], next[1])};
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+
+    public static String contentRange(long[] range, long length) {
+        return "bytes " + range[0] + "-" + range[1] + "/" + length;
+    }
+
+    public static String newBoundary() {
+        return "RANGE_" + Long.toHexString(ThreadLocalRandom.current().nextLong())
+                + Long.toHexString(ThreadLocalRandom.current().nextLong());
+    }
+
+    /**
+     * The multipart/byteranges body for the given ranges, read from the file (or from its
+     * cached content) one part at a time.
+     */
+    public static class MultipartStream extends InputStream {
+        private final File file;
+        private final byte[] cached;
+        private final List<long[]> ranges;
+        private final List<byte[]> partHeaders = new ArrayList<>();
+        private final byte[] trailer;
+        private final long contentLength;
+
+        private RandomAccessFile raf;
+        private int part = 0;
+        private boolean inHeader = true;
+        private int headerPos = 0;
+        private long position;      // 当前 part 中下一个要读的文件位置
+        private final byte[] single = new byte[1];
+
+        public MultipartStream(File file, byte[] cached, String mime, long length, List<long[]> ranges,
+                               String boundary) {
+            this.file = file;
+            this.cached = cached;
+            this.ranges = ranges;
+            long total = 0;
+            for (long[] range : ranges) {
+                String header = "\r\n--" + boundary + "\r\n"
+                        + (mime != null ? "Content-Type: " + mime + "\r\n" : "")
+                        + "Content-Range: " + contentRange(range, length) + "\r\n\r\n";
+                byte[] bytes = header.getBytes(StandardCharsets.ISO_8859_1);
+                this.partHeaders.add(bytes);
+                total += bytes.length + range[1] - range[0] + 1;
+            }
+            this.trailer = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            this.contentLength = total + this.trailer.length;
+            this.position = ranges.get(0)[0];
+        }
+
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int n = read(single, 0, 1);
+            return n < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                byte[] header = part < ranges.size() ? partHeaders.get(part) : trailer;
+                if (inHeader) {
+                    if (headerPos < header.length) {
+                        int n = Math.min(len, header.length - headerPos);
+                        System.arraycopy(header, headerPos, b, off, n);
+                        headerPos += n;
+                        return n;
+                    }
+                    if (part >= ranges.size()) {
+                        return -1;
+                    }
+                    inHeader = false;
+                }
+                long end = ranges.get(part)[1];
+                if (position <= end) {
+                    int n = (int) Math.min(len, end - position + 1);
+                    n = readData(b, off, n);
+                    position += n;
+                    return n;
+                }
+                part++;
+                inHeader = true;
+                headerPos = 0;
+                if (part < ranges.size()) {
+                    position = ranges.get(part)[0];
+                }
+            }
+        }
+
+        private int readData(byte[] b, int off, int len) throws IOException {
+            if (cached != null) {
+                System.arraycopy(cached, (int) position, b, off, len);
+                return len;
+            }
+            if (raf == null) {
+                raf = new RandomAccessFile(file, "r");
+            }
+            raf.seek(position);
+            int n = raf.read(b, off, len);
+            if (n < 0) {
+                throw new IOException("file was truncated while sending");
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (raf != null) {
+                raf.close();
+                raf = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package webserver;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Cache-Control rule table. A rule maps path globs or MIME types to the
+ * directives to send, the first matching rule wins:
+ * <pre>
+ *   *.js|*.css|*.woff2   max-age=31536000, immutable
+ *   /docs/**             max-age=300
+ *   image/*              max-age=86400
+ *   text/html            no-cache
+ * </pre>
+ * Patterns starting with '/' are globs over the whole URI, patterns without
+ * a '/' are globs over the last path segment, and "type/subtype" (subtype
+ * may be '*') matches the MIME type. In globs '*' matches within a segment
+ * and '**' across segments.
+ * <p>
+ * Rules come from the -X: options: {@value #RULES_OPTION} holds rules
+ * separated by ';', {@value #FILE_OPTION} names a file with one rule per line
+ * ('#' starts a comment), {@value #DEFAULT_OPTION} gives the directives for
+ * responses no rule matches.
+ */
+public class CachePolicy {
+    public static final String RULES_OPTION = "-X:cache-control";
+    public static final String FILE_OPTION = "-X:cache-control.file";
+    public static final String DEFAULT_OPTION = "-X:cache-control.default";
+
+    private final List<Rule> rules = new ArrayList<>();
+    private final String defaultDirectives;
+
+    private static final class Rule {
+        private final Pattern uriPattern;       // 匹配整个 uri
+        private final Pattern namePattern;      // 匹配最后一段文件名
+        private final Pattern mimePattern;
+        private final String directives;
+
+        private Rule(String pattern, String directives) {
+            Pattern uri = null;
+            Pattern name = null;
+            Pattern mime = null;
+            if (pattern.startsWith("/")) {
+                uri = Pattern.compile(globToRegex(pattern));
+            } else if (pattern.contains("/")) {
+                mime = Pattern.compile(globToRegex(pattern.toLowerCase()));
+            } else {
+                name = Pattern.compile(globToRegex(pattern));
+            }
+            this.uriPattern = uri;
+            this.namePattern = name;
+            this.mimePattern = mime;
+            this.directives = directives;
+        }
+
+        private boolean matches(String uri, String name, String mime) {
+            if (uriPattern != null) {
+                return uriPattern.matcher(uri).matches();
+            }
+            if (namePattern != null) {
+                return namePattern.matcher(name).matches();
+            }
+            return mime != null && mimePattern.matcher(mime).matches();
+        }
+    }
+
+    public CachePolicy(String defaultDirectives) {
+        this.defaultDirectives = defaultDirectives;
+    }
+
+    /**
+     * @return the policy configured by the -X: options, null if there is none
+     */
+    public static CachePolicy fromOptions(Map<String, String> options) throws IOException {
+        String inline = options.get(RULES_OPTION);
+        String file = options.get(FILE_OPTION);
+        String defaultDirectives = options.get(DEFAULT_OPTION);
+        if (inline == null && file == null && defaultDirectives == null) {
+            return null;
+        }
+        CachePolicy policy = new CachePolicy(defaultDirectives != null ? defaultDirectives.trim() : null);
+        if (file != null) {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(new File(file)), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    policy.addRule(line);
+                }
+            }
+        }
+        if (inline != null) {
+            for (String rule : inline.split(";")) {
+                policy.addRule(rule);
+            }
+        }
+        return policy;
+    }
+
+    /**
+     * @param rule "PATTERN[|PATTERN...] DIRECTIVES"; blank lines and '#' comments are skipped
+     */
+    public void addRule(String rule) {
+        String r = rule.trim();
+        int hash = r.indexOf('#');
+        if (hash >= 0) {
+            r = r.substring(0, hash).trim();
+        }
+        if (r.isEmpty()) {
+            return;
+        }
+        int space = indexOfWhitespace(r);
+        if (space < 0) {
+            throw new IllegalArgumentException("cache-control rule without directives: " + rule);
+        }
+        String directives = r.substring(space).trim();
+        for (String pattern : r.substring(0, space).split("\\|")) {
+            if (!pattern.isEmpty()) {
+                this.rules.add(new Rule(pattern, directives));
+            }
+        }
+    }
+
+    private static int indexOfWhitespace(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.isWhitespace(s.charAt(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static String globToRegex(String glob) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    sb.append(".*");
+                    i++;
+                } else {
+                    sb.append("[^/]*");
+                }
+            } else if (c == '?') {
+                sb.append("[^/]");
+            } else {
+                sb.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the Cache-Control directives for the URI and MIME type, null if none apply
+     */
+    public String directivesFor(String uri, String mime) {
+        String name = uri.substring(uri.lastIndexOf('/') + 1);
+        String mimeType = mime;
+        if (mimeType != null) {
+            int semicolon = mimeType.indexOf(';');
+            mimeType = (semicolon >= 0 ? mimeType.substring(0, semicolon) : mimeType).trim().toLowerCase();
+        }
+        for (Rule rule : this.rules) {
+            if (rule.matches(uri, name, mimeType)) {
+                return rule.directives;
+            }
+        }
+        return this.defaultDirectives;
+    }
+
+    /**
+     * Adds Cache-Control to successful and 304 responses that don't have one yet.
+     */
+    public void apply(String uri, NanoHTTPD.Response res) {
+        int status = res.getStatus() != null ? res.getStatus().getRequestStatus() : 0;
+        if ((status != 200 && status != 206 && status != 304) || res.getHeader("Cache-Control") != null) {
+            return;
+        }
+        String directives = directivesFor(uri, res.getMimeType());
+        if (directives != null && !directives.isEmpty()) {
+            res.addHeader("Cache-Control", directives);
+        }
+    }
+
+    public int size() {
+        return this.rules.size();
+    }
+}
@@ -0,0 +1,44 @@
+package webserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Output stream of a socket accepted through {@link ChannelServerSocketFactory}.
+ * Responses that know about it can write straight to the underlying channel,
+ * e.g. with FileChannel.transferTo (sendfile).
+ */
+public class ChannelOutputStream extends OutputStream {
+    private final SocketChannel channel;
+    private final OutputStream out;
+
+    public ChannelOutputStream(SocketChannel channel, OutputStream out) {
+        this.channel = channel;
+        this.out = out;
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
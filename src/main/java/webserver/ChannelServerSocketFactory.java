@@ -0,0 +1,223 @@
+package webserver;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Creates server sockets backed by NIO channels. NanoHTTPD only sees plain
+ * {@link Socket}s, but their output streams are {@link ChannelOutputStream}s,
+ * so a response can reach the SocketChannel and send files without copying
+ * them through user space.
+ */
+public class ChannelServerSocketFactory implements NanoHTTPD.ServerSocketFactory {
+    @Override
+    public ServerSocket create() throws IOException {
+        return new ChannelServerSocket(ServerSocketChannel.open());
+    }
+
+    private static class ChannelServerSocket extends ServerSocket {
+        private final ServerSocketChannel channel;
+        private final ServerSocket adaptor;
+
+        private ChannelServerSocket(ServerSocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.adaptor = channel.socket();
+        }
+
+        @Override
+        public void bind(SocketAddress endpoint) throws IOException {
+            adaptor.bind(endpoint);
+        }
+
+        @Override
+        public void bind(SocketAddress endpoint, int backlog) throws IOException {
+            adaptor.bind(endpoint, backlog);
+        }
+
+        @Override
+        public Socket accept() throws IOException {
+            SocketChannel client = channel.accept();
+            return new ChannelSocket(client);
+        }
+
+        @Override
+        public ServerSocketChannel getChannel() {
+            return channel;
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return adaptor.getInetAddress();
+        }
+
+        @Override
+        public int getLocalPort() {
+            return adaptor.getLocalPort();
+        }
+
+        @Override
+        public SocketAddress getLocalSocketAddress() {
+            return adaptor.getLocalSocketAddress();
+        }
+
+        @Override
+        public void setReuseAddress(boolean on) throws SocketException {
+            adaptor.setReuseAddress(on);
+        }
+
+        @Override
+        public boolean getReuseAddress() throws SocketException {
+            return adaptor.getReuseAddress();
+        }
+
+        @Override
+        public boolean isBound() {
+            return adaptor.isBound();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return !channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            super.close();
+        }
+    }
+
+    /**
+     * Accepted connection. Everything NanoHTTPD calls is delegated to the channel's
+     * own socket adaptor, only the output stream is wrapped.
+     */
+    private static class ChannelSocket extends Socket {
+        private final SocketChannel channel;
+        private final Socket adaptor;
+
+        private ChannelSocket(SocketChannel channel) {
+            this.channel = channel;
+            this.adaptor = channel.socket();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return adaptor.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return new ChannelOutputStream(channel, adaptor.getOutputStream());
+        }
+
+        @Override
+        public SocketChannel getChannel() {
+            return channel;
+        }
+
+        @Override
+        public synchronized void setSoTimeout(int timeout) throws SocketException {
+            adaptor.setSoTimeout(timeout);
+        }
+
+        @Override
+        public synchronized int getSoTimeout() throws SocketException {
+            return adaptor.getSoTimeout();
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) throws SocketException {
+            adaptor.setTcpNoDelay(on);
+        }
+
+        @Override
+        public void setKeepAlive(boolean on) throws SocketException {
+            adaptor.setKeepAlive(on);
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return adaptor.getInetAddress();
+        }
+
+        @Override
+        public InetAddress getLocalAddress() {
+            return adaptor.getLocalAddress();
+        }
+
+        @Override
+        public int getPort() {
+            return adaptor.getPort();
+        }
+
+        @Override
+        public int getLocalPort() {
+            return adaptor.getLocalPort();
+        }
+
+        @Override
+        public SocketAddress getRemoteSocketAddress() {
+            return adaptor.getRemoteSocketAddress();
+        }
+
+        @Override
+        public SocketAddress getLocalSocketAddress() {
+            return adaptor.getLocalSocketAddress();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return adaptor.isConnected();
+        }
+
+        @Override
+        public boolean isBound() {
+            return adaptor.isBound();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return !channel.isOpen();
+        }
+
+        @Override
+        public void shutdownInput() throws IOException {
+            adaptor.shutdownInput();
+        }
+
+        @Override
+        public void shutdownOutput() throws IOException {
+            adaptor.shutdownOutput();
+        }
+
+        @Override
+        public boolean isInputShutdown() {
+            return adaptor.isInputShutdown();
+        }
+
+        @Override
+        public boolean isOutputShutdown() {
+            return adaptor.isOutputShutdown();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            channel.close();
+        }
+
+        @Override
+        public String toString() {
+            return adaptor.toString();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content negotiation for gzip/deflate plus a size-bounded LRU cache of the
+ * compressed bytes. Entries are keyed by what identifies the uncompressed
+ * body ({@link #fileKey}, {@link #contentKey}), not by its ETag, which is a
+ * 32-bit hash and may be shared by two files. A changed file simply stops
+ * being looked up.
+ */
+public class CompressionCache {
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    public static final long DEFAULT_MIN_SIZE = 1024;
+    public static final long DEFAULT_MAX_SIZE = 1024 * 1024;
+
+    private final long minSize;
+    private final long maxSize;
+    private final SizedLruMap<byte[]> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxBytes memory budget of the cache
+     * @param minSize  bodies smaller than this are not worth compressing
+     * @param maxSize  larger bodies are not compressed on the fly
+     */
+    public CompressionCache(long maxBytes, long minSize, long maxSize) {
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.entries = new SizedLruMap<byte[]>(maxBytes) {
+            @Override
+            protected long sizeOf(byte[] data) {
+                return data.length;
+            }
+        };
+    }
+
+    public static boolean isCompressible(String mime) {
+        if (mime == null) {
+            return false;
+        }
+        String m = mime.toLowerCase();
+        return m.startsWith("text/") || m.contains("javascript") || m.contains("json") || m.contains("xml")
+                || m.equals("image/svg+xml");
+    }
+
+    /**
+     * Picks the coding from an Accept-Encoding header, gzip before deflate.
+     *
+     * @return GZIP, DEFLATE or null for identity
+     */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        // 明确列出的编码以它自己的 q 值为准，"*" 只对没有列出的编码有效
+        Boolean gzip = null;
+        Boolean deflate = null;
+        boolean any = false;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim().toLowerCase();
+            boolean accepted = true;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        accepted = Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+            if (GZIP.equals(coding) || "x-gzip".equals(coding)) {
+                gzip = accepted || Boolean.TRUE.equals(gzip);
+            } else if (DEFLATE.equals(coding)) {
+                deflate = accepted || Boolean.TRUE.equals(deflate);
+            } else if ("*".equals(coding)) {
+                any |= accepted;
+            }
+        }
+        if (gzip != null ? gzip : any) {
+            return GZIP;
+        }
+        return (deflate != null ? deflate : any) ? DEFLATE : null;
+    }
+
+    /**
+     * True if the If-None-Match header names the entity tag or one of its compressed variants.
+     */
+    public static boolean matchesAnyVariant(String ifNoneMatch, String etag) {
+        return ifNoneMatch != null && ("*".equals(ifNoneMatch) || ifNoneMatch.equals(etag)
+                || ifNoneMatch.equals(etag + "-" + GZIP) || ifNoneMatch.equals(etag + "-" + DEFLATE));
+    }
+
+    public boolean accepts(long length) {
+        return length >= this.minSize && length <= this.maxSize;
+    }
+
+    /**
+     * Streamed bodies are not held in memory, so only the minimum size applies.
+     *
+     * @param length -1 if unknown
+     */
+    public boolean acceptsStream(long length) {
+        return length < 0 || length >= this.minSize;
+    }
+
+    /**
+     * A stream that compresses into out with the content coding. Flushing it flushes what has been
+     * compressed so far; closing it finishes the coding and closes out.
+     */
+    public static OutputStream encoder(String encoding, OutputStream out) throws IOException {
+        if (GZIP.equals(encoding)) {
+            return new GZIPOutputStream(out, 8192, true);
+        }
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, false);
+        return new DeflaterOutputStream(out, deflater, 8192, true) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * The cache key of a file's compressed body.
+     */
+    public static String fileKey(File file, long lastModified, long length, String encoding) {
+        return file.getAbsolutePath() + '|' + lastModified + '|' + length + '|' + encoding;
+    }
+
+    /**
+     * The cache key of an in-memory body served at uri, from its length and CRC-32.
+     */
+    public static String contentKey(String uri, byte[] data, int offset, int length, String encoding) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return uri + '|' + length + '|' + Long.toHexString(crc.getValue()) + '|' + encoding;
+    }
+
+    public synchronized byte[] get(String key) {
+        byte[] cached = this.entries.get(key);
+        if (cached != null) {
+            this.hits.incrementAndGet();
+        } else {
+            this.misses.incrementAndGet();
+        }
+        return cached;
+    }
+
+    /**
+     * Compresses data and caches the result under key, which may be null to skip the cache.
+     */
+    public byte[] compress(String key, String encoding, byte[] data, int offset, int length) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(64, length / 3));
+        if (GZIP.equals(encoding)) {
+            OutputStream out = new GZIPOutputStream(bytes);
+            out.write(data, offset, length);
+            out.close();
+        } else {
+            // "deflate" content-coding is the zlib format, not raw deflate
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, false);
+            try {
+                OutputStream out = new DeflaterOutputStream(bytes, deflater);
+                out.write(data, offset, length);
+                out.close();
+            } finally {
+                deflater.end();
+            }
+        }
+        byte[] compressed = bytes.toByteArray();
+        if (key != null) {
+            put(key, compressed);
+        }
+        return compressed;
+    }
+
+    private synchronized void put(String key, byte[] data) {
+        this.entries.put(key, data);
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    public synchronized long getEvictions() {
+        return this.entries.getEvictions();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CompressionCache{hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions()
+                + ", entries=" + this.entries.size() + ", bytes=" + this.entries.getCurrentSize() + "/"
+                + this.entries.getMaxSize() + "}";
+    }
+}
@@ -0,0 +1,105 @@
+package webserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Snapshot of a directory used for listings: sorted sub-directory names,
+ * sorted file names and the file sizes, read with one stat per entry.
+ * Entries are numbered directories first, then files.
+ */
+public class DirectoryListing {
+    private final String[] directories;
+    private final String[] files;
+    private final long[] sizes;
+    private final long lastModified;
+
+    private DirectoryListing(String[] directories, String[] files, long[] sizes, long lastModified) {
+        this.directories = directories;
+        this.files = files;
+        this.sizes = sizes;
+        this.lastModified = lastModified;
+    }
+
+    public static DirectoryListing read(File directory) throws IOException {
+        // 先取目录的修改时间，读取过程中目录若有变化，下次请求会重新读取
+        long lastModified = directory.lastModified();
+        List<String> directories = new ArrayList<>();
+        List<FileEntry> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath())) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    continue;   // deleted while listing
+                }
+                if (attributes.isDirectory()) {
+                    directories.add(name);
+                } else {
+                    files.add(new FileEntry(name, attributes.size()));
+                }
+            }
+        }
+        Collections.sort(directories);
+        Collections.sort(files);
+
+        String[] fileNames = new String[files.size()];
+        long[] sizes = new long[files.size()];
+        for (int i = 0; i < fileNames.length; i++) {
+            fileNames[i] = files.get(i).name;
+            sizes[i] = files.get(i).size;
+        }
+        return new DirectoryListing(directories.toArray(new String[0]), fileNames, sizes, lastModified);
+    }
+
+    private static final class FileEntry implements Comparable<FileEntry> {
+        private final String name;
+        private final long size;
+
+        private FileEntry(String name, long size) {
+            this.name = name;
+            this.size = size;
+        }
+
+        @Override
+        public int compareTo(FileEntry o) {
+            return name.compareTo(o.name);
+        }
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public int size() {
+        return directories.length + files.length;
+    }
+
+    public int getDirectoryCount() {
+        return directories.length;
+    }
+
+    public boolean isDirectory(int index) {
+        return index < directories.length;
+    }
+
+    public String getName(int index) {
+        return index < directories.length ? directories[index] : files[index - directories.length];
+    }
+
+    /**
+     * @return the size of a file entry, -1 for directories
+     */
+    public long getSize(int index) {
+        return index < directories.length ? -1 : sizes[index - directories.length];
+    }
+}
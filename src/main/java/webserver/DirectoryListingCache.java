@@ -0,0 +1,63 @@
+package webserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Directory snapshots for listings, reused while the directory's mtime is
+ * unchanged (adding, removing or renaming an entry updates it). Bounded by
+ * the total number of entries held, least recently used listings go first.
+ */
+public class DirectoryListingCache {
+    private final SizedLruMap<DirectoryListing> listings;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public DirectoryListingCache(long maxEntries) {
+        this.listings = new SizedLruMap<DirectoryListing>(maxEntries) {
+            @Override
+            protected long sizeOf(DirectoryListing listing) {
+                return listing.size();
+            }
+        };
+    }
+
+    public DirectoryListing get(File directory) throws IOException {
+        String key = directory.getAbsolutePath();
+        long lastModified = directory.lastModified();
+        synchronized (this) {
+            DirectoryListing listing = this.listings.get(key);
+            if (listing != null && listing.getLastModified() == lastModified) {
+                this.hits.incrementAndGet();
+                return listing;
+            }
+        }
+        this.misses.incrementAndGet();
+        DirectoryListing listing = DirectoryListing.read(directory);
+        synchronized (this) {
+            this.listings.put(key, listing);
+        }
+        return listing;
+    }
+
+    public synchronized void invalidate(File directory) {
+        this.listings.remove(directory.getAbsolutePath());
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DirectoryListingCache{hits=" + getHits() + ", misses=" + getMisses() + ", listings="
+                + this.listings.size() + ", entries=" + this.listings.getCurrentSize() + "/"
+                + this.listings.getMaxSize() + "}";
+    }
+}
@@ -0,0 +1,157 @@
+package webserver;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends a region of a file without copying it through user-space buffers.
+ * On sockets from {@link ChannelServerSocketFactory} the body goes out with
+ * FileChannel.transferTo (sendfile), on any other stream the file is written
+ * from memory-mapped regions. Lengths are longs, so files over 2 GB work.
+ * A few bytes can be sent before and after the region, for instance to frame
+ * a deflate stream stored in an archive as gzip.
+ */
+public class FileChannelResponse extends NanoHTTPD.Response {
+    private static final Logger LOG = Logger.getLogger(FileChannelResponse.class.getName());
+    private static final long MAP_REGION_SIZE = 64 * 1024 * 1024;
+    private static final byte[] NO_BYTES = new byte[0];
+
+    private final FileChannel fileChannel;
+    private final long offset;
+    private final long length;
+    private final byte[] prefix;
+    private final byte[] suffix;
+    // Response 的 header 是私有的，这里保留一份用于自己输出响应头
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    private boolean keepAlive = true;
+
+    public FileChannelResponse(IStatus status, String mimeType, File file, long offset, long length) throws IOException {
+        this(status, mimeType, file, offset, length, NO_BYTES, NO_BYTES);
+    }
+
+    /**
+     * @param prefix sent before the region
+     * @param suffix sent after the region
+     */
+    public FileChannelResponse(IStatus status, String mimeType, File file, long offset, long length, byte[] prefix,
+                               byte[] suffix) throws IOException {
+        super(status, mimeType, null, 0);
+        this.fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.offset = offset;
+        this.length = length;
+        this.prefix = prefix;
+        this.suffix = suffix;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the length of the body, including the bytes before and after the region
+     */
+    public long getLength() {
+        return prefix.length + length + suffix.length;
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        super.addHeader(name, value);
+        this.headers.put(name, value);
+    }
+
+    @Override
+    public void setKeepAlive(boolean useKeepAlive) {
+        super.setKeepAlive(useKeepAlive);
+        this.keepAlive = useKeepAlive;
+    }
+
+    @Override
+    protected void send(OutputStream outputStream) {
+        ResponseWriter.Buffer head = ResponseWriter.take();
+        try {
+            ResponseWriter.head(head, this, this.headers, this.keepAlive, getLength());
+            boolean body = getRequestMethod() != NanoHTTPD.Method.HEAD;
+            if (body) {
+                head.write(this.prefix);
+            }
+            head.writeTo(outputStream);
+            outputStream.flush();
+            if (body) {
+                sendBody(outputStream);
+                outputStream.write(this.suffix);
+            }
+            outputStream.flush();
+        } catch (IOException ioe) {
+            LOG.log(Level.SEVERE, "Could not send response to the client", ioe);
+            // 响应头已经发出，body 不完整时只能关闭连接，否则客户端会把下一个响应当成 body 的剩余部分
+            try {
+                outputStream.close();
+            } catch (IOException ignored) {
+                // closing anyway
+            }
+        } finally {
+            ResponseWriter.release(head);
+            closeChannel();
+        }
+    }
+
+    private void sendBody(OutputStream outputStream) throws IOException {
+        if (outputStream instanceof ChannelOutputStream) {
+            // zero-copy: the kernel moves the bytes from the page cache to the socket
+            WritableByteChannel target = ((ChannelOutputStream) outputStream).getChannel();
+            long position = offset;
+            long remaining = length;
+            while (remaining > 0) {
+                long sent = fileChannel.transferTo(position, remaining, target);
+                if (sent <= 0 && position >= fileChannel.size()) {
+                    throw new EOFException("file was truncated while sending, " + remaining + " bytes missing");
+                }
+                position += sent;
+                remaining -= sent;
+            }
+        } else {
+            WritableByteChannel target = Channels.newChannel(outputStream);
+            long position = offset;
+            long end = offset + length;
+            if (end > fileChannel.size()) {
+                throw new EOFException("file is shorter than " + end + " bytes");
+            }
+            while (position < end) {
+                long size = Math.min(MAP_REGION_SIZE, end - position);
+                MappedByteBuffer region = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                while (region.hasRemaining()) {
+                    target.write(region);
+                }
+                position += size;
+            }
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "could not close file channel", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        closeChannel();
+    }
+}
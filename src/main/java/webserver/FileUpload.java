@@ -0,0 +1,68 @@
+package webserver;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes a request body into a file as it arrives. The body goes into a hidden
+ * sibling of the target through {@link FileChannel#transferFrom}, which is then
+ * renamed over the target: readers, including responses already sending the
+ * old file, see either the old contents or the new ones, never a partial
+ * upload, and nothing is buffered beyond the channel's transfer buffer.
+ */
+final class FileUpload {
+
+    private FileUpload() {
+    }
+
+    /**
+     * Copies exactly {@code length} bytes from {@code in} into {@code target}, replacing it.
+     *
+     * @throws EOFException if the body ends early; the target is left as it was
+     */
+    static void write(InputStream in, long length, File target) throws IOException {
+        Path file = target.toPath();
+        // 和目标在同一个目录下才能原子地 rename；CREATE_NEW 按 umask 建文件，不像 createTempFile 只给 0600
+        Path part;
+        FileChannel channel;
+        while (true) {
+            part = file.resolveSibling("." + file.getFileName() + "."
+                    + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".part");
+            try {
+                channel = FileChannel.open(part, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                break;
+            } catch (FileAlreadyExistsException e) {
+                // 重名的概率很小，换个名字再试
+            }
+        }
+        try {
+            try (FileChannel out = channel) {
+                // 不关闭 src：关闭会关掉连接的输入流
+                ReadableByteChannel src = Channels.newChannel(in);
+                long position = 0;
+                while (position < length) {
+                    long n = out.transferFrom(src, position, length - position);
+                    if (n <= 0) {
+                        throw new EOFException("request body ended after " + position + " of " + length + " bytes");
+                    }
+                    position += n;
+                }
+            }
+            Files.move(part, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(part);
+            throw e;
+        }
+    }
+}
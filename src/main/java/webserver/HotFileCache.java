@@ -0,0 +1,133 @@
+package webserver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory cache for small, frequently requested files.
+ * The total size is bounded and the least recently used entries are evicted first.
+ * Entries are keyed by the resolved path and checked against the length and
+ * lastModified the caller already has (from its {@link Resolution}), so a hit
+ * needs no filesystem call and the body always matches the ETag and
+ * Last-Modified sent with it.
+ */
+public class HotFileCache {
+    private final long maxFileSize;
+    private final SizedLruMap<Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private static final class Entry {
+        private final byte[] data;
+        private final long lastModified;
+
+        private Entry(byte[] data, long lastModified) {
+            this.data = data;
+            this.lastModified = lastModified;
+        }
+    }
+
+    public HotFileCache(long maxBytes, long maxFileSize) {
+        this.maxFileSize = Math.min(maxFileSize, maxBytes);
+        this.entries = new SizedLruMap<Entry>(maxBytes) {
+            @Override
+            protected long sizeOf(Entry entry) {
+                return entry.data.length;
+            }
+        };
+    }
+
+    /**
+     * Returns the content of the file, loading it on a miss.
+     * Returns null when the file is too large to be cached, cannot be read, or no longer has
+     * the given length and lastModified.
+     */
+    public byte[] get(File file, long length, long lastModified) {
+        if (length > this.maxFileSize || length > Integer.MAX_VALUE) {
+            return null;
+        }
+        String key = keyOf(file);
+        synchronized (this) {
+            Entry entry = this.entries.get(key);
+            if (entry != null && entry.lastModified == lastModified && entry.data.length == length) {
+                this.hits.incrementAndGet();
+                return entry.data;
+            }
+        }
+        this.misses.incrementAndGet();
+
+        byte[] data = read(file, (int) length);
+        if (data == null || file.lastModified() != lastModified) {
+            // 和调用方的 ETag 对不上（或读的时候被修改了），不返回也不缓存
+            return null;
+        }
+        synchronized (this) {
+            this.entries.put(key, new Entry(data, lastModified));
+        }
+        return data;
+    }
+
+    public synchronized void invalidate(File file) {
+        this.entries.remove(keyOf(file));
+    }
+
+    public synchronized void clear() {
+        this.entries.clear();
+    }
+
+    // 不用 getCanonicalPath()，它要访问文件系统
+    private static String keyOf(File file) {
+        return file.getAbsolutePath();
+    }
+
+    private static byte[] read(File file, int length) {
+        byte[] data = new byte[length];
+        try (InputStream in = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < length) {
+                int count = in.read(data, offset, length - offset);
+                if (count < 0) {
+                    return null;    // truncated while reading
+                }
+                offset += count;
+            }
+            return in.read() < 0 ? data : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    public synchronized long getEvictions() {
+        return this.entries.getEvictions();
+    }
+
+    public synchronized long getCurrentBytes() {
+        return this.entries.getCurrentSize();
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    public long getMaxBytes() {
+        return this.entries.getMaxSize();
+    }
+
+    @Override
+    public String toString() {
+        return "HotFileCache{hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions()
+                + ", entries=" + size() + ", bytes=" + getCurrentBytes() + "/" + getMaxBytes() + "}";
+    }
+}
@@ -0,0 +1,525 @@
+package webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression for {@link Http2Connection} (RFC 7541): the static
+ * table, a dynamic table per direction and the Huffman code.
+ */
+final class Hpack {
+    private Hpack() {
+    }
+
+    static final class CompressionException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CompressionException(String message) {
+            super(message);
+        }
+    }
+
+    private static final String[][] STATIC_TABLE = {
+        {":authority", ""},
+        {":method", "GET"},
+        {":method", "POST"},
+        {":path", "/"},
+        {":path", "/index.html"},
+        {":scheme", "http"},
+        {":scheme", "https"},
+        {":status", "200"},
+        {":status", "204"},
+        {":status", "206"},
+        {":status", "304"},
+        {":status", "400"},
+        {":status", "404"},
+        {":status", "500"},
+        {"accept-charset", ""},
+        {"accept-encoding", "gzip, deflate"},
+        {"accept-language", ""},
+        {"accept-ranges", ""},
+        {"accept", ""},
+        {"access-control-allow-origin", ""},
+        {"age", ""},
+        {"allow", ""},
+        {"authorization", ""},
+        {"cache-control", ""},
+        {"content-disposition", ""},
+        {"content-encoding", ""},
+        {"content-language", ""},
+        {"content-length", ""},
+        {"content-location", ""},
+        {"content-range", ""},
+        {"content-type", ""},
+        {"cookie", ""},
+        {"date", ""},
+        {"etag", ""},
+        {"expect", ""},
+        {"expires", ""},
+        {"from", ""},
+        {"host", ""},
+        {"if-match", ""},
+        {"if-modified-since", ""},
+        {"if-none-match", ""},
+        {"if-range", ""},
+        {"if-unmodified-since", ""},
+        {"last-modified", ""},
+        {"link", ""},
+        {"location", ""},
+        {"max-forwards", ""},
+        {"proxy-authenticate", ""},
+        {"proxy-authorization", ""},
+        {"range", ""},
+        {"referer", ""},
+        {"refresh", ""},
+        {"retry-after", ""},
+        {"server", ""},
+        {"set-cookie", ""},
+        {"strict-transport-security", ""},
+        {"transfer-encoding", ""},
+        {"user-agent", ""},
+        {"vary", ""},
+        {"via", ""},
+        {"www-authenticate", ""},
+    };
+    // 名称 -> 静态表中第一个该名称的索引（从 1 开始）
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    // "名称\0值" -> 静态表索引
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+            if (!STATIC_TABLE[i][1].isEmpty()) {
+                STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+            }
+        }
+    }
+
+    // 附录 B 的 Huffman 编码，下标 256 是 EOS
+    private static final int[] CODES = {
+        0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+        0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+        0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+        0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+        0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+        0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+        0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+        0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+        0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+        0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+        0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+        0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+        0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+        0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+        0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+        0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+        0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+        0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+        0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+        0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+        0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+        0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+        0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+        0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+        0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+        0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+        0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+        0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+        0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+        0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+        0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+        0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+        0x3fffffff
+    };
+    private static final byte[] LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+        28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+        5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+        6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+        24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+        21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+        19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+        26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+        30
+    };
+    // Huffman 解码树：CHILDREN[node * 2 + bit] 为子节点，负数 -(符号 + 1) 表示叶子
+    private static final int[] CHILDREN;
+
+    static {
+        int[] children = new int[512 * 2];
+        int nodes = 1;
+        for (int symbol = 0; symbol < CODES.length; symbol++) {
+            int node = 0;
+            for (int bit = LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                int slot = node * 2 + ((CODES[symbol] >>> bit) & 1);
+                if (bit == 0) {
+                    children[slot] = -(symbol + 1);
+                } else {
+                    if (children[slot] == 0) {
+                        children[slot] = nodes++;
+                    }
+                    node = children[slot];
+                }
+            }
+        }
+        CHILDREN = children;
+    }
+
+    /**
+     * One direction's dynamic table. Entries cost their name and value length plus 32 bytes.
+     */
+    private static final class DynamicTable {
+        private final ArrayDeque<String[]> entries = new ArrayDeque<>();     // 最新的在前
+        private int size;
+        private int maxSize;
+
+        private DynamicTable(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        private static int sizeOf(String name, String value) {
+            return name.length() + value.length() + 32;
+        }
+
+        private void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(0);
+        }
+
+        private void add(String name, String value) {
+            int entrySize = sizeOf(name, value);
+            evict(entrySize);
+            // 比整张表还大的条目只是清空表，不会被加入
+            if (entrySize <= this.maxSize) {
+                this.entries.addFirst(new String[]{name, value});
+                this.size += entrySize;
+            }
+        }
+
+        private void evict(int room) {
+            while (!this.entries.isEmpty() && this.size + room > this.maxSize) {
+                String[] oldest = this.entries.removeLast();
+                this.size -= sizeOf(oldest[0], oldest[1]);
+            }
+        }
+
+        /**
+         * @param index 1-based, counting from the newest entry
+         */
+        private String[] get(int index) {
+            if (index < 1 || index > this.entries.size()) {
+                return null;
+            }
+            Iterator<String[]> it = this.entries.iterator();
+            String[] entry = null;
+            for (int i = 0; i < index; i++) {
+                entry = it.next();
+            }
+            return entry;
+        }
+
+        /**
+         * @return 1-based index of the exact field, or minus the index of an entry with the name, 0 if none
+         */
+        private int find(String name, String value) {
+            int index = 1;
+            int nameIndex = 0;
+            for (String[] entry : this.entries) {
+                if (entry[0].equals(name)) {
+                    if (entry[1].equals(value)) {
+                        return index;
+                    }
+                    if (nameIndex == 0) {
+                        nameIndex = -index;
+                    }
+                }
+                index++;
+            }
+            return nameIndex;
+        }
+    }
+
+    /**
+     * Decodes the header blocks of one connection, in the order they were received.
+     */
+    static final class Decoder {
+        private final DynamicTable table;
+        private final int maxTableSize;
+        private final int maxHeaderListSize;
+
+        /**
+         * @param maxTableSize      the SETTINGS_HEADER_TABLE_SIZE sent to the peer
+         * @param maxHeaderListSize decoded fields beyond this many bytes are dropped; the block is still decoded
+         */
+        Decoder(int maxTableSize, int maxHeaderListSize) {
+            this.table = new DynamicTable(maxTableSize);
+            this.maxTableSize = maxTableSize;
+            this.maxHeaderListSize = maxHeaderListSize;
+        }
+
+        /**
+         * @return the fields as name/value pairs, null if the list was larger than allowed
+         */
+        List<String[]> decode(byte[] block, int length) throws CompressionException {
+            List<String[]> fields = new ArrayList<>();
+            int listSize = 0;
+            int[] pos = {0};
+            boolean first = true;
+            while (pos[0] < length) {
+                int b = block[pos[0]] & 0xff;
+                String name;
+                String value;
+                if ((b & 0x80) != 0) {
+                    // 索引字段
+                    String[] field = lookup(decodeInt(block, length, pos, 7));
+                    name = field[0];
+                    value = field[1];
+                } else if ((b & 0x40) != 0) {
+                    // 带增量索引的字面量
+                    int index = decodeInt(block, length, pos, 6);
+                    name = index == 0 ? decodeString(block, length, pos) : lookup(index)[0];
+                    value = decodeString(block, length, pos);
+                    this.table.add(name, value);
+                } else if ((b & 0x20) != 0) {
+                    // 动态表大小更新，只能出现在块的开头
+                    int size = decodeInt(block, length, pos, 5);
+                    if (!first || size > this.maxTableSize) {
+                        throw new CompressionException("bad dynamic table size update " + size);
+                    }
+                    this.table.setMaxSize(size);
+                    continue;
+                } else {
+                    // 不索引 / 永不索引的字面量
+                    int index = decodeInt(block, length, pos, 4);
+                    name = index == 0 ? decodeString(block, length, pos) : lookup(index)[0];
+                    value = decodeString(block, length, pos);
+                }
+                first = false;
+                listSize += DynamicTable.sizeOf(name, value);
+                if (listSize <= this.maxHeaderListSize) {
+                    fields.add(new String[]{name, value});
+                }
+            }
+            return listSize <= this.maxHeaderListSize ? fields : null;
+        }
+
+        private String[] lookup(int index) throws CompressionException {
+            if (index >= 1 && index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1];
+            }
+            String[] entry = this.table.get(index - STATIC_TABLE.length);
+            if (entry == null) {
+                throw new CompressionException("bad header index " + index);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Encodes the header blocks of one connection; blocks must be sent in the order they were encoded.
+     */
+    static final class Encoder {
+        private final DynamicTable table;
+        private int pendingSizeUpdate = -1;
+
+        Encoder(int maxTableSize) {
+            this.table = new DynamicTable(maxTableSize);
+        }
+
+        /**
+         * Follows the peer's SETTINGS_HEADER_TABLE_SIZE, announced at the start of the next block.
+         */
+        void setMaxTableSize(int maxSize) {
+            if (maxSize != this.table.maxSize) {
+                this.table.setMaxSize(maxSize);
+                this.pendingSizeUpdate = maxSize;
+            }
+        }
+
+        /**
+         * @param fields name/value pairs, names in lower case
+         */
+        byte[] encode(List<String[]> fields) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (this.pendingSizeUpdate >= 0) {
+                encodeInt(out, 0x20, 5, this.pendingSizeUpdate);
+                this.pendingSizeUpdate = -1;
+            }
+            for (String[] field : fields) {
+                String name = field[0];
+                String value = field[1];
+                Integer exact = STATIC_FIELDS.get(name + '\0' + value);
+                if (exact != null) {
+                    encodeInt(out, 0x80, 7, exact);
+                    continue;
+                }
+                int dynamic = this.table.find(name, value);
+                if (dynamic > 0) {
+                    encodeInt(out, 0x80, 7, STATIC_TABLE.length + dynamic);
+                    continue;
+                }
+                Integer staticName = STATIC_NAMES.get(name);
+                int nameIndex = staticName != null ? staticName : dynamic < 0 ? STATIC_TABLE.length - dynamic : 0;
+                if (isVolatile(name)) {
+                    encodeInt(out, 0x00, 4, nameIndex);
+                } else {
+                    encodeInt(out, 0x40, 6, nameIndex);
+                    this.table.add(name, value);
+                }
+                if (nameIndex == 0) {
+                    encodeString(out, name);
+                }
+                encodeString(out, value);
+            }
+            return out.toByteArray();
+        }
+
+        // 每个响应都不同的值放进动态表只会挤掉有用的条目
+        private static boolean isVolatile(String name) {
+            switch (name) {
+                case "date":
+                case "content-length":
+                case "content-range":
+                case "etag":
+                case "last-modified":
+                case "location":
+                case "set-cookie":
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    static int decodeInt(byte[] block, int length, int[] pos, int prefixBits) throws CompressionException {
+        int max = (1 << prefixBits) - 1;
+        int value = block[pos[0]++] & max;
+        if (value < max) {
+            return value;
+        }
+        int shift = 0;
+        while (true) {
+            if (pos[0] >= length || shift > 21) {
+                throw new CompressionException("bad integer");
+            }
+            int b = block[pos[0]++] & 0xff;
+            value += (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    static void encodeInt(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static String decodeString(byte[] block, int length, int[] pos) throws CompressionException {
+        if (pos[0] >= length) {
+            throw new CompressionException("truncated string");
+        }
+        boolean huffman = (block[pos[0]] & 0x80) != 0;
+        int size = decodeInt(block, length, pos, 7);
+        if (size > length - pos[0]) {
+            throw new CompressionException("truncated string");
+        }
+        int start = pos[0];
+        pos[0] += size;
+        // 字段只会是 ASCII/Latin-1，不做字符集解码
+        return huffman ? huffmanDecode(block, start, size)
+                : new String(block, start, size, StandardCharsets.ISO_8859_1);
+    }
+
+    private static void encodeString(ByteArrayOutputStream out, String s) {
+        byte[] raw = s.getBytes(StandardCharsets.ISO_8859_1);
+        long bits = 0;
+        for (byte b : raw) {
+            bits += LENGTHS[b & 0xff];
+        }
+        int huffmanLength = (int) ((bits + 7) / 8);
+        if (huffmanLength < raw.length) {
+            encodeInt(out, 0x80, 7, huffmanLength);
+            long buffer = 0;
+            int count = 0;
+            for (byte b : raw) {
+                int symbol = b & 0xff;
+                buffer = (buffer << LENGTHS[symbol]) | (CODES[symbol] & 0xffffffffL);
+                count += LENGTHS[symbol];
+                while (count >= 8) {
+                    count -= 8;
+                    out.write((int) (buffer >>> count));
+                }
+            }
+            if (count > 0) {
+                // 用 EOS 的高位（全 1）填充
+                out.write((int) ((buffer << (8 - count)) | (0xff >>> count)));
+            }
+        } else {
+            encodeInt(out, 0x00, 7, raw.length);
+            out.write(raw, 0, raw.length);
+        }
+    }
+
+    static String huffmanDecode(byte[] data, int offset, int length) throws CompressionException {
+        StringBuilder sb = new StringBuilder(length * 8 / 5);
+        int node = 0;
+        int depth = 0;         // 当前未完成符号已读的位数
+        boolean allOnes = true;
+        for (int i = offset; i < offset + length; i++) {
+            int b = data[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                int value = (b >>> bit) & 1;
+                int next = CHILDREN[node * 2 + value];
+                depth++;
+                allOnes &= value == 1;
+                if (next < 0) {
+                    int symbol = -next - 1;
+                    if (symbol == 256) {
+                        throw new CompressionException("EOS in huffman string");
+                    }
+                    sb.append((char) symbol);
+                    node = 0;
+                    depth = 0;
+                    allOnes = true;
+                } else if (next == 0) {
+                    throw new CompressionException("bad huffman code");
+                } else {
+                    node = next;
+                }
+            }
+        }
+        // 结尾只能是不超过 7 位的 EOS 前缀
+        if (depth > 7 || !allOnes) {
+            throw new CompressionException("bad huffman padding");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,1546 @@
+package webserver;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cleartext HTTP/2 (h2c, RFC 7540) on one connection, entered with prior
+ * knowledge (the connection starts with the HTTP/2 preface) or by an
+ * HTTP/1.1 request with {@code Upgrade: h2c}.
+ * <p>
+ * Every stream is turned back into an HTTP/1.1 request head plus body and
+ * run through NanoHTTPD's HTTPSession on a stream worker, so serve(),
+ * plugins, caches and the access log work unchanged. The HTTP/1.1 response
+ * it writes is parsed again into HEADERS (HPACK) and DATA frames, which
+ * share the connection under HTTP/2 flow control.
+ */
+class Http2Connection {
+    private static final Logger LOG = Logger.getLogger(Http2Connection.class.getName());
+
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    // 前言的前半部分在 HTTP/1.1 看来是一个完整的请求头
+    private static final int PREFACE_HEAD_LENGTH = "PRI * HTTP/2.0\r\n\r\n".length();
+    private static final byte[] SWITCHING_PROTOCOLS = ("HTTP/1.1 101 Switching Protocols\r\n"
+            + "Connection: Upgrade\r\nUpgrade: h2c\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int INTERNAL_ERROR = 0x2;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int STREAM_CLOSED = 0x5;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int COMPRESSION_ERROR = 0x9;
+    private static final int ENHANCE_YOUR_CALM = 0xb;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final long MAX_WINDOW = Integer.MAX_VALUE;
+    private static final int MAX_FRAME_SIZE = 16384;
+    private static final int HEADER_TABLE_SIZE = 4096;
+    private static final int MAX_CONCURRENT_STREAMS = 100;
+    // 和 HTTPSession.BUFSIZE 相同，NanoHTTPD 只接受这么大的请求头
+    private static final int MAX_HEADER_LIST_SIZE = 8192;
+    // HEADERS + CONTINUATION 累计的头部块上限
+    private static final int MAX_HEADER_BLOCK = 64 * 1024;
+    // NanoHTTPD 要求请求体有 Content-Length，没有时先把请求体收完，最多这么大
+    private static final int MAX_BUFFERED_BODY = 1024 * 1024;
+
+    private final SimpleWebServer server;
+    private final InetAddress remote;
+    private final InputStream in;
+    private final OutputStream out;     // 写帧时锁住它，HPACK 编码也在锁内完成
+    private final Hpack.Decoder decoder = new Hpack.Decoder(HEADER_TABLE_SIZE, MAX_HEADER_LIST_SIZE);
+    private final Hpack.Encoder encoder = new Hpack.Encoder(HEADER_TABLE_SIZE);
+    private final byte[] frame = new byte[MAX_FRAME_SIZE];
+
+    // 以下由 this 保护
+    private final Map<Integer, Stream> streams = new HashMap<>();
+    private long sendWindow = DEFAULT_WINDOW;
+    private long peerInitialWindow = DEFAULT_WINDOW;
+    private boolean closed;
+
+    private volatile int peerMaxFrameSize = MAX_FRAME_SIZE;
+    // 只由读线程访问
+    private int lastStreamId;
+    private int connectionUnacked;
+    private long receiveWindow = DEFAULT_WINDOW;
+    private ByteArrayOutputStream headerBlock;
+    private int headerBlockStream;
+    private int headerBlockFlags;
+
+    private static final class ConnectionError extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int code;
+
+        private ConnectionError(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    Http2Connection(SimpleWebServer server, InetAddress remote, InputStream in, OutputStream out) {
+        this.server = server;
+        this.remote = remote;
+        this.in = in;
+        this.out = new BufferedOutputStream(out, MAX_FRAME_SIZE + 9);
+    }
+
+    /**
+     * @return true if the buffered bytes start like the HTTP/2 connection preface
+     */
+    static boolean isPreface(byte[] buf, int length) {
+        if (length < PREFACE_HEAD_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < PREFACE_HEAD_LENGTH; i++) {
+            if (buf[i] != PREFACE[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wraps a new connection's input so that a connection starting with the HTTP/2 preface
+     * is served as h2c on the first read; other connections read on as HTTP/1.1.
+     */
+    static InputStream detectPriorKnowledge(SimpleWebServer server, Socket socket, InputStream in) {
+        return new PrefaceDetector(server, socket, in);
+    }
+
+    /**
+     * @return the 101 response switching the connection to h2c, null if the request cannot be upgraded
+     */
+    static NanoHTTPD.Response upgrade(SimpleWebServer server, NanoHTTPD.IHTTPSession session) {
+        Map<String, String> headers = session.getHeaders();
+        String upgrade = headers.get("upgrade");
+        String settings = headers.get("http2-settings");
+        if (upgrade == null || settings == null || !hasToken(upgrade, "h2c")) {
+            return null;
+        }
+        // 请求体已经按 HTTP/1.1 处理，带请求体的请求不升级（RFC 7540 3.2 允许忽略升级）
+        String length = headers.get("content-length");
+        if (headers.containsKey("transfer-encoding") || (length != null && !"0".equals(length.trim()))) {
+            return null;
+        }
+        byte[] payload;
+        try {
+            payload = Base64.getUrlDecoder().decode(settings.trim());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (payload.length % 6 != 0) {
+            return null;
+        }
+        // 升级的请求成为 stream 1，按原样重新交给 HTTPSession
+        StringBuilder head = new StringBuilder();
+        head.append(session.getMethod().name()).append(' ').append(SimpleWebServer.encodeUri(session.getUri()));
+        String query = session.getQueryParameterString();
+        if (query != null && !query.isEmpty()) {
+            head.append('?').append(query);
+        }
+        head.append(" HTTP/1.1\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            switch (header.getKey()) {
+                case "connection":
+                case "upgrade":
+                case "http2-settings":
+                case "keep-alive":
+                case "te":
+                case "remote-addr":
+                case "http-client-ip":
+                    break;
+                default:
+                    head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+        }
+        head.append("\r\n");
+        InetAddress remote;
+        try {
+            // HTTPSession 记录的是 IP 字面量，不会查询 DNS
+            remote = InetAddress.getByName(headers.get("remote-addr"));
+        } catch (IOException e) {
+            remote = InetAddress.getLoopbackAddress();
+        }
+        return new UpgradeResponse(server, remote, session.getInputStream(),
+                head.toString().getBytes(StandardCharsets.ISO_8859_1), payload);
+    }
+
+    private static boolean hasToken(String value, String token) {
+        for (String part : value.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Serves the connection until the client closes it, goes away, breaks the protocol or
+     * stays idle without open streams. The caller closes the socket afterwards.
+     *
+     * @param upgradeHead     the HTTP/1.1 request that asked for the upgrade, answered on stream 1; null with prior knowledge
+     * @param upgradeSettings the decoded HTTP2-Settings header of that request
+     */
+    void serve(byte[] upgradeHead, byte[] upgradeSettings) throws IOException {
+        try {
+            sendSettings();
+            if (upgradeSettings != null) {
+                // 101 响应就是对这些设置的确认
+                applySettings(upgradeSettings, 0, upgradeSettings.length);
+            }
+            byte[] preface = new byte[PREFACE.length];
+            if (!readFully(preface, PREFACE.length, false)) {
+                return;
+            }
+            for (int i = 0; i < PREFACE.length; i++) {
+                if (preface[i] != PREFACE[i]) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "bad connection preface");
+                }
+            }
+            if (upgradeHead != null) {
+                this.lastStreamId = 1;
+                Stream stream = new Stream(this, 1, upgradeHead);
+                stream.endOfBody = true;
+                start(stream);
+            }
+            boolean first = true;
+            while (readFrame(first)) {
+                first = false;
+            }
+        } catch (ConnectionError e) {
+            LOG.log(Level.FINE, "HTTP/2 connection error: " + e.getMessage());
+            goAway(e.code);
+        } catch (SocketTimeoutException e) {
+            // 没有未完成的 stream 时空闲超时，和 HTTP/1.1 的 keep-alive 一样关闭
+            goAway(NO_ERROR);
+        } finally {
+            synchronized (this) {
+                this.closed = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return false at the end of the connection
+     */
+    private boolean readFrame(boolean first) throws IOException {
+        byte[] header = new byte[9];
+        if (!readFully(header, 9, true)) {
+            return false;
+        }
+        int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+        int type = header[3] & 0xff;
+        int flags = header[4] & 0xff;
+        int streamId = readInt(header, 5) & 0x7fffffff;
+        if (length > MAX_FRAME_SIZE) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "frame of " + length + " bytes");
+        }
+        if (!readFully(this.frame, length, false)) {
+            return false;
+        }
+        if (first && (type != SETTINGS || (flags & FLAG_ACK) != 0)) {
+            throw new ConnectionError(PROTOCOL_ERROR, "preface not followed by SETTINGS");
+        }
+        if (this.headerBlock != null && (type != CONTINUATION || streamId != this.headerBlockStream)) {
+            throw new ConnectionError(PROTOCOL_ERROR, "header block interrupted");
+        }
+        switch (type) {
+            case DATA:
+                onData(streamId, flags, length);
+                break;
+            case HEADERS:
+                onHeaders(streamId, flags, length);
+                break;
+            case PRIORITY:
+                // 不按优先级调度
+                break;
+            case RST_STREAM:
+                onReset(streamId, length);
+                break;
+            case SETTINGS:
+                onSettings(streamId, flags, length);
+                break;
+            case PUSH_PROMISE:
+                throw new ConnectionError(PROTOCOL_ERROR, "PUSH_PROMISE from client");
+            case PING:
+                if (length != 8 || streamId != 0) {
+                    throw new ConnectionError(length != 8 ? FRAME_SIZE_ERROR : PROTOCOL_ERROR, "bad PING");
+                }
+                if ((flags & FLAG_ACK) == 0) {
+                    writeFrame(PING, FLAG_ACK, 0, this.frame, 0, 8);
+                }
+                break;
+            case GOAWAY:
+                // 客户端不会再开新的 stream，已有的照常完成，等它关闭连接
+                break;
+            case WINDOW_UPDATE:
+                onWindowUpdate(streamId, length);
+                break;
+            case CONTINUATION:
+                onContinuation(streamId, flags, length);
+                break;
+            default:
+                // 未知类型的帧按规范忽略
+        }
+        return true;
+    }
+
+    private void onHeaders(int streamId, int flags, int length) throws IOException {
+        if (streamId == 0 || (streamId & 1) == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on stream " + streamId);
+        }
+        int pos = 0;
+        int end = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (length < 1) {
+                throw new ConnectionError(PROTOCOL_ERROR, "bad padding");
+            }
+            pos = 1;
+            end -= this.frame[0] & 0xff;
+        }
+        if ((flags & FLAG_PRIORITY) != 0) {
+            pos += 5;
+        }
+        if (end < pos) {
+            throw new ConnectionError(PROTOCOL_ERROR, "bad padding");
+        }
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock(streamId, flags, this.frame, pos, end - pos);
+        } else {
+            this.headerBlock = new ByteArrayOutputStream();
+            this.headerBlock.write(this.frame, pos, end - pos);
+            this.headerBlockStream = streamId;
+            this.headerBlockFlags = flags;
+        }
+    }
+
+    private void onContinuation(int streamId, int flags, int length) throws IOException {
+        if (this.headerBlock == null) {
+            throw new ConnectionError(PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+        }
+        this.headerBlock.write(this.frame, 0, length);
+        if (this.headerBlock.size() > MAX_HEADER_BLOCK) {
+            throw new ConnectionError(ENHANCE_YOUR_CALM, "header block too large");
+        }
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            byte[] block = this.headerBlock.toByteArray();
+            this.headerBlock = null;
+            onHeaderBlock(streamId, this.headerBlockFlags, block, 0, block.length);
+        }
+    }
+
+    private void onHeaderBlock(int streamId, int flags, byte[] buf, int off, int length) throws IOException {
+        byte[] block = off == 0 ? buf : Arrays.copyOfRange(buf, off, off + length);
+        List<String[]> fields;
+        try {
+            // 即使要拒绝这个 stream 也必须解码，动态表要和客户端保持一致
+            fields = this.decoder.decode(block, length);
+        } catch (Hpack.CompressionException e) {
+            throw new ConnectionError(COMPRESSION_ERROR, e.getMessage());
+        }
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+        Stream stream;
+        synchronized (this) {
+            stream = this.streams.get(streamId);
+        }
+        if (streamId <= this.lastStreamId) {
+            // 已有 stream 上的 HEADERS 只能是请求体之后的 trailer
+            if (stream == null || stream.endOfBody || !endStream) {
+                throw new ConnectionError(stream == null ? STREAM_CLOSED : PROTOCOL_ERROR,
+                        "HEADERS on stream " + streamId);
+            }
+            endBody(stream);
+            return;
+        }
+        this.lastStreamId = streamId;
+        if (fields == null) {
+            respondWithoutBody(streamId, HttpStatus.REQUEST_HEADER_FIELDS_TOO_LARGE.getRequestStatus(), endStream);
+            return;
+        }
+        Stream request = Stream.parse(this, streamId, fields);
+        if (request == null) {
+            writeReset(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        synchronized (this) {
+            if (this.streams.size() >= MAX_CONCURRENT_STREAMS) {
+                request = null;
+            }
+        }
+        if (request == null) {
+            writeReset(streamId, REFUSED_STREAM);
+            return;
+        }
+        if (endStream) {
+            request.endOfBody = true;
+            start(request);
+        } else if (request.declaredLength >= 0) {
+            start(request);
+        } else {
+            // 没有 Content-Length：收完请求体再开始
+            request.buffered = new ByteArrayOutputStream();
+            synchronized (this) {
+                this.streams.put(streamId, request);
+            }
+        }
+    }
+
+    private void start(Stream stream) throws IOException {
+        if (stream.buffered != null) {
+            stream.setHead(stream.buffered.size());
+            stream.chunks.add(stream.buffered.toByteArray());
+            stream.buffered = null;
+        } else {
+            stream.setHead(-1);
+        }
+        if (stream.head.length > MAX_HEADER_LIST_SIZE) {
+            forget(stream);
+            respondWithoutBody(stream.id, HttpStatus.REQUEST_HEADER_FIELDS_TOO_LARGE.getRequestStatus(),
+                    stream.endOfBody);
+            return;
+        }
+        synchronized (this) {
+            stream.sendWindow = this.peerInitialWindow;
+            this.streams.put(stream.id, stream);
+        }
+        try {
+            this.server.getH2cStreams().execute(stream);
+        } catch (RejectedExecutionException e) {
+            forget(stream);
+            writeReset(stream.id, REFUSED_STREAM);
+        }
+    }
+
+    private void onData(int streamId, int flags, int length) throws IOException {
+        if (streamId == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        int pos = 0;
+        int end = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (length < 1 || (this.frame[0] & 0xff) >= length) {
+                throw new ConnectionError(PROTOCOL_ERROR, "bad padding");
+            }
+            pos = 1;
+            end -= this.frame[0] & 0xff;
+        }
+        // 连接级窗口：数据交给 stream 后立即归还，缓存的数据量由各 stream 的窗口限制
+        this.receiveWindow -= length;
+        if (this.receiveWindow < 0) {
+            throw new ConnectionError(FLOW_CONTROL_ERROR, "connection window exceeded");
+        }
+        this.connectionUnacked += length;
+        if (this.connectionUnacked >= DEFAULT_WINDOW / 2) {
+            this.receiveWindow += this.connectionUnacked;
+            writeWindowUpdate(0, this.connectionUnacked);
+            this.connectionUnacked = 0;
+        }
+
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+        Stream stream;
+        synchronized (this) {
+            stream = this.streams.get(streamId);
+        }
+        if (stream == null) {
+            if (streamId > this.lastStreamId) {
+                throw new ConnectionError(PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+            }
+            // 响应已经发完的 stream，剩下的请求体丢弃
+            return;
+        }
+        if (stream.endOfBody) {
+            writeReset(streamId, STREAM_CLOSED);
+            return;
+        }
+        int update = 0;
+        boolean draining;
+        synchronized (this) {
+            draining = stream.draining;
+            if (draining) {
+                if (endStream) {
+                    this.streams.remove(streamId);
+                }
+            } else if ((stream.receiveWindow -= length) < 0) {
+                update = -1;
+            } else if (stream.buffered != null) {
+                stream.buffered.write(this.frame, pos, end - pos);
+                update = length;
+                stream.receiveWindow += length;
+            } else {
+                if (end > pos) {
+                    stream.chunks.add(Arrays.copyOfRange(this.frame, pos, end));
+                    stream.received += end - pos;
+                }
+                // 填充不会被读取，直接归还
+                stream.unacked += length - (end - pos);
+                notifyAll();
+            }
+        }
+        if (draining) {
+            if (!endStream && length > 0) {
+                writeWindowUpdate(streamId, length);
+            }
+            return;
+        }
+        if (update < 0) {
+            forget(stream);
+            writeReset(streamId, FLOW_CONTROL_ERROR);
+            return;
+        }
+        if (stream.buffered != null) {
+            if (stream.buffered.size() > MAX_BUFFERED_BODY) {
+                forget(stream);
+                respondWithoutBody(streamId, HttpStatus.PAYLOAD_TOO_LARGE.getRequestStatus(), false);
+                return;
+            }
+            if (!endStream && update > 0) {
+                // 还没有读者，收多少归还多少
+                writeWindowUpdate(streamId, update);
+            }
+        }
+        if (endStream) {
+            endBody(stream);
+        }
+    }
+
+    private void endBody(Stream stream) throws IOException {
+        if (stream.buffered != null) {
+            stream.endOfBody = true;
+            synchronized (this) {
+                this.streams.remove(stream.id);
+            }
+            start(stream);
+            return;
+        }
+        synchronized (this) {
+            stream.endOfBody = true;
+            notifyAll();
+        }
+    }
+
+    private void onReset(int streamId, int length) throws IOException {
+        if (length != 4) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "bad RST_STREAM");
+        }
+        if (streamId == 0 || streamId > this.lastStreamId) {
+            throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM on idle stream " + streamId);
+        }
+        synchronized (this) {
+            Stream stream = this.streams.remove(streamId);
+            if (stream != null) {
+                stream.reset = true;
+                notifyAll();
+            }
+        }
+    }
+
+    private void onSettings(int streamId, int flags, int length) throws IOException {
+        if (streamId != 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            if (length != 0) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS ack with payload");
+            }
+            return;
+        }
+        if (length % 6 != 0) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "bad SETTINGS");
+        }
+        applySettings(this.frame, 0, length);
+        writeFrame(SETTINGS, FLAG_ACK, 0, this.frame, 0, 0);
+    }
+
+    private void applySettings(byte[] buf, int off, int length) throws IOException {
+        for (int i = off; i < off + length; i += 6) {
+            int id = ((buf[i] & 0xff) << 8) | (buf[i + 1] & 0xff);
+            long value = readInt(buf, i + 2) & 0xffffffffL;
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    synchronized (this.out) {
+                        this.encoder.setMaxTableSize((int) Math.min(value, HEADER_TABLE_SIZE));
+                    }
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if (value > 1) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "bad ENABLE_PUSH");
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value > MAX_WINDOW) {
+                        throw new ConnectionError(FLOW_CONTROL_ERROR, "bad INITIAL_WINDOW_SIZE");
+                    }
+                    synchronized (this) {
+                        long delta = value - this.peerInitialWindow;
+                        this.peerInitialWindow = value;
+                        for (Stream stream : this.streams.values()) {
+                            stream.sendWindow += delta;
+                        }
+                        notifyAll();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < MAX_FRAME_SIZE || value > 0xffffff) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "bad MAX_FRAME_SIZE");
+                    }
+                    this.peerMaxFrameSize = (int) value;
+                    break;
+                default:
+                    // MAX_CONCURRENT_STREAMS 只限制服务器推送，不推送；MAX_HEADER_LIST_SIZE 是建议值
+            }
+        }
+    }
+
+    private void onWindowUpdate(int streamId, int length) throws IOException {
+        if (length != 4) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "bad WINDOW_UPDATE");
+        }
+        int increment = readInt(this.frame, 0) & 0x7fffffff;
+        boolean overflow = false;
+        synchronized (this) {
+            if (streamId == 0) {
+                if (increment == 0 || this.sendWindow + increment > MAX_WINDOW) {
+                    throw new ConnectionError(increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR,
+                            "bad connection WINDOW_UPDATE");
+                }
+                this.sendWindow += increment;
+            } else {
+                Stream stream = this.streams.get(streamId);
+                if (stream != null) {
+                    stream.sendWindow += increment;
+                    overflow = increment == 0 || stream.sendWindow > MAX_WINDOW;
+                }
+            }
+            notifyAll();
+        }
+        if (overflow) {
+            resetStream(streamId, increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR);
+        }
+    }
+
+    // 读满 length 字节；在帧的开头遇到连接结束时返回 false
+    private boolean readFully(byte[] buf, int length, boolean frameStart) throws IOException {
+        int off = 0;
+        while (off < length) {
+            int n;
+            try {
+                n = this.in.read(buf, off, length - off);
+            } catch (SocketTimeoutException e) {
+                // 还有未完成的 stream 时继续等，否则按空闲处理
+                if (hasStreams()) {
+                    continue;
+                }
+                throw e;
+            }
+            if (n < 0) {
+                if (frameStart && off == 0) {
+                    return false;
+                }
+                throw new SocketException("connection closed in the middle of a frame");
+            }
+            off += n;
+        }
+        return true;
+    }
+
+    private synchronized boolean hasStreams() {
+        return !this.streams.isEmpty();
+    }
+
+    private synchronized void forget(Stream stream) {
+        this.streams.remove(stream.id);
+        stream.reset = true;
+        notifyAll();
+    }
+
+    private void resetStream(int streamId, int code) throws IOException {
+        Stream stream;
+        synchronized (this) {
+            stream = this.streams.get(streamId);
+        }
+        if (stream != null) {
+            forget(stream);
+        }
+        writeReset(streamId, code);
+    }
+
+    private void sendSettings() throws IOException {
+        byte[] payload = new byte[12];
+        putSetting(payload, 0, SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+        putSetting(payload, 6, SETTINGS_MAX_HEADER_LIST_SIZE, MAX_HEADER_LIST_SIZE);
+        writeFrame(SETTINGS, 0, 0, payload, 0, payload.length);
+    }
+
+    private static void putSetting(byte[] buf, int off, int id, int value) {
+        buf[off] = (byte) (id >>> 8);
+        buf[off + 1] = (byte) id;
+        putInt(buf, off + 2, value);
+    }
+
+    private void goAway(int code) {
+        byte[] payload = new byte[8];
+        putInt(payload, 0, this.lastStreamId);
+        putInt(payload, 4, code);
+        try {
+            writeFrame(GOAWAY, 0, 0, payload, 0, payload.length);
+        } catch (IOException e) {
+            // 连接已经断开
+        }
+    }
+
+    private void writeReset(int streamId, int code) throws IOException {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, code);
+        writeFrame(RST_STREAM, 0, streamId, payload, 0, 4);
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, increment);
+        writeFrame(WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+    }
+
+    private void respondWithoutBody(int streamId, int status, boolean endOfBody) throws IOException {
+        List<String[]> fields = new ArrayList<>();
+        fields.add(new String[]{":status", String.valueOf(status)});
+        fields.add(new String[]{"content-length", "0"});
+        writeHeaders(streamId, null, fields, true);
+        if (!endOfBody) {
+            // 响应已经完整，不再需要请求体
+            writeReset(streamId, NO_ERROR);
+        }
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int off, int length) throws IOException {
+        synchronized (this.out) {
+            writeFrameHeader(type, flags, streamId, length);
+            this.out.write(payload, off, length);
+            this.out.flush();
+        }
+    }
+
+    private void writeFrameHeader(int type, int flags, int streamId, int length) throws IOException {
+        this.out.write(length >>> 16);
+        this.out.write(length >>> 8);
+        this.out.write(length);
+        this.out.write(type);
+        this.out.write(flags);
+        this.out.write(streamId >>> 24);
+        this.out.write(streamId >>> 16);
+        this.out.write(streamId >>> 8);
+        this.out.write(streamId);
+    }
+
+    /**
+     * Encodes and writes a header block; blocks go out in the order they are encoded.
+     */
+    private void writeHeaders(int streamId, Stream stream, List<String[]> fields, boolean endStream) throws IOException {
+        synchronized (this.out) {
+            if (stream != null && stream.reset) {
+                throw new SocketException("stream " + streamId + " reset");
+            }
+            byte[] block = this.encoder.encode(fields);
+            int max = this.peerMaxFrameSize;
+            int off = 0;
+            int type = HEADERS;
+            do {
+                int n = Math.min(max, block.length - off);
+                int flags = off + n == block.length ? FLAG_END_HEADERS : 0;
+                if (type == HEADERS && endStream) {
+                    flags |= FLAG_END_STREAM;
+                }
+                writeFrameHeader(type, flags, streamId, n);
+                this.out.write(block, off, n);
+                off += n;
+                type = CONTINUATION;
+            } while (off < block.length);
+            this.out.flush();
+        }
+    }
+
+    /**
+     * Writes body bytes as DATA frames, waiting for window from the client as needed.
+     */
+    private void writeData(Stream stream, byte[] buf, int off, int length, boolean endStream) throws IOException {
+        do {
+            int n;
+            synchronized (this) {
+                while (length > 0 && !stream.reset && !this.closed
+                        && Math.min(stream.sendWindow, this.sendWindow) <= 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SocketException("interrupted");
+                    }
+                }
+                if (stream.reset || this.closed) {
+                    throw new SocketException("stream " + stream.id + " reset");
+                }
+                n = (int) Math.min(Math.min(length, this.peerMaxFrameSize),
+                        Math.min(stream.sendWindow, this.sendWindow));
+                stream.sendWindow -= n;
+                this.sendWindow -= n;
+            }
+            boolean last = endStream && n == length;
+            synchronized (this.out) {
+                if (stream.reset) {
+                    throw new SocketException("stream " + stream.id + " reset");
+                }
+                writeFrame(DATA, last ? FLAG_END_STREAM : 0, stream.id, buf, off, n);
+            }
+            off += n;
+            length -= n;
+        } while (length > 0);
+    }
+
+    private static int readInt(byte[] buf, int off) {
+        return ((buf[off] & 0xff) << 24) | ((buf[off + 1] & 0xff) << 16) | ((buf[off + 2] & 0xff) << 8)
+                | (buf[off + 3] & 0xff);
+    }
+
+    private static void putInt(byte[] buf, int off, int value) {
+        buf[off] = (byte) (value >>> 24);
+        buf[off + 1] = (byte) (value >>> 16);
+        buf[off + 2] = (byte) (value >>> 8);
+        buf[off + 3] = (byte) value;
+    }
+
+    private enum Method {
+        HEAD, OTHER;
+
+        private static Method of(byte[] head) {
+            return head.length > 5 && head[0] == 'H' && head[1] == 'E' && head[2] == 'A' && head[3] == 'D'
+                    && head[4] == ' ' ? HEAD : OTHER;
+        }
+    }
+
+    /**
+     * One request/response exchange. Runs on a stream worker.
+     */
+    private static final class Stream implements Runnable {
+        private final Http2Connection connection;
+        private final int id;
+        private String requestHead;         // 请求行和请求头，不含结尾的空行
+        private final Method method;
+        private final long declaredLength;   // -1: 没有 Content-Length
+        private byte[] head;
+
+        // 以下由 connection 保护
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+        private int chunkPos;
+        private long receiveWindow = DEFAULT_WINDOW;
+        private int unacked;
+        private long received;
+        private boolean draining;           // 响应已发完，收下并丢弃剩余的请求体
+        private long sendWindow;
+        private volatile boolean endOfBody;
+        private volatile boolean reset;
+        private ByteArrayOutputStream buffered;     // 没有 Content-Length 时收集请求体
+
+        private Stream(Http2Connection connection, int id, String requestHead, Method method, long declaredLength) {
+            this.connection = connection;
+            this.id = id;
+            this.requestHead = requestHead;
+            this.method = method;
+            this.declaredLength = declaredLength;
+        }
+
+        private Stream(Http2Connection connection, int id, byte[] head) {
+            this(connection, id, null, Method.of(head), 0);
+            this.head = head;
+        }
+
+        /**
+         * Turns the header fields into an HTTP/1.1 request head.
+         *
+         * @return null if the request is malformed (RFC 7540 8.1.2)
+         */
+        private static Stream parse(Http2Connection connection, int id, List<String[]> fields) {
+            String method = null;
+            String path = null;
+            String authority = null;
+            boolean regular = false;
+            boolean host = false;
+            long declaredLength = -1;
+            StringBuilder cookie = null;
+            StringBuilder headers = new StringBuilder();
+            for (String[] field : fields) {
+                String name = field[0];
+                String value = field[1];
+                if (!isFieldValue(value)) {
+                    return null;
+                }
+                if (name.startsWith(":")) {
+                    if (regular) {
+                        return null;
+                    }
+                    switch (name) {
+                        case ":method":
+                            if (method != null || !isToken(value)) {
+                                return null;
+                            }
+                            method = value;
+                            break;
+                        case ":path":
+                            if (path != null || !isPath(value)) {
+                                return null;
+                            }
+                            path = value;
+                            break;
+                        case ":authority":
+                            authority = value;
+                            break;
+                        case ":scheme":
+                            break;
+                        default:
+                            return null;
+                    }
+                    continue;
+                }
+                regular = true;
+                if (!isToken(name) || !name.equals(name.toLowerCase(Locale.US))) {
+                    return null;
+                }
+                switch (name) {
+                    case "connection":
+                    case "keep-alive":
+                    case "proxy-connection":
+                    case "transfer-encoding":
+                    case "upgrade":
+                        return null;
+                    case "te":
+                        if (!"trailers".equals(value)) {
+                            return null;
+                        }
+                        continue;
+                    case "cookie":
+                        // HTTP/2 允许把 cookie 拆成多个字段
+                        if (cookie == null) {
+                            cookie = new StringBuilder(value);
+                        } else {
+                            cookie.append("; ").append(value);
+                        }
+                        continue;
+                    case "content-length":
+                        try {
+                            declaredLength = Long.parseLong(value.trim());
+                        } catch (NumberFormatException e) {
+                            return null;
+                        }
+                        break;
+                    case "host":
+                        host = true;
+                        break;
+                    default:
+                }
+                headers.append(name).append(": ").append(value).append("\r\n");
+            }
+            if (method == null || path == null) {
+                return null;
+            }
+            StringBuilder head = new StringBuilder(method.length() + path.length() + headers.length() + 64);
+            head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+            if (!host && authority != null) {
+                head.append("host: ").append(authority).append("\r\n");
+            }
+            head.append(headers);
+            if (cookie != null) {
+                head.append("cookie: ").append(cookie).append("\r\n");
+            }
+            return new Stream(connection, id, head.toString(), "HEAD".equals(method) ? Method.HEAD : Method.OTHER,
+                    declaredLength);
+        }
+
+        private static boolean isToken(String s) {
+            if (s.isEmpty()) {
+                return false;
+            }
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c <= 0x20 || c >= 0x7f || "()<>@,;:\\\"/[]?={}".indexOf(c) >= 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // 拼回 HTTP/1.1 请求头，值里不能有换行和 NUL
+        private static boolean isFieldValue(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '\r' || c == '\n' || c == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isPath(String s) {
+            if (!s.startsWith("/") && !"*".equals(s)) {
+                return false;
+            }
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c <= 0x20 || c >= 0x7f) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @param bodyLength the length of a fully received body to declare, -1 to keep the request's own
+         */
+        private void setHead(long bodyLength) {
+            if (this.head != null) {
+                return;
+            }
+            String head = this.requestHead;
+            if (bodyLength >= 0 && this.declaredLength < 0) {
+                head += "content-length: " + bodyLength + "\r\n";
+            }
+            this.head = (head + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            this.requestHead = null;
+        }
+
+        @Override
+        public void run() {
+            Http2Connection c = this.connection;
+            ResponseStream response = new ResponseStream(this);
+            try {
+                c.server.execute(c.server.getTempFileManagerFactory().create(), new RequestStream(this), response,
+                        c.remote);
+                response.finish();
+            } catch (SocketException e) {
+                // HTTPSession 用 "NanoHttpd Shutdown" 表示响应已写完且不保持连接，对 stream 来说就是结束
+                if ("NanoHttpd Shutdown".equals(e.getMessage())) {
+                    try {
+                        response.finish();
+                    } catch (IOException e2) {
+                        LOG.log(Level.FINE, "HTTP/2 stream " + this.id + " failed", e2);
+                    }
+                } else {
+                    LOG.log(Level.FINE, "HTTP/2 stream " + this.id + " failed", e);
+                }
+            } catch (IOException | RuntimeException e) {
+                LOG.log(Level.FINE, "HTTP/2 stream " + this.id + " failed", e);
+            } finally {
+                boolean complete = response.ended;
+                boolean needBody;
+                int update = 0;
+                synchronized (c) {
+                    needBody = !this.endOfBody && !this.reset;
+                    // 和 HTTP/1.1 一样，没读完的请求体不大时继续收完；不少客户端把 RST_STREAM(NO_ERROR) 当作失败
+                    if (complete && needBody && this.declaredLength - this.received <= MAX_BUFFERED_BODY) {
+                        this.draining = true;
+                        update = (int) (DEFAULT_WINDOW - this.receiveWindow);
+                        this.receiveWindow = DEFAULT_WINDOW;
+                        this.unacked = 0;
+                        this.chunks.clear();
+                    } else {
+                        c.streams.remove(this.id);
+                    }
+                    this.reset = true;
+                    c.notifyAll();
+                }
+                try {
+                    if (!complete) {
+                        c.writeReset(this.id, INTERNAL_ERROR);
+                    } else if (this.draining) {
+                        if (update > 0) {
+                            c.writeWindowUpdate(this.id, update);
+                        }
+                    } else if (needBody) {
+                        // 响应已经完整，客户端不必再发送请求体
+                        c.writeReset(this.id, NO_ERROR);
+                    }
+                } catch (IOException e) {
+                    // 连接已经断开
+                }
+            }
+        }
+    }
+
+    /**
+     * The request as HTTPSession reads it: the synthesized head, then the DATA received for the stream.
+     */
+    private static final class RequestStream extends InputStream {
+        private final Stream stream;
+        private int headPos;
+
+        private RequestStream(Stream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            Stream s = this.stream;
+            if (this.headPos < s.head.length) {
+                // 第一次读只返回请求头，HTTPSession 由此判断没有多读请求体
+                int n = Math.min(len, s.head.length - this.headPos);
+                System.arraycopy(s.head, this.headPos, b, off, n);
+                this.headPos += n;
+                return n;
+            }
+            Http2Connection c = s.connection;
+            int n;
+            int update = 0;
+            synchronized (c) {
+                long deadline = System.currentTimeMillis() + NanoHTTPD.SOCKET_READ_TIMEOUT;
+                while (s.chunks.isEmpty() && !s.endOfBody && !s.reset && !c.closed) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        throw new SocketTimeoutException("no DATA on stream " + s.id);
+                    }
+                    try {
+                        c.wait(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SocketException("interrupted");
+                    }
+                }
+                if (s.chunks.isEmpty()) {
+                    if (s.endOfBody) {
+                        return -1;
+                    }
+                    throw new SocketException("stream " + s.id + " reset");
+                }
+                byte[] chunk = s.chunks.peek();
+                n = Math.min(len, chunk.length - s.chunkPos);
+                System.arraycopy(chunk, s.chunkPos, b, off, n);
+                s.chunkPos += n;
+                if (s.chunkPos == chunk.length) {
+                    s.chunks.poll();
+                    s.chunkPos = 0;
+                }
+                s.unacked += n;
+                if (s.unacked >= DEFAULT_WINDOW / 2 && !s.endOfBody) {
+                    update = s.unacked;
+                    s.receiveWindow += update;
+                    s.unacked = 0;
+                }
+            }
+            if (update > 0) {
+                c.writeWindowUpdate(s.id, update);
+            }
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return this.stream.head.length - this.headPos;
+        }
+    }
+
+    /**
+     * Parses the HTTP/1.1 response NanoHTTPD writes into HEADERS and DATA frames.
+     */
+    private static final class ResponseStream extends OutputStream {
+        private static final int HEAD = 0;
+        private static final int FIXED = 1;
+        private static final int CHUNK_SIZE = 2;
+        private static final int CHUNK_DATA = 3;
+        private static final int CHUNK_END = 4;
+        private static final int TRAILER = 5;
+        private static final int UNTIL_CLOSE = 6;
+        private static final int DONE = 7;
+        private static final int MAX_HEAD = 64 * 1024;
+
+        private final Stream stream;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private final byte[] data = new byte[MAX_FRAME_SIZE];
+        private int buffered;
+        private int state = HEAD;
+        private int headMatched;
+        private long remaining;
+        private boolean ended;
+
+        private ResponseStream(Stream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int end = off + len;
+            while (off < end && this.state != DONE) {
+                switch (this.state) {
+                    case HEAD:
+                        off = readHead(b, off, end);
+                        break;
+                    case FIXED:
+                    case CHUNK_DATA: {
+                        int n = (int) Math.min(end - off, this.remaining);
+                        body(b, off, n);
+                        off += n;
+                        this.remaining -= n;
+                        if (this.remaining == 0) {
+                            if (this.state == FIXED) {
+                                end(true);
+                            } else {
+                                this.state = CHUNK_END;
+                            }
+                        }
+                        break;
+                    }
+                    case UNTIL_CLOSE:
+                        body(b, off, end - off);
+                        off = end;
+                        break;
+                    default:
+                        // 分块长度行、分块后的 CRLF 和 trailer 都按行处理
+                        off = readLine(b, off, end);
+                }
+            }
+        }
+
+        private int readHead(byte[] b, int off, int end) throws IOException {
+            int start = off;
+            while (off < end) {
+                byte c = b[off++];
+                // headMatched：已经对上了 "\r\n\r\n" 的前几个字节
+                if (c == (this.headMatched % 2 == 0 ? '\r' : '\n')) {
+                    this.headMatched++;
+                } else {
+                    this.headMatched = c == '\r' ? 1 : 0;
+                }
+                if (this.headMatched == 4) {
+                    this.headMatched = 0;
+                    this.line.write(b, start, off - start);
+                    byte[] head = this.line.toByteArray();
+                    this.line.reset();
+                    sendHeaders(new String(head, 0, head.length - 4, StandardCharsets.ISO_8859_1));
+                    return off;
+                }
+            }
+            this.line.write(b, start, off - start);
+            if (this.line.size() > MAX_HEAD) {
+                throw new IOException("response head too large");
+            }
+            return off;
+        }
+
+        private void sendHeaders(String head) throws IOException {
+            String[] lines = head.split("\r\n");
+            String[] statusLine = lines[0].split(" ", 3);
+            int status;
+            try {
+                status = Integer.parseInt(statusLine[1].trim());
+            } catch (RuntimeException e) {
+                throw new IOException("bad response status line: " + lines[0]);
+            }
+            List<String[]> fields = new ArrayList<>();
+            fields.add(new String[]{":status", String.valueOf(status)});
+            long length = -1;
+            boolean chunked = false;
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.US);
+                String value = lines[i].substring(colon + 1).trim();
+                switch (name) {
+                    case "connection":
+                    case "keep-alive":
+                    case "proxy-connection":
+                    case "upgrade":
+                        continue;
+                    case "transfer-encoding":
+                        chunked = value.toLowerCase(Locale.US).contains("chunked");
+                        continue;
+                    case "content-length":
+                        try {
+                            length = Long.parseLong(value);
+                        } catch (NumberFormatException e) {
+                            continue;
+                        }
+                        break;
+                    default:
+                }
+                fields.add(new String[]{name, value});
+            }
+            boolean noBody = this.stream.method == Method.HEAD || status == 204 || status == 304
+                    || (status >= 100 && status < 200) || (!chunked && length == 0);
+            this.stream.connection.writeHeaders(this.stream.id, this.stream, fields, noBody);
+            if (noBody) {
+                this.state = DONE;
+                this.ended = true;
+            } else if (chunked) {
+                this.state = CHUNK_SIZE;
+            } else if (length > 0) {
+                this.state = FIXED;
+                this.remaining = length;
+            } else {
+                this.state = UNTIL_CLOSE;
+            }
+        }
+
+        private int readLine(byte[] b, int off, int end) throws IOException {
+            while (off < end) {
+                byte c = b[off++];
+                if (c != '\n') {
+                    if (this.line.size() > 4096) {
+                        throw new IOException("bad chunked response");
+                    }
+                    this.line.write(c);
+                    continue;
+                }
+                String text = new String(this.line.toByteArray(), StandardCharsets.ISO_8859_1).trim();
+                this.line.reset();
+                if (this.state == CHUNK_SIZE) {
+                    int semicolon = text.indexOf(';');
+                    long size;
+                    try {
+                        size = Long.parseLong(semicolon >= 0 ? text.substring(0, semicolon).trim() : text, 16);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("bad chunk size: " + text);
+                    }
+                    if (size == 0) {
+                        this.state = TRAILER;
+                    } else {
+                        this.state = CHUNK_DATA;
+                        this.remaining = size;
+                    }
+                } else if (this.state == CHUNK_END) {
+                    this.state = CHUNK_SIZE;
+                } else if (text.isEmpty()) {
+                    // trailer 不转发
+                    end(true);
+                }
+                return off;
+            }
+            return off;
+        }
+
+        private void body(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, this.data.length - this.buffered);
+                System.arraycopy(b, off, this.data, this.buffered, n);
+                this.buffered += n;
+                off += n;
+                len -= n;
+                if (this.buffered == this.data.length) {
+                    sendData(false);
+                }
+            }
+        }
+
+        private void sendData(boolean endStream) throws IOException {
+            if (this.buffered > 0 || endStream) {
+                this.stream.connection.writeData(this.stream, this.data, 0, this.buffered, endStream);
+                this.buffered = 0;
+            }
+        }
+
+        private void end(boolean complete) throws IOException {
+            if (!complete) {
+                return;
+            }
+            sendData(true);
+            this.state = DONE;
+            this.ended = true;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (this.state != DONE && this.state != HEAD) {
+                sendData(false);
+            }
+        }
+
+        /**
+         * Ends the stream after HTTPSession returned; a body cut short is left to be reset.
+         */
+        private void finish() throws IOException {
+            end(this.state == UNTIL_CLOSE);
+        }
+
+        @Override
+        public void close() {
+            // HTTPSession 出错时会关闭输出流，stream 由 finish() 或 reset 结束
+        }
+    }
+
+    /**
+     * Reads the first bytes of a connection; the HTTP/2 preface switches it to h2c.
+     */
+    private static final class PrefaceDetector extends FilterInputStream {
+        private final SimpleWebServer server;
+        private final Socket socket;
+        private byte[] replay;
+        private int replayPos;
+        private boolean checked;
+
+        private PrefaceDetector(SimpleWebServer server, Socket socket, InputStream in) {
+            super(in);
+            this.server = server;
+            this.socket = socket;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!this.checked) {
+                this.checked = true;
+                detect();
+            }
+            if (this.replay != null) {
+                int n = Math.min(len, this.replay.length - this.replayPos);
+                System.arraycopy(this.replay, this.replayPos, b, off, n);
+                this.replayPos += n;
+                if (this.replayPos == this.replay.length) {
+                    this.replay = null;
+                }
+                return n;
+            }
+            return in.read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return this.replay != null ? this.replay.length - this.replayPos : in.available();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void detect() throws IOException {
+            byte[] buf = new byte[PREFACE.length];
+            int n = 0;
+            // 只在收到的字节一直和前言相同时继续读，短的 HTTP/1.1 请求不会被卡住
+            while (n < buf.length) {
+                int read = in.read(buf, n, buf.length - n);
+                if (read < 0) {
+                    break;
+                }
+                boolean matches = true;
+                for (int i = n; i < n + read; i++) {
+                    matches &= buf[i] == PREFACE[i];
+                }
+                n += read;
+                if (!matches) {
+                    break;
+                }
+            }
+            if (Arrays.equals(buf, PREFACE)) {
+                new Http2Connection(this.server, this.socket.getInetAddress(),
+                        new SequenceInputStream(new ByteArrayInputStream(buf), in), this.socket.getOutputStream())
+                        .serve(null, null);
+                // HTTPSession 把它当作连接正常结束，关闭 socket
+                throw new SocketException("NanoHttpd Shutdown");
+            }
+            if (n > 0) {
+                this.replay = Arrays.copyOf(buf, n);
+            }
+        }
+    }
+
+    /**
+     * 101 Switching Protocols; sending it runs the HTTP/2 connection on the same socket.
+     */
+    private static final class UpgradeResponse extends NanoHTTPD.Response {
+        private final SimpleWebServer server;
+        private final InetAddress remote;
+        private final InputStream in;
+        private final byte[] head;
+        private final byte[] settings;
+
+        private UpgradeResponse(SimpleWebServer server, InetAddress remote, InputStream in, byte[] head,
+                                byte[] settings) {
+            super(Status.SWITCH_PROTOCOL, null, null, 0);
+            this.server = server;
+            this.remote = remote;
+            this.in = in;
+            this.head = head;
+            this.settings = settings;
+            // HTTP/2 连接结束后 HTTPSession 关闭 socket
+            addHeader("Connection", "close");
+        }
+
+        @Override
+        protected void send(OutputStream outputStream) {
+            try {
+                outputStream.write(SWITCHING_PROTOCOLS);
+                outputStream.flush();
+                new Http2Connection(this.server, this.remote, this.in, outputStream).serve(this.head, this.settings);
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "h2c connection failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package webserver;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * HTTP-date formatting and parsing (RFC 7231 7.1.1.1). Parsing accepts the
+ * preferred IMF-fixdate and the obsolete RFC 850 and asctime formats.
+ */
+public final class HttpDates {
+    private static final String[] PATTERNS = {
+            "EEE, dd MMM yyyy HH:mm:ss zzz",    // IMF-fixdate
+            "EEEE, dd-MMM-yy HH:mm:ss zzz",     // RFC 850
+            "EEE MMM d HH:mm:ss yyyy",          // asctime
+    };
+
+    // SimpleDateFormat 不是线程安全的，每个线程一份
+    private static final ThreadLocal<SimpleDateFormat[]> FORMATS = new ThreadLocal<SimpleDateFormat[]>() {
+        @Override
+        protected SimpleDateFormat[] initialValue() {
+            SimpleDateFormat[] formats = new SimpleDateFormat[PATTERNS.length];
+            for (int i = 0; i < PATTERNS.length; i++) {
+                formats[i] = new SimpleDateFormat(PATTERNS[i], Locale.US);
+                formats[i].setTimeZone(TimeZone.getTimeZone("GMT"));
+                formats[i].setLenient(false);
+            }
+            return formats;
+        }
+    };
+
+    private HttpDates() {
+    }
+
+    public static String format(long millis) {
+        return FORMATS.get()[0].format(new Date(millis));
+    }
+
+    /**
+     * @return the time in milliseconds, -1 if the value is null or not an HTTP-date
+     */
+    public static long parse(String value) {
+        if (value == null) {
+            return -1;
+        }
+        String v = value.trim();
+        for (SimpleDateFormat format : FORMATS.get()) {
+            try {
+                return format.parse(v).getTime();
+            } catch (ParseException e) {
+                // try the next format
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compares at the one-second resolution of HTTP-dates.
+     *
+     * @return true if a resource modified at lastModified has not changed since the given HTTP-date
+     */
+    public static boolean notModifiedSince(long lastModified, String since) {
+        long time = parse(since);
+        return time >= 0 && lastModified / 1000 <= time / 1000;
+    }
+}
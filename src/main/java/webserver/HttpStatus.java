@@ -0,0 +1,32 @@
+package webserver;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Status codes used by the server that NanoHTTPD's Response.Status does not define.
+ */
+public enum HttpStatus implements NanoHTTPD.Response.IStatus {
+    LENGTH_REQUIRED(411, "Length Required"),
+    PAYLOAD_TOO_LARGE(413, "Payload Too Large"),
+    TOO_MANY_REQUESTS(429, "Too Many Requests"),
+    REQUEST_HEADER_FIELDS_TOO_LARGE(431, "Request Header Fields Too Large"),
+    SERVICE_UNAVAILABLE(503, "Service Unavailable");
+
+    private final int requestStatus;
+    private final String description;
+
+    HttpStatus(int requestStatus, String description) {
+        this.requestStatus = requestStatus;
+        this.description = description;
+    }
+
+    @Override
+    public String getDescription() {
+        return "" + this.requestStatus + " " + this.description;
+    }
+
+    @Override
+    public int getRequestStatus() {
+        return this.requestStatus;
+    }
+}
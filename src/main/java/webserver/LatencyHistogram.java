@@ -0,0 +1,91 @@
+package webserver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear latency histogram in microseconds: eight buckets per power of
+ * two, so a reported percentile is at most 12.5% above the real value.
+ * Recording is one atomic increment, without allocation, in a stripe picked
+ * by thread id so concurrent request threads rarely share a counter.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;     // 2^40 us, about 12 days
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final int stripeMask;
+    private final AtomicLongArray counts;
+
+    public LatencyHistogram() {
+        int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+        this.stripeMask = stripes - 1;
+        this.counts = new AtomicLongArray(stripes * BUCKETS);
+    }
+
+    static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) Math.max(0, micros);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // 桶的上界（微秒）
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    public void record(long micros) {
+        int stripe = (int) Thread.currentThread().getId() & this.stripeMask;
+        this.counts.incrementAndGet(stripe * BUCKETS + bucket(micros));
+    }
+
+    /**
+     * @return the per-bucket counts summed over the stripes
+     */
+    public long[] snapshot() {
+        long[] result = new long[BUCKETS];
+        for (int i = 0; i < this.counts.length(); i++) {
+            result[i % BUCKETS] += this.counts.get(i);
+        }
+        return result;
+    }
+
+    public static long count(long[] snapshot) {
+        long total = 0;
+        for (long c : snapshot) {
+            total += c;
+        }
+        return total;
+    }
+
+    /**
+     * @param quantile 0..1, e.g. 0.99
+     * @return the latency in microseconds below which that share of the requests fell, 0 when empty
+     */
+    public static long percentile(long[] snapshot, double quantile) {
+        long total = count(snapshot);
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && snapshot[i] > 0) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(snapshot.length - 1);
+    }
+}
@@ -0,0 +1,239 @@
+package webserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Renders a page of a {@link DirectoryListing} as HTML or JSON, piece by piece.
+ * The pieces can be collected into a String, or pulled through
+ * {@link #asInputStream()} so that huge listings are streamed as a chunked
+ * response without building the whole page in memory.
+ */
+public class ListingRenderer {
+    private final DirectoryListing listing;
+    private final String uri;
+    private final String up;
+    private final int from;
+    private final int to;
+    private final int limit;
+    private final boolean json;
+
+    private int next = -1;      // -1: header, from..to-1: entries, to: footer
+
+    /**
+     * @param up    link to the parent directory, or null
+     * @param limit page size, 0 if the whole listing is rendered
+     */
+    public ListingRenderer(DirectoryListing listing, String uri, String up, int offset, int limit, boolean json) {
+        this.listing = listing;
+        this.uri = uri;
+        this.up = up;
+        this.from = Math.min(Math.max(0, offset), listing.size());
+        this.to = limit > 0 ? (int) Math.min((long) this.from + limit, listing.size()) : listing.size();
+        this.limit = limit;
+        this.json = json;
+    }
+
+    public int getEntryCount() {
+        return to - from;
+    }
+
+    /**
+     * Appends the next piece.
+     *
+     * @return false when everything has been rendered
+     */
+    public boolean next(StringBuilder msg) {
+        if (next > to) {
+            return false;
+        }
+        if (next < 0) {
+            if (json) {
+                jsonHeader(msg);
+            } else {
+                htmlHeader(msg);
+            }
+            next = from;
+        } else if (next < to) {
+            if (json) {
+                jsonEntry(msg, next);
+            } else {
+                htmlEntry(msg, next);
+            }
+            next++;
+        } else {
+            if (json) {
+                msg.append("]}");
+            } else {
+                htmlFooter(msg);
+            }
+            next++;
+        }
+        return true;
+    }
+
+    public String render() {
+        StringBuilder msg = new StringBuilder(256 + getEntryCount() * 128);
+        while (next(msg)) {
+            // keep going
+        }
+        return msg.toString();
+    }
+
+    private boolean hasDirectories() {
+        return from < Math.min(to, listing.getDirectoryCount());
+    }
+
+    private boolean hasFiles() {
+        return Math.max(from, listing.getDirectoryCount()) < to;
+    }
+
+    private void htmlHeader(StringBuilder msg) {
+        String heading = "Directory " + uri;
+        msg.append("<html><head><title>").append(heading).append("</title><style><!--\n")
+                .append("span.dirname { font-weight: bold; }\n").append("span.filesize { font-size: 75%; }\n")
+                .append("// -->\n" + "</style>" + "</head><body><h1>")
+                .append(heading).append("</h1>");
+        if (up == null && to == from) {
+            return;
+        }
+        msg.append("<u1>");
+        if (up != null || hasDirectories()) {
+            msg.append("<section class=\"directories\">");
+            if (up != null) {
+                msg.append("<li><a rel=\"directory\" href=\"").append(up).
+                        append("\"><span class=\"dirname\">..</span></a></li>");
+            }
+            if (!hasDirectories()) {
+                msg.append("</section>");
+            }
+        }
+        if (!hasDirectories() && hasFiles()) {
+            msg.append("<section class=\"files\">");
+        }
+    }
+
+    private void htmlEntry(StringBuilder msg, int index) {
+        String name = listing.getName(index);
+        if (listing.isDirectory(index)) {
+            String dir = name + "/";
+            msg.append("<li><a rel=\"directory\" href=\"").append(SimpleWebServer.encodeUri(uri + dir)).
+                    append("\"><span class=\"dirname\">").append(dir).append("</span></a></li>");
+            if (index + 1 == Math.min(to, listing.getDirectoryCount())) {
+                msg.append("</section>");
+                if (hasFiles()) {
+                    msg.append("<section class=\"files\">");
+                }
+            }
+            return;
+        }
+        msg.append("<li><a href=\"").append(SimpleWebServer.encodeUri(uri + name)).append("\">")
+                .append("<span class=\"filename\">").append(name).append("</span></a>");
+        long len = listing.getSize(index);
+        msg.append("&nbsp;<span class=\"filesize\">(");
+        if (len < 1024) {
+            msg.append(len).append(" bytes");
+        } else if (len < 1024 * 1024) {
+            msg.append(len / 1024).append(".").append(len % 1024 / 10 % 100).append(" KB");
+        } else {
+            msg.append(len / (1024 * 1024)).append(".").
+                    append(len % (1024 * 1024) / 10000 % 100).append(" MB");
+        }
+        msg.append(")</span></li>");
+        if (index + 1 == to) {
+            msg.append("</section>");
+        }
+    }
+
+    private void htmlFooter(StringBuilder msg) {
+        if (up != null || to > from) {
+            msg.append("</ul>");
+        }
+        if (limit > 0 && to < listing.size()) {
+            msg.append("<p><a href=\"?offset=").append(to).append("&limit=").append(limit)
+                    .append("\">next</a></p>");
+        }
+        msg.append("</body></html>");
+    }
+
+    private void jsonHeader(StringBuilder msg) {
+        msg.append("{\"path\":");
+        jsonString(msg, uri);
+        msg.append(",\"total\":").append(listing.size())
+                .append(",\"offset\":").append(from)
+                .append(",\"count\":").append(getEntryCount())
+                .append(",\"entries\":[");
+    }
+
+    private void jsonEntry(StringBuilder msg, int index) {
+        if (index > from) {
+            msg.append(',');
+        }
+        msg.append("{\"name\":");
+        jsonString(msg, listing.getName(index));
+        if (listing.isDirectory(index)) {
+            msg.append(",\"type\":\"directory\"}");
+        } else {
+            msg.append(",\"type\":\"file\",\"size\":").append(listing.getSize(index)).append('}');
+        }
+    }
+
+    static void jsonString(StringBuilder msg, String s) {
+        msg.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                msg.append('\\').append(c);
+            } else if (c < 0x20) {
+                msg.append(String.format("\\u%04x", (int) c));
+            } else {
+                msg.append(c);
+            }
+        }
+        msg.append('"');
+    }
+
+    /**
+     * Streams the rendering, a few hundred entries at a time.
+     */
+    public InputStream asInputStream() {
+        return new InputStream() {
+            private final StringBuilder pending = new StringBuilder(64 * 1024);
+            private byte[] buffer = new byte[0];
+            private int position;
+
+            private boolean fill() {
+                pending.setLength(0);
+                while (pending.length() < 32 * 1024 && next(pending)) {
+                    // render until the chunk is big enough
+                }
+                if (pending.length() == 0) {
+                    return false;
+                }
+                buffer = pending.toString().getBytes(StandardCharsets.UTF_8);
+                position = 0;
+                return true;
+            }
+
+            @Override
+            public int read() throws IOException {
+                if (position >= buffer.length && !fill()) {
+                    return -1;
+                }
+                return buffer[position++] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (position >= buffer.length && !fill()) {
+                    return -1;
+                }
+                int count = Math.min(len, buffer.length - position);
+                System.arraycopy(buffer, position, b, off, count);
+                position += count;
+                return count;
+            }
+        };
+    }
+}
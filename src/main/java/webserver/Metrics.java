@@ -0,0 +1,245 @@
+package webserver;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request metrics per handler (static files, directory listings, each plugin):
+ * counts per status class, bytes sent, requests in flight and a latency
+ * histogram. Counters are LongAdders and the histograms are striped, so
+ * recording neither allocates nor makes request threads contend. Rendered as
+ * Prometheus text or JSON for the stats URI.
+ */
+public class Metrics {
+    public static final String STATIC = "static";
+    public static final String LISTING = "listing";
+    public static final String STATS = "stats";
+    public static final String OTHER = "other";
+    public static final String THROTTLED = "throttled";
+    public static final String WRITE = "write";
+    public static final String ARCHIVE = "archive";
+
+    private final ConcurrentMap<String, Handler> handlers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<WebServerPlugin, Handler> pluginHandlers = new ConcurrentHashMap<>();
+    private final LongAdder inFlight = new LongAdder();
+    private volatile RateLimiter rateLimiter;
+    // 当前线程上正在处理的请求由哪个 handler 负责，InternalRewrite 时以最后一个为准
+    private final ThreadLocal<Handler[]> current = new ThreadLocal<Handler[]>() {
+        @Override
+        protected Handler[] initialValue() {
+            return new Handler[1];
+        }
+    };
+
+    public static final class Handler {
+        private final String name;
+        private final LongAdder[] statusClasses = new LongAdder[5];
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder inFlight = new LongAdder();
+        private final LongAdder latencyMicros = new LongAdder();
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        private Handler(String name) {
+            this.name = name;
+            for (int i = 0; i < statusClasses.length; i++) {
+                statusClasses[i] = new LongAdder();
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    // 和请求计数一起输出限流计数，null 表示没有限流
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    public Handler handler(String name) {
+        Handler handler = this.handlers.get(name);
+        if (handler == null) {
+            Handler created = new Handler(name);
+            handler = this.handlers.putIfAbsent(name, created);
+            if (handler == null) {
+                handler = created;
+            }
+        }
+        return handler;
+    }
+
+    public Handler pluginHandler(WebServerPlugin plugin) {
+        Handler handler = this.pluginHandlers.get(plugin);
+        if (handler == null) {
+            handler = handler(plugin.getClass().getSimpleName());
+            this.pluginHandlers.put(plugin, handler);
+        }
+        return handler;
+    }
+
+    /**
+     * A request arrived.
+     */
+    public void started() {
+        this.inFlight.increment();
+        this.current.get()[0] = null;
+    }
+
+    /**
+     * The current thread's request is being answered by this handler.
+     */
+    public void handledBy(Handler handler) {
+        this.current.get()[0] = handler;
+    }
+
+    /**
+     * The response has been built and is about to be sent.
+     *
+     * @return the handler to pass to {@link #finished}
+     */
+    public Handler sending() {
+        Handler[] holder = this.current.get();
+        Handler handler = holder[0] != null ? holder[0] : handler(OTHER);
+        holder[0] = null;
+        handler.inFlight.increment();
+        return handler;
+    }
+
+    public void finished(Handler handler, int status, long bytes, long latencyNanos) {
+        this.inFlight.decrement();
+        handler.inFlight.decrement();
+        int statusClass = status / 100 - 1;
+        if (statusClass >= 0 && statusClass < handler.statusClasses.length) {
+            handler.statusClasses[statusClass].increment();
+        }
+        handler.bytes.add(bytes);
+        long micros = latencyNanos / 1000;
+        handler.latencyMicros.add(micros);
+        handler.histogram.record(micros);
+    }
+
+    private Map<String, Handler> sortedHandlers() {
+        return new TreeMap<>(this.handlers);
+    }
+
+    public String toPrometheus() {
+        Map<String, Handler> sorted = sortedHandlers();
+        Map<String, long[]> snapshots = new TreeMap<>();
+        for (Handler h : sorted.values()) {
+            snapshots.put(h.name, h.histogram.snapshot());
+        }
+        StringBuilder sb = new StringBuilder(2048);
+        sb.append("# HELP webserver_requests_total Requests answered, by handler and status class.\n");
+        sb.append("# TYPE webserver_requests_total counter\n");
+        for (Handler h : sorted.values()) {
+            for (int i = 0; i < h.statusClasses.length; i++) {
+                sb.append("webserver_requests_total{handler=\"").append(h.name).append("\",status=\"")
+                        .append(i + 1).append("xx\"} ").append(h.statusClasses[i].sum()).append('\n');
+            }
+        }
+        sb.append("# HELP webserver_response_bytes_total Response body bytes sent.\n");
+        sb.append("# TYPE webserver_response_bytes_total counter\n");
+        for (Handler h : sorted.values()) {
+            sb.append("webserver_response_bytes_total{handler=\"").append(h.name).append("\"} ")
+                    .append(h.bytes.sum()).append('\n');
+        }
+        sb.append("# HELP webserver_in_flight_requests Requests being served.\n");
+        sb.append("# TYPE webserver_in_flight_requests gauge\n");
+        sb.append("webserver_in_flight_requests ").append(this.inFlight.sum()).append('\n');
+        for (Handler h : sorted.values()) {
+            sb.append("webserver_in_flight_requests{handler=\"").append(h.name).append("\"} ")
+                    .append(h.inFlight.sum()).append('\n');
+        }
+        sb.append("# HELP webserver_request_duration_seconds Time from reading the request to sending the response.\n");
+        sb.append("# TYPE webserver_request_duration_seconds summary\n");
+        for (Handler h : sorted.values()) {
+            long[] snapshot = snapshots.get(h.name);
+            for (double q : new double[]{0.5, 0.99, 0.999}) {
+                sb.append("webserver_request_duration_seconds{handler=\"").append(h.name).append("\",quantile=\"")
+                        .append(q).append("\"} ").append(seconds(LatencyHistogram.percentile(snapshot, q))).append('\n');
+            }
+            sb.append("webserver_request_duration_seconds_sum{handler=\"").append(h.name).append("\"} ")
+                    .append(seconds(h.latencyMicros.sum())).append('\n');
+            sb.append("webserver_request_duration_seconds_count{handler=\"").append(h.name).append("\"} ")
+                    .append(LatencyHistogram.count(snapshot)).append('\n');
+        }
+        RateLimiter limiter = this.rateLimiter;
+        if (limiter != null) {
+            sb.append("# HELP webserver_throttled_requests_total Requests answered with 429, by the limit exceeded.\n");
+            sb.append("# TYPE webserver_throttled_requests_total counter\n");
+            sb.append("webserver_throttled_requests_total{limit=\"requests\"} ").append(limiter.getThrottledRequests())
+                    .append('\n');
+            sb.append("webserver_throttled_requests_total{limit=\"bytes\"} ").append(limiter.getThrottledBytes())
+                    .append('\n');
+            sb.append("webserver_throttled_requests_total{limit=\"global\"} ").append(limiter.getThrottledGlobal())
+                    .append('\n');
+            sb.append("# HELP webserver_rate_limited_clients Client addresses with a token bucket.\n");
+            sb.append("# TYPE webserver_rate_limited_clients gauge\n");
+            sb.append("webserver_rate_limited_clients ").append(limiter.getClients()).append('\n');
+            sb.append("# HELP webserver_rate_limiter_evictions_total Idle token buckets removed.\n");
+            sb.append("# TYPE webserver_rate_limiter_evictions_total counter\n");
+            sb.append("webserver_rate_limiter_evictions_total ").append(limiter.getEvicted()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String seconds(long micros) {
+        return String.valueOf(micros / 1e6);
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append("{\"in_flight\":").append(this.inFlight.sum()).append(",\"handlers\":{");
+        boolean first = true;
+        for (Handler h : sortedHandlers().values()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            ListingRenderer.jsonString(sb, h.name);
+            sb.append(":{\"requests\":{");
+            for (int i = 0; i < h.statusClasses.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append('"').append(i + 1).append("xx\":").append(h.statusClasses[i].sum());
+            }
+            long[] snapshot = h.histogram.snapshot();
+            sb.append("},\"bytes\":").append(h.bytes.sum())
+                    .append(",\"in_flight\":").append(h.inFlight.sum())
+                    .append(",\"latency_us\":{\"count\":").append(LatencyHistogram.count(snapshot))
+                    .append(",\"sum\":").append(h.latencyMicros.sum())
+                    .append(",\"p50\":").append(LatencyHistogram.percentile(snapshot, 0.5))
+                    .append(",\"p99\":").append(LatencyHistogram.percentile(snapshot, 0.99))
+                    .append(",\"p999\":").append(LatencyHistogram.percentile(snapshot, 0.999))
+                    .append("}}");
+        }
+        sb.append('}');
+        RateLimiter limiter = this.rateLimiter;
+        if (limiter != null) {
+            sb.append(",\"rate_limiter\":{\"clients\":").append(limiter.getClients())
+                    .append(",\"admitted\":").append(limiter.getAdmitted())
+                    .append(",\"throttled\":{\"requests\":").append(limiter.getThrottledRequests())
+                    .append(",\"bytes\":").append(limiter.getThrottledBytes())
+                    .append(",\"global\":").append(limiter.getThrottledGlobal())
+                    .append("},\"evicted\":").append(limiter.getEvicted()).append('}');
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Metrics{");
+        for (Handler h : sortedHandlers().values()) {
+            long[] snapshot = h.histogram.snapshot();
+            sb.append(h.name).append(": ").append(LatencyHistogram.count(snapshot)).append(" requests, p50=")
+                    .append(LatencyHistogram.percentile(snapshot, 0.5)).append("us, p99=")
+                    .append(LatencyHistogram.percentile(snapshot, 0.99)).append("us; ");
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,109 @@
+package webserver;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A fixed-length response sent by {@link ResponseWriter}: the head is rendered
+ * into a pooled buffer and the body copied through the rest of it, instead of
+ * NanoHTTPD's PrintWriter, date formatter and fresh copy buffer per response.
+ * Responses that NanoHTTPD has to gzip or chunk are still sent by NanoHTTPD.
+ */
+public class PooledResponse extends NanoHTTPD.Response {
+    private static final Logger LOG = Logger.getLogger(PooledResponse.class.getName());
+
+    private final long length;
+    // Response 的 header 是私有的，这里保留一份用于自己输出响应头
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    private boolean keepAlive = true;
+    private boolean chunked;
+    private boolean gzip;
+    private boolean fixedLength;
+
+    public PooledResponse(IStatus status, String mimeType, InputStream data, long length) {
+        super(status, mimeType, data, length);
+        this.length = data != null ? length : 0;
+        this.chunked = this.length < 0;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public boolean isFixedLength() {
+        return fixedLength;
+    }
+
+    /**
+     * A fixed-length response is always sent as it is with its Content-Length, never gzip-encoded on
+     * the fly, just like a response with an explicit Content-Length header.
+     */
+    public void setFixedLength(boolean fixedLength) {
+        this.fixedLength = fixedLength;
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        super.addHeader(name, value);
+        this.headers.put(name, value);
+    }
+
+    @Override
+    public void setKeepAlive(boolean useKeepAlive) {
+        super.setKeepAlive(useKeepAlive);
+        this.keepAlive = useKeepAlive;
+    }
+
+    @Override
+    public void setChunkedTransfer(boolean chunkedTransfer) {
+        super.setChunkedTransfer(chunkedTransfer);
+        this.chunked = chunkedTransfer;
+    }
+
+    @Override
+    public void setGzipEncoding(boolean encodeAsGzip) {
+        // NanoHTTPD 也不会压缩带 Content-Length 头的响应
+        this.gzip = encodeAsGzip && !this.fixedLength && getHeader("Content-Length") == null;
+        super.setGzipEncoding(this.gzip);
+    }
+
+    @Override
+    protected void send(OutputStream outputStream) {
+        if (this.chunked || this.gzip) {
+            super.send(outputStream);
+            return;
+        }
+        ResponseWriter.Buffer buffer = ResponseWriter.take();
+        try {
+            long pending = this.length;
+            String contentLength = getHeader("Content-Length");
+            if (contentLength != null) {
+                // 和 NanoHTTPD 一样，以显式给出的 Content-Length 为准（例如 body 被替换成了压缩后的）
+                try {
+                    pending = Long.parseLong(contentLength);
+                } catch (NumberFormatException e) {
+                    LOG.severe("content-length was no number " + contentLength);
+                }
+            }
+            ResponseWriter.head(buffer, this, this.headers, this.keepAlive, pending);
+            if (getRequestMethod() != NanoHTTPD.Method.HEAD) {
+                // 响应头和 body 的开头在同一次 write 里发出
+                buffer.copy(getData(), pending, outputStream);
+            }
+            buffer.writeTo(outputStream);
+            outputStream.flush();
+            getData().close();
+        } catch (IOException ioe) {
+            LOG.log(Level.SEVERE, "Could not send response to the client", ioe);
+        } finally {
+            ResponseWriter.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package webserver;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token-bucket admission per client address: one bucket for requests and one
+ * for response bytes per client, plus one request bucket shared by all
+ * clients. A request is admitted while the client has a request token and no
+ * byte debt; bytes are charged after the response is sent, so a large
+ * download makes the client wait before its next request.
+ * <p>
+ * Buckets live in a ConcurrentHashMap and are locked one at a time. Buckets
+ * that have refilled completely, byte debt included, are the same as new ones
+ * and are swept out; when the map is full, further clients share one overflow
+ * bucket, so memory stays bounded however many addresses show up.
+ */
+public class RateLimiter {
+    private static final String OVERFLOW = "*";
+    private static final long SWEEP_INTERVAL_NANOS = 1000000000L;
+
+    private final double requestRate;       // 每秒，0 表示不限制
+    private final double requestBurst;
+    private final double byteRate;          // 每秒，0 表示不限制
+    private final double byteBurst;
+    private final double globalRate;        // 每秒，0 表示不限制
+    private final Bucket global;
+    private final int maxClients;
+
+    private final ConcurrentMap<String, Bucket> clients = new ConcurrentHashMap<>();
+    private final AtomicLong nextSweep = new AtomicLong(System.nanoTime() + SWEEP_INTERVAL_NANOS);
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder throttledRequests = new LongAdder();
+    private final LongAdder throttledBytes = new LongAdder();
+    private final LongAdder throttledGlobal = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    private static final class Bucket {
+        private double requests;
+        private double bytes;
+        private long refilledAt;
+
+        private Bucket(double requests, double bytes, long now) {
+            this.requests = requests;
+            this.bytes = bytes;
+            this.refilledAt = now;
+        }
+    }
+
+    /**
+     * @param requestRate       requests per second per client, 0 for no limit
+     * @param requestBurst      requests a client may make at once
+     * @param byteRate          response bytes per second per client, 0 for no limit
+     * @param byteBurst         bytes a client may receive at once
+     * @param globalRequestRate requests per second of all clients together, 0 for no limit
+     * @param maxClients        clients tracked separately
+     */
+    public RateLimiter(double requestRate, double requestBurst, double byteRate, double byteBurst,
+                       double globalRequestRate, int maxClients) {
+        this.requestRate = requestRate;
+        this.requestBurst = Math.max(1, requestBurst);
+        this.byteRate = byteRate;
+        this.byteBurst = Math.max(1, byteBurst);
+        long now = System.nanoTime();
+        this.global = globalRequestRate > 0 ? new Bucket(Math.max(1, globalRequestRate), 0, now) : null;
+        this.globalRate = globalRequestRate;
+        this.maxClients = Math.max(1, maxClients);
+    }
+
+    /**
+     * Takes a request token for the client.
+     *
+     * @return 0 if the request is admitted, otherwise the milliseconds after which it would be
+     */
+    public long admit(String client) {
+        long now = System.nanoTime();
+        if (now - this.nextSweep.get() >= 0) {
+            sweep(now);
+        }
+        Bucket bucket = bucket(client != null ? client : OVERFLOW, now);
+        long wait;
+        synchronized (bucket) {
+            refill(bucket, now);
+            if (this.byteRate > 0 && bucket.bytes < 0) {
+                this.throttledBytes.increment();
+                return millis(-bucket.bytes / this.byteRate);
+            }
+            if (this.requestRate > 0 && bucket.requests < 1) {
+                this.throttledRequests.increment();
+                return millis((1 - bucket.requests) / this.requestRate);
+            }
+            bucket.requests--;
+        }
+        if (this.global != null) {
+            synchronized (this.global) {
+                double elapsed = (now - this.global.refilledAt) / 1e9;
+                if (elapsed > 0) {
+                    this.global.refilledAt = now;
+                    this.global.requests = Math.min(Math.max(1, this.globalRate),
+                            this.global.requests + elapsed * this.globalRate);
+                }
+                if (this.global.requests < 1) {
+                    wait = millis((1 - this.global.requests) / this.globalRate);
+                } else {
+                    this.global.requests--;
+                    wait = 0;
+                }
+            }
+            if (wait > 0) {
+                // 没有处理的请求不算在客户端头上
+                synchronized (bucket) {
+                    bucket.requests = Math.min(this.requestBurst, bucket.requests + 1);
+                }
+                this.throttledGlobal.increment();
+                return wait;
+            }
+        }
+        this.admitted.increment();
+        return 0;
+    }
+
+    /**
+     * Charges the bytes of a sent response to the client; the bucket may go into debt.
+     */
+    public void sent(String client, long bytes) {
+        if (this.byteRate <= 0 || bytes <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        Bucket bucket = bucket(client != null ? client : OVERFLOW, now);
+        synchronized (bucket) {
+            refill(bucket, now);
+            bucket.bytes -= bytes;
+        }
+    }
+
+    private Bucket bucket(String client, long now) {
+        Bucket bucket = this.clients.get(client);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (this.clients.size() >= this.maxClients) {
+            sweep(now);
+            if (this.clients.size() >= this.maxClients) {
+                client = OVERFLOW;
+                bucket = this.clients.get(client);
+                if (bucket != null) {
+                    return bucket;
+                }
+            }
+        }
+        Bucket created = new Bucket(this.requestBurst, this.byteBurst, now);
+        bucket = this.clients.putIfAbsent(client, created);
+        return bucket != null ? bucket : created;
+    }
+
+    private void refill(Bucket bucket, long now) {
+        double elapsed = (now - bucket.refilledAt) / 1e9;
+        if (elapsed <= 0) {
+            return;
+        }
+        bucket.refilledAt = now;
+        bucket.requests = Math.min(this.requestBurst, bucket.requests + elapsed * this.requestRate);
+        bucket.bytes = Math.min(this.byteBurst, bucket.bytes + elapsed * this.byteRate);
+    }
+
+    // 最多每秒清理一次，同一时间只有一个线程清理；表满时新客户端在两次清理之间共用溢出桶
+    private void sweep(long now) {
+        long next = this.nextSweep.get();
+        if (now - next < 0) {
+            return;
+        }
+        if (!this.nextSweep.compareAndSet(next, now + SWEEP_INTERVAL_NANOS)) {
+            return;
+        }
+        for (Iterator<Bucket> it = this.clients.values().iterator(); it.hasNext(); ) {
+            Bucket bucket = it.next();
+            boolean full;
+            synchronized (bucket) {
+                // 还欠着字节的桶不能删，否则大文件下载完的客户端换到一个满的新桶
+                refill(bucket, now);
+                full = (this.requestRate <= 0 || bucket.requests >= this.requestBurst)
+                        && (this.byteRate <= 0 || bucket.bytes >= this.byteBurst);
+            }
+            if (full) {
+                it.remove();
+                this.evicted.increment();
+            }
+        }
+    }
+
+    private static long millis(double seconds) {
+        return Math.max(1, (long) Math.ceil(seconds * 1000));
+    }
+
+    public int getClients() {
+        return this.clients.size();
+    }
+
+    public long getAdmitted() {
+        return this.admitted.sum();
+    }
+
+    public long getThrottledRequests() {
+        return this.throttledRequests.sum();
+    }
+
+    public long getThrottledBytes() {
+        return this.throttledBytes.sum();
+    }
+
+    public long getThrottledGlobal() {
+        return this.throttledGlobal.sum();
+    }
+
+    public long getEvicted() {
+        return this.evicted.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimiter{requestRate=" + requestRate + "/s, byteRate=" + (long) byteRate + "B/s, globalRate="
+                + globalRate + "/s, clients=" + getClients() + ", admitted=" + getAdmitted() + ", throttledRequests="
+                + getThrottledRequests() + ", throttledBytes=" + getThrottledBytes() + ", throttledGlobal="
+                + getThrottledGlobal() + ", evicted=" + getEvicted() + "}";
+    }
+}
@@ -0,0 +1,176 @@
+package webserver;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Temp files that are not deleted after the request but kept for the next
+ * one, which saves creating and deleting a file per upload.
+ * <p>
+ * NanoHTTPD's parseBody() only knows temp files by path and reads them to the
+ * end, so a reused file is emptied before it is handed out: neither keeping
+ * its blocks nor holding small bodies in memory is possible behind this
+ * interface.
+ */
+public class RecycledTempFiles implements NanoHTTPD.TempFileManagerFactory {
+    private static final Logger LOG = Logger.getLogger(RecycledTempFiles.class.getName());
+
+    private final File dir;
+    private final int maxRecycledFiles;
+
+    private final ConcurrentLinkedQueue<File> recycledFiles = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger recycledCount = new AtomicInteger();
+    private volatile boolean closed;
+
+    private final LongAdder filesCreated = new LongAdder();
+    private final LongAdder filesReused = new LongAdder();
+
+    /**
+     * @param dir              where the files go, created if missing
+     * @param maxRecycledFiles files kept for reuse
+     */
+    public RecycledTempFiles(File dir, int maxRecycledFiles) {
+        this.dir = dir;
+        this.maxRecycledFiles = maxRecycledFiles;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            LOG.warning("could not create " + dir);
+        }
+    }
+
+    @Override
+    public NanoHTTPD.TempFileManager create() {
+        return new Manager();
+    }
+
+    private File takeFile() throws IOException {
+        File file;
+        while ((file = this.recycledFiles.poll()) != null) {
+            this.recycledCount.decrementAndGet();
+            if (file.isFile()) {
+                // 上一次的内容要清掉，按名字读的人会读到文件末尾
+                new FileOutputStream(file).close();
+                this.filesReused.increment();
+                return file;
+            }
+        }
+        this.filesCreated.increment();
+        return File.createTempFile("NanoHTTPD-", "", this.dir);
+    }
+
+    private void releaseFile(File file) {
+        if (!this.closed && this.recycledCount.incrementAndGet() <= this.maxRecycledFiles) {
+            this.recycledFiles.offer(file);
+            return;
+        }
+        if (!this.closed) {
+            this.recycledCount.decrementAndGet();
+        }
+        if (!file.delete() && file.exists()) {
+            LOG.warning("could not delete temporary file " + file);
+        }
+    }
+
+    /**
+     * Deletes the files kept for reuse; files released afterwards are deleted right away.
+     */
+    public void close() {
+        this.closed = true;
+        File file;
+        while ((file = this.recycledFiles.poll()) != null) {
+            this.recycledCount.decrementAndGet();
+            if (!file.delete() && file.exists()) {
+                LOG.warning("could not delete temporary file " + file);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RecycledTempFiles{dir=" + dir + ", filesCreated=" + filesCreated.sum()
+                + ", filesReused=" + filesReused.sum() + ", recycledFiles=" + recycledCount.get() + "}";
+    }
+
+    /**
+     * The temp files of one request, given back by clear() when it is done.
+     */
+    public final class Manager implements NanoHTTPD.TempFileManager {
+        // 大多数请求不创建临时文件，用到时才分配列表
+        private List<RecycledTempFile> files = Collections.emptyList();
+
+        private Manager() {
+        }
+
+        @Override
+        public void clear() {
+            for (RecycledTempFile file : this.files) {
+                try {
+                    file.delete();
+                } catch (Exception e) {
+                    LOG.log(Level.WARNING, "could not delete file ", e);
+                }
+            }
+            this.files = Collections.emptyList();
+        }
+
+        @Override
+        public RecycledTempFile createTempFile(String filenameHint) throws Exception {
+            if (this.files.isEmpty()) {
+                this.files = new ArrayList<>(2);
+            }
+            RecycledTempFile file = new RecycledTempFile(takeFile());
+            this.files.add(file);
+            return file;
+        }
+    }
+
+    /**
+     * An empty file, taken from the recycled ones or newly created.
+     */
+    public final class RecycledTempFile implements NanoHTTPD.TempFile {
+        private final File file;
+        private OutputStream out;
+        private boolean deleted;
+
+        private RecycledTempFile(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public OutputStream open() throws Exception {
+            this.out = new FileOutputStream(this.file);
+            return this.out;
+        }
+
+        @Override
+        public String getName() {
+            return this.file.getAbsolutePath();
+        }
+
+        @Override
+        public void delete() throws Exception {
+            if (this.deleted) {
+                return;
+            }
+            this.deleted = true;
+            try {
+                if (this.out != null) {
+                    this.out.close();
+                }
+            } finally {
+                releaseFile(this.file);
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package webserver;
+
+import java.io.File;
+
+/**
+ * What a request URI resolves to: the root directory and file serving it,
+ * whether it is a directory (and its index file), and for files the size,
+ * modification time, ETag, MIME type and plugin. Immutable, so it can be
+ * cached and shared between request threads.
+ */
+public final class Resolution {
+    public enum Kind { NOT_FOUND, DIRECTORY, FILE }
+
+    private final String uri;
+    private final Kind kind;
+    private final File root;
+    private final File file;
+    private final String indexFile;
+    private final boolean readable;
+    private final long length;
+    private final long lastModified;
+    private final String etag;
+    private final String mimeType;
+    private final WebServerPlugin plugin;
+
+    private Resolution(String uri, Kind kind, File root, File file, String indexFile, boolean readable,
+                       long length, long lastModified, String etag, String mimeType, WebServerPlugin plugin) {
+        this.uri = uri;
+        this.kind = kind;
+        this.root = root;
+        this.file = file;
+        this.indexFile = indexFile;
+        this.readable = readable;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.etag = etag;
+        this.mimeType = mimeType;
+        this.plugin = plugin;
+    }
+
+    public static Resolution notFound(String uri) {
+        return new Resolution(uri, Kind.NOT_FOUND, null, null, null, false, -1, 0, null, null, null);
+    }
+
+    public static Resolution directory(String uri, File root, File directory, String indexFile, boolean readable) {
+        return new Resolution(uri, Kind.DIRECTORY, root, directory, indexFile, readable, -1,
+                directory.lastModified(), null, null, null);
+    }
+
+    /**
+     * @param plugin the plugin that will serve the file, null for static files
+     */
+    public static Resolution file(String uri, File root, File file, long length, long lastModified,
+                                  String mimeType, WebServerPlugin plugin) {
+        return new Resolution(uri, Kind.FILE, root, file, null, true, length, lastModified,
+                SimpleWebServer.etag(file, lastModified, length), mimeType, plugin);
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the index file of a directory, null if there is none (or the uri lacks the trailing '/')
+     */
+    public String getIndexFile() {
+        return indexFile;
+    }
+
+    public boolean isReadable() {
+        return readable;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public WebServerPlugin getPlugin() {
+        return plugin;
+    }
+}
@@ -0,0 +1,356 @@
+package webserver;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches URI resolutions so hot paths need no filesystem calls. A WatchService
+ * over every directory below the roots drops entries when something under
+ * them changes. If the watch service is unavailable or the trees have too
+ * many directories, entries are re-resolved once they are older than the
+ * poll interval instead.
+ */
+public class ResolutionCache implements Closeable {
+    private static final Logger LOG = Logger.getLogger(ResolutionCache.class.getName());
+
+    private final List<Path> roots = new ArrayList<>();
+    private final List<String> prefixes = new ArrayList<>();     // roots 挂载的 URI 前缀
+    private final int maxEntries;
+    private final long pollMillis;
+    private final int maxWatchedDirectories;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    // 排好序的 uri，一个目录下面的条目是连续的一段，文件变化时只删除这一段，不必遍历整个缓存
+    private final TreeSet<String> sorted = new TreeSet<>();
+
+    private WatchService watchService;
+    private Thread watcher;
+    private int watchedDirectories;
+    private volatile boolean rootsAreDirectories;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong changes = new AtomicLong();      // 收到的文件系统事件数
+    // 每次 invalidate / clear 之前加一；解析期间变过的结果不放进缓存
+    private final AtomicLong generation = new AtomicLong();
+
+    private static final class Entry {
+        private final Resolution resolution;
+        private final long createdAt;
+
+        private Entry(Resolution resolution) {
+            this.resolution = resolution;
+            this.createdAt = System.currentTimeMillis();
+        }
+    }
+
+    public ResolutionCache(List<File> rootDirs, int maxEntries, long pollMillis, int maxWatchedDirectories) {
+        this(new RouteTable(rootDirs).getMounts(), maxEntries, pollMillis, maxWatchedDirectories);
+    }
+
+    public ResolutionCache(Collection<RouteTable.Mount> mounts, int maxEntries, long pollMillis,
+                           int maxWatchedDirectories) {
+        for (RouteTable.Mount mount : mounts) {
+            this.roots.add(mount.getDir().getAbsoluteFile().toPath().normalize());
+            this.prefixes.add(mount.getPrefix());
+        }
+        this.maxEntries = maxEntries;
+        this.pollMillis = pollMillis;
+        this.maxWatchedDirectories = maxWatchedDirectories;
+        checkRoots();
+        startWatching();
+    }
+
+    private void startWatching() {
+        try {
+            this.watchService = FileSystems.getDefault().newWatchService();
+            for (Path root : this.roots) {
+                registerTree(root);
+            }
+        } catch (IOException | TooManyDirectoriesException e) {
+            LOG.log(Level.INFO, "not watching the root directories, polling every " + this.pollMillis + " ms: " + e);
+            closeWatchService();
+            return;
+        }
+        this.watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        });
+        this.watcher.setDaemon(true);
+        this.watcher.setName("ResolutionCache Watcher");
+        this.watcher.start();
+    }
+
+    private static class TooManyDirectoriesException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private TooManyDirectoriesException(int max) {
+            super("more than " + max + " directories to watch");
+        }
+    }
+
+    private void registerTree(Path start) throws IOException {
+        if (!Files.isDirectory(start)) {
+            return;
+        }
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (++watchedDirectories > maxWatchedDirectories) {
+                    throw new TooManyDirectoriesException(maxWatchedDirectories);
+                }
+                dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = this.watchService.take();
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    this.changes.incrementAndGet();
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        clear();
+                        continue;
+                    }
+                    Path changed = dir.resolve((Path) event.context());
+                    invalidate(changed);
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+                        try {
+                            registerTree(changed);
+                        } catch (IOException | TooManyDirectoriesException e) {
+                            // the new directory stays unwatched, fall back to polling for everything
+                            LOG.log(Level.INFO, "stopped watching, polling every " + this.pollMillis + " ms: " + e);
+                            clear();
+                            closeWatchService();
+                            return;
+                        }
+                    }
+                }
+                if (!key.reset()) {
+                    invalidate(dir);
+                }
+                checkRoots();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    private void checkRoots() {
+        boolean ok = true;
+        for (Path root : this.roots) {
+            ok &= Files.isDirectory(root);
+        }
+        this.rootsAreDirectories = ok;
+    }
+
+    /**
+     * @return true while every root directory is known to exist; false means "check again"
+     */
+    public boolean rootsAreDirectories() {
+        return this.rootsAreDirectories && isWatching();
+    }
+
+    public boolean isWatching() {
+        return this.watchService != null;
+    }
+
+    public Resolution get(String uri) {
+        boolean watching = isWatching();
+        synchronized (this) {
+            Entry entry = this.entries.get(uri);
+            if (entry != null && (watching || System.currentTimeMillis() - entry.createdAt < this.pollMillis)) {
+                this.hits.incrementAndGet();
+                return entry.resolution;
+            }
+        }
+        this.misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @return read before resolving a URI and passed to {@link #put}
+     */
+    public long getGeneration() {
+        return this.generation.get();
+    }
+
+    /**
+     * Caches a resolution unless something was invalidated since {@code generation} was read:
+     * the resolution may have been made from the old state of the file, and its invalidation is over.
+     */
+    public synchronized void put(Resolution resolution, long generation) {
+        if (this.generation.get() != generation) {
+            return;
+        }
+        add(resolution);
+        if (this.entries.size() > this.maxEntries) {
+            Iterator<String> it = this.entries.keySet().iterator();
+            remove(it.next());
+        }
+    }
+
+    /**
+     * Preloads resolutions collected ahead of time (see {@link RootIndex}). They are only
+     * taken if nothing changed on disk since {@code changesBefore} was read from
+     * {@link #getChanges()}, as events in between could not invalidate them.
+     *
+     * @return false if the resolutions were stale and dropped
+     */
+    public boolean preload(Collection<Resolution> resolutions, long changesBefore) {
+        synchronized (this) {
+            for (Resolution resolution : resolutions) {
+                if (this.entries.size() >= this.maxEntries) {
+                    break;
+                }
+                add(resolution);
+            }
+        }
+        if (this.changes.get() != changesBefore) {
+            clear();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Drops every resolution that may depend on the given path: the path itself, everything
+     * below it, and its parent directory (index file, listing).
+     */
+    public void invalidate(Path changed) {
+        this.generation.incrementAndGet();
+        Path path = changed.toAbsolutePath().normalize();
+        for (int i = 0; i < this.roots.size(); i++) {
+            Path root = this.roots.get(i);
+            if (!path.startsWith(root)) {
+                continue;
+            }
+            StringBuilder sb = new StringBuilder(this.prefixes.get(i));
+            for (Path name : root.relativize(path)) {
+                sb.append('/').append(name.toString());
+            }
+            String uri = sb.length() == 0 ? "/" : sb.toString();
+            String parent = uri.substring(0, uri.lastIndexOf('/') + 1);
+            String parentWithoutSlash = parent.length() > 1 ? parent.substring(0, parent.length() - 1) : parent;
+            synchronized (this) {
+                removeTree(uri);
+                remove(parent);
+                remove(parentWithoutSlash);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        this.generation.incrementAndGet();
+        this.invalidations.addAndGet(this.entries.size());
+        this.entries.clear();
+        this.sorted.clear();
+    }
+
+    // 以下方法在持有锁时调用
+    private void add(Resolution resolution) {
+        String uri = resolution.getUri();
+        if (this.entries.put(uri, new Entry(resolution)) == null) {
+            this.sorted.add(uri);
+        }
+    }
+
+    private void remove(String uri) {
+        if (this.entries.remove(uri) != null) {
+            this.sorted.remove(uri);
+            this.invalidations.incrementAndGet();
+        }
+    }
+
+    // uri 本身和以 uri/ 开头的所有条目，中间的目录有没有缓存都一样
+    private void removeTree(String uri) {
+        remove(uri);
+        String dir = uri.endsWith("/") ? uri : uri + "/";
+        NavigableSet<String> below = this.sorted.subSet(dir, true, dir + '\uffff', false);
+        for (Iterator<String> it = below.iterator(); it.hasNext(); ) {
+            this.entries.remove(it.next());
+            it.remove();
+            this.invalidations.incrementAndGet();
+        }
+    }
+
+    private synchronized void closeWatchService() {
+        if (this.watchService != null) {
+            try {
+                this.watchService.close();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "could not close watch service", e);
+            }
+            this.watchService = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        closeWatchService();
+        if (this.watcher != null) {
+            this.watcher.interrupt();
+        }
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    public int getMaxEntries() {
+        return this.maxEntries;
+    }
+
+    public long getChanges() {
+        return this.changes.get();
+    }
+
+    public long getInvalidations() {
+        return this.invalidations.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ResolutionCache{hits=" + getHits() + ", misses=" + getMisses() + ", invalidations=" + getInvalidations()
+                + ", entries=" + this.entries.size() + ", watching=" + (isWatching() ? watchedDirectories + " dirs" : "no")
+                + "}";
+    }
+}
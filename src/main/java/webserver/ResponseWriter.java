@@ -0,0 +1,238 @@
+package webserver;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Writes HTTP/1.1 response heads and bodies without per-response garbage.
+ * Heads are rendered straight into pooled byte buffers: status lines,
+ * Content-Type lines and the Date line are encoded once and copied, numbers
+ * are written as digits without going through strings. Bodies are copied
+ * through the same buffer, so a small response leaves in a single write.
+ * <p>
+ * The buffers are heap arrays; on sockets from {@link ChannelServerSocketFactory}
+ * the JDK copies them into the direct buffers it recycles per thread.
+ */
+final class ResponseWriter {
+    static final int BUFFER_SIZE = 16 * 1024;
+    // 空闲缓冲区最多保留这么多个；ArrayBlockingQueue 存取不分配对象
+    private static final int MAX_POOLED_BUFFERS = 256;
+    private static final int MAX_CONTENT_TYPES = 256;
+    static final long CHUNKED = -1;
+
+    private static final BlockingQueue<Buffer> BUFFERS = new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
+    private static final ConcurrentMap<NanoHTTPD.Response.IStatus, byte[]> STATUS_LINES = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, byte[]> CONTENT_TYPE_LINES = new ConcurrentHashMap<>();
+    private static volatile DateLine dateLine = new DateLine(0);
+
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] TRANSFER_ENCODING_CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+    private static final byte[] CONNECTION_KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+    private static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+    private static final byte[] COLON = ascii(": ");
+    private static final byte[] CRLF = ascii("\r\n");
+
+    private ResponseWriter() {
+    }
+
+    // 每秒最多重新格式化一次
+    private static final class DateLine {
+        private final long second;
+        private final byte[] bytes;
+
+        private DateLine(long second) {
+            this.second = second;
+            this.bytes = ascii("Date: " + HttpDates.format(second * 1000) + "\r\n");
+        }
+    }
+
+    /**
+     * A pooled buffer; whatever is in it goes out with {@link #writeTo}.
+     */
+    static final class Buffer {
+        private byte[] bytes = new byte[BUFFER_SIZE];
+        private int count;
+
+        private Buffer() {
+        }
+
+        void write(byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, this.bytes, this.count, b.length);
+            this.count += b.length;
+        }
+
+        // 头部几乎都是 ASCII，逐字符写入，不必先编码成 byte[]
+        void write(String s) {
+            int length = s.length();
+            for (int i = 0; i < length; i++) {
+                if (s.charAt(i) >= 0x80) {
+                    write(s.getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+            }
+            ensure(length);
+            for (int i = 0; i < length; i++) {
+                this.bytes[this.count++] = (byte) s.charAt(i);
+            }
+        }
+
+        void writeDecimal(long value) {
+            if (value < 0) {
+                write(Long.toString(value));
+                return;
+            }
+            int digits = 1;
+            for (long v = value; v >= 10; v /= 10) {
+                digits++;
+            }
+            ensure(digits);
+            for (int i = this.count + digits - 1; i >= this.count; i--) {
+                this.bytes[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            this.count += digits;
+        }
+
+        /**
+         * Fills the rest of the buffer from {@code in}, writing it out whenever it is full.
+         *
+         * @param length bytes to copy, -1 for all of them
+         * @return the bytes copied
+         */
+        long copy(InputStream in, long length, OutputStream out) throws IOException {
+            long copied = 0;
+            while (length < 0 || copied < length) {
+                if (this.count == this.bytes.length) {
+                    writeTo(out);
+                }
+                int space = this.bytes.length - this.count;
+                int n = in.read(this.bytes, this.count, length < 0 ? space : (int) Math.min(space, length - copied));
+                if (n <= 0) {
+                    break;
+                }
+                this.count += n;
+                copied += n;
+            }
+            return copied;
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            if (this.count > 0) {
+                out.write(this.bytes, 0, this.count);
+                this.count = 0;
+            }
+        }
+
+        private void ensure(int n) {
+            if (this.count + n > this.bytes.length) {
+                // 很长的头部，换一个更大的数组，归还时丢弃
+                this.bytes = Arrays.copyOf(this.bytes, Math.max(2 * this.bytes.length, this.count + n));
+            }
+        }
+    }
+
+    static Buffer take() {
+        Buffer buffer = BUFFERS.poll();
+        return buffer != null ? buffer : new Buffer();
+    }
+
+    static void release(Buffer buffer) {
+        if (buffer.bytes.length == BUFFER_SIZE) {
+            buffer.count = 0;
+            BUFFERS.offer(buffer);
+        }
+    }
+
+    /**
+     * Renders the status line and headers, ending with the empty line.
+     *
+     * @param contentLength written as Content-Length unless the headers have one, {@link #CHUNKED} for
+     *                      Transfer-Encoding: chunked
+     */
+    static void head(Buffer buffer, NanoHTTPD.Response response, Map<String, String> headers, boolean keepAlive,
+                     long contentLength) {
+        buffer.write(statusLine(response.getStatus()));
+        String mimeType = response.getMimeType();
+        if (mimeType != null) {
+            buffer.write(contentTypeLine(mimeType));
+        }
+        boolean date = false;
+        boolean connection = false;
+        boolean length = false;
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            String name = entry.getKey();
+            date |= name.equalsIgnoreCase("date");
+            connection |= name.equalsIgnoreCase("connection");
+            length |= name.equalsIgnoreCase("content-length");
+        }
+        if (!date) {
+            buffer.write(dateLine());
+        }
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            buffer.write(entry.getKey());
+            buffer.write(COLON);
+            buffer.write(entry.getValue());
+            buffer.write(CRLF);
+        }
+        if (!connection) {
+            buffer.write(keepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+        }
+        if (!length && contentLength >= 0) {
+            buffer.write(CONTENT_LENGTH);
+            buffer.writeDecimal(contentLength);
+            buffer.write(CRLF);
+        } else if (!length) {
+            buffer.write(TRANSFER_ENCODING_CHUNKED);
+        }
+        buffer.write(CRLF);
+    }
+
+    private static byte[] statusLine(NanoHTTPD.Response.IStatus status) {
+        byte[] line = STATUS_LINES.get(status);
+        if (line == null) {
+            line = ascii("HTTP/1.1 " + status.getDescription() + " \r\n");
+            // 只缓存枚举，别的 IStatus 可能每个响应一个
+            if (status instanceof Enum) {
+                STATUS_LINES.put(status, line);
+            }
+        }
+        return line;
+    }
+
+    private static byte[] contentTypeLine(String mimeType) {
+        byte[] line = CONTENT_TYPE_LINES.get(mimeType);
+        if (line == null) {
+            line = ("Content-Type: " + mimeType + "\r\n").getBytes(StandardCharsets.UTF_8);
+            // multipart/byteranges 每个响应的 boundary 都不同，不缓存，以免占满表
+            if (!mimeType.contains("boundary=") && CONTENT_TYPE_LINES.size() < MAX_CONTENT_TYPES) {
+                CONTENT_TYPE_LINES.put(mimeType, line);
+            }
+        }
+        return line;
+    }
+
+    private static byte[] dateLine() {
+        DateLine line = dateLine;
+        long second = System.currentTimeMillis() / 1000;
+        if (line.second != second) {
+            line = new DateLine(second);
+            dateLine = line;
+        }
+        return line.bytes;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,209 @@
+package webserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Walks the mounted directories at startup, one fork/join task per directory,
+ * and resolves every file and directory below them (size, modification
+ * time, MIME type, ETag, index file) so the first requests are answered
+ * from the {@link ResolutionCache} without touching the filesystem. The
+ * cache's watcher keeps the preloaded entries current afterwards.
+ * <p>
+ * Trees with more than {@code maxEntries} entries are not indexed; they
+ * are resolved lazily on first request as before.
+ */
+public class RootIndex {
+    private static final Logger LOG = Logger.getLogger(RootIndex.class.getName());
+
+    private final RouteTable routes;
+    private final int maxEntries;
+
+    private final AtomicInteger count = new AtomicInteger();
+    private volatile boolean lazy;
+    private int entries;
+    private long scanMillis;
+    private int threads;
+
+    private static class TooManyEntriesException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private TooManyEntriesException() {
+            super(null, null, false, false);
+        }
+    }
+
+    public RootIndex(RouteTable routes, int maxEntries) {
+        this.routes = routes;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Scans the roots in parallel and preloads the resolutions into the cache.
+     *
+     * @return false if the trees were too large (or changed during the scan) and are left to lazy resolution
+     */
+    public boolean preload(ResolutionCache cache) {
+        long start = System.nanoTime();
+        long changesBefore = cache.getChanges();
+        Map<String, Resolution> index = new LinkedHashMap<>();
+        ForkJoinPool pool = new ForkJoinPool();
+        this.threads = pool.getParallelism();
+        try {
+            for (RouteTable.Mount mount : this.routes.getMounts()) {
+                File root = mount.getDir();
+                if (!root.isDirectory()) {
+                    continue;
+                }
+                List<Resolution> found = pool.invoke(new DirectoryTask(mount, root, mount.getPrefix() + "/"));
+                // 多个根目录时和 resolveUncached 一样，前面的根目录优先
+                for (Resolution resolution : found) {
+                    if (!index.containsKey(resolution.getUri())) {
+                        index.put(resolution.getUri(), resolution);
+                    }
+                }
+            }
+        } catch (TooManyEntriesException e) {
+            this.lazy = true;
+        } finally {
+            pool.shutdown();
+        }
+        if (!this.lazy && index.size() > cache.getMaxEntries()) {
+            this.lazy = true;
+        }
+        if (!this.lazy && !cache.preload(index.values(), changesBefore)) {
+            LOG.log(Level.INFO, "files changed while indexing, resolving lazily");
+            this.lazy = true;
+        }
+        this.entries = this.lazy ? 0 : index.size();
+        this.scanMillis = (System.nanoTime() - start) / 1000000;
+        return !this.lazy;
+    }
+
+    private class DirectoryTask extends RecursiveTask<List<Resolution>> {
+        private static final long serialVersionUID = 1L;
+
+        private final RouteTable.Mount mount;
+        private final File root;
+        private final File dir;
+        private final String uri;      // 以 '/' 结尾
+
+        private DirectoryTask(RouteTable.Mount mount, File dir, String uri) {
+            this.mount = mount;
+            this.root = mount.getDir();
+            this.dir = dir;
+            this.uri = uri;
+        }
+
+        // 更深的前缀上挂载了别的目录时，这个 uri 不归这里
+        private RouteTable.Match match(String uri) {
+            RouteTable.Match match = routes.match(uri);
+            return match.getPrefix().equals(this.mount.getPrefix()) ? match : null;
+        }
+
+        @Override
+        protected List<Resolution> compute() {
+            List<Resolution> result = new ArrayList<>();
+            List<DirectoryTask> subtasks = new ArrayList<>();
+            Set<String> names = new HashSet<>();
+            boolean listed = true;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.dir.toPath())) {
+                for (Path child : stream) {
+                    String name = child.getFileName().toString();
+                    BasicFileAttributes attrs;
+                    try {
+                        // 和 File.isDirectory() 一样跟随符号链接
+                        attrs = Files.readAttributes(child, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        continue;       // 坏掉的链接等，留给请求时再处理
+                    }
+                    names.add(name);
+                    if (count.incrementAndGet() > maxEntries) {
+                        throw new TooManyEntriesException();
+                    }
+                    File file = new File(this.dir, name);
+                    String childUri = this.uri + name;
+                    if (attrs.isDirectory()) {
+                        if (!Files.isSymbolicLink(child) && match(childUri + "/") != null) {
+                            DirectoryTask task = new DirectoryTask(this.mount, file, childUri + "/");
+                            task.fork();
+                            subtasks.add(task);
+                        }
+                    } else if (attrs.isRegularFile()) {
+                        RouteTable.Match match = match(childUri);
+                        if (match != null) {
+                            result.add(SimpleWebServer.fileResolution(childUri, this.root, file, attrs.size(),
+                                    attrs.lastModifiedTime().toMillis(), SimpleWebServer.pluginFor(match, this.root)));
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // 不可读的目录不预先解析
+                LOG.log(Level.FINE, "could not index " + this.dir, e);
+                listed = false;
+            }
+            for (DirectoryTask task : subtasks) {
+                result.addAll(task.join());
+            }
+            if (!listed) {
+                return result;
+            }
+
+            String indexFile = null;
+            for (String candidate : SimpleWebServer.INDEX_FILE_NAMES) {
+                if (names.contains(candidate)) {
+                    indexFile = candidate;
+                    break;
+                }
+            }
+            if (match(this.uri) == null) {
+                return result;
+            }
+            boolean readable = Files.isReadable(this.dir.toPath());
+            result.add(Resolution.directory(this.uri, this.root, this.dir, indexFile, readable));
+            if (this.uri.length() > 1) {
+                // 没有结尾 '/' 的目录请求会被重定向，不需要 index 文件
+                result.add(Resolution.directory(this.uri.substring(0, this.uri.length() - 1), this.root, this.dir,
+                        null, readable));
+            }
+            return result;
+        }
+    }
+
+    public boolean isLazy() {
+        return this.lazy;
+    }
+
+    public int getEntries() {
+        return this.entries;
+    }
+
+    public long getScanMillis() {
+        return this.scanMillis;
+    }
+
+    @Override
+    public String toString() {
+        if (this.lazy) {
+            return "RootIndex{lazy, more than " + this.maxEntries + " entries or changed while scanning, scan="
+                    + this.scanMillis + " ms}";
+        }
+        return "RootIndex{entries=" + this.entries + ", scan=" + this.scanMillis + " ms, threads="
+                + this.threads + "}";
+    }
+}
@@ -0,0 +1,283 @@
+package webserver;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where requests go, compiled at startup into a trie over path segments.
+ * A node holds the root directories mounted at its prefix and the routes
+ * for the prefix and for file extensions below it. One walk down the trie
+ * finds the root directories for a URI, the path below them and the plugin
+ * that serves it.
+ * <p>
+ * Plugins found by the ServiceLoader are routed by the extensions of their
+ * MIME types at "/". The deepest matching prefix wins, and at the same
+ * prefix an extension route wins over a route for the whole prefix. A
+ * route without a plugin serves plain static files. A zip archive mounted
+ * at a prefix serves everything below it instead of directories.
+ * <p>
+ * The table is filled in before the server starts and only read afterwards.
+ */
+public class RouteTable {
+    private final Node root = new Node("");
+    private final List<Mount> mounts = new ArrayList<>();
+    private final List<String> archives = new ArrayList<>();
+    private int routes;
+
+    /**
+     * A directory mounted at a URI prefix.
+     */
+    public static final class Mount {
+        private final String prefix;    // 不以 '/' 结尾，根是 ""
+        private final File dir;
+
+        private Mount(String prefix, File dir) {
+            this.prefix = prefix;
+            this.dir = dir;
+        }
+
+        public String getPrefix() {
+            return prefix;
+        }
+
+        public File getDir() {
+            return dir;
+        }
+
+        /**
+         * @return the URI of a path relative to the mounted directory ("" for the directory itself)
+         */
+        public String uriOf(String relativePath) {
+            String uri = this.prefix + relativePath;
+            return uri.isEmpty() ? "/" : uri;
+        }
+
+        @Override
+        public String toString() {
+            return (prefix.isEmpty() ? "/" : prefix) + "=" + dir;
+        }
+    }
+
+    /**
+     * The result of a lookup: the root directories to try in order, the path below them and the plugin.
+     */
+    public static final class Match {
+        private final Node mount;
+        private final String path;
+        private final WebServerPlugin plugin;
+
+        private Match(Node mount, String path, WebServerPlugin plugin) {
+            this.mount = mount;
+            this.path = path;
+            this.plugin = plugin;
+        }
+
+        public List<File> getRoots() {
+            return mount.roots;
+        }
+
+        /**
+         * @return the archive mounted at the prefix, null if directories are
+         */
+        public ZipArchive getArchive() {
+            return mount.archive;
+        }
+
+        public String getPrefix() {
+            return mount.prefix;
+        }
+
+        /**
+         * @return the URI below the mount prefix, starting with '/'
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the plugin routed to, null for static files
+         */
+        public WebServerPlugin getPlugin() {
+            return plugin;
+        }
+    }
+
+    private static final class Target {
+        private final WebServerPlugin plugin;
+
+        private Target(WebServerPlugin plugin) {
+            this.plugin = plugin;
+        }
+    }
+
+    private static final class Node {
+        private final String prefix;
+        private final Map<String, Node> children = new HashMap<>(4);
+        private List<File> roots = Collections.emptyList();
+        private ZipArchive archive;
+        private Map<String, Target> extensions = Collections.emptyMap();
+        private Target all;
+
+        private Node(String prefix) {
+            this.prefix = prefix;
+        }
+
+        private Target target(String extension) {
+            Target target = extension != null ? this.extensions.get(extension) : null;
+            return target != null ? target : this.all;
+        }
+    }
+
+    /**
+     * @param rootDirs mounted at "/", tried in order
+     */
+    public RouteTable(List<File> rootDirs) {
+        for (File dir : rootDirs) {
+            mount("/", dir);
+        }
+    }
+
+    /**
+     * Mounts a directory at a prefix. Below the prefix only the directories mounted there are
+     * searched, in the order they were mounted.
+     */
+    public void mount(String prefix, File dir) {
+        Node node = node(prefix);
+        if (node.archive != null) {
+            throw new IllegalArgumentException("an archive is mounted at " + prefix);
+        }
+        if (node.roots.isEmpty()) {
+            node.roots = new ArrayList<>(1);
+        }
+        node.roots.add(dir);
+        this.mounts.add(new Mount(node.prefix, dir));
+    }
+
+    /**
+     * Mounts an archive at a prefix where no directory is mounted.
+     *
+     * @throws IllegalArgumentException if something is mounted there already
+     */
+    public void mount(String prefix, ZipArchive archive) {
+        Node node = node(prefix);
+        if (node.archive != null || !node.roots.isEmpty()) {
+            throw new IllegalArgumentException("something is mounted at " + prefix + " already");
+        }
+        node.archive = archive;
+        this.archives.add((node.prefix.isEmpty() ? "/" : node.prefix) + "=" + archive.getFile());
+    }
+
+    /**
+     * Routes a prefix ("/docs"), everything below it ("/docs/*") or an extension below it
+     * ("/docs/*.txt", "*.txt") to a plugin.
+     *
+     * @param plugin null to serve the files as they are, without plugins
+     * @throws IllegalArgumentException for other patterns
+     */
+    public void route(String pattern, WebServerPlugin plugin) {
+        String prefix = pattern;
+        String extension = null;
+        int star = pattern.indexOf('*');
+        if (star >= 0) {
+            String rest = pattern.substring(star + 1);
+            if ((star > 0 && pattern.charAt(star - 1) != '/') || rest.indexOf('*') >= 0 || rest.indexOf('/') >= 0
+                    || (!rest.isEmpty() && (rest.length() < 2 || rest.charAt(0) != '.'))) {
+                throw new IllegalArgumentException("unsupported route pattern " + pattern);
+            }
+            prefix = pattern.substring(0, star);
+            extension = rest.isEmpty() ? null : rest.substring(1).toLowerCase();
+        }
+        Node node = node(prefix);
+        if (extension == null) {
+            node.all = new Target(plugin);
+        } else {
+            if (node.extensions.isEmpty()) {
+                node.extensions = new HashMap<>();
+            }
+            node.extensions.put(extension, new Target(plugin));
+        }
+        this.routes++;
+    }
+
+    private Node node(String prefix) {
+        Node node = this.root;
+        for (String segment : prefix.split("/")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            Node child = node.children.get(segment);
+            if (child == null) {
+                child = new Node(node.prefix + "/" + segment);
+                node.children.put(segment, child);
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    /**
+     * @return the directories mounted, without the archives
+     */
+    public List<Mount> getMounts() {
+        return Collections.unmodifiableList(this.mounts);
+    }
+
+    public boolean hasArchives() {
+        return !this.archives.isEmpty();
+    }
+
+    /**
+     * @param uri a decoded request path starting with '/'
+     */
+    public Match match(String uri) {
+        String extension = extension(uri);
+        Node node = this.root;
+        Node mount = this.root;
+        int mountEnd = 0;
+        Target target = node.target(extension);
+        int start = 1;
+        while (start < uri.length() && !node.children.isEmpty()) {
+            int end = uri.indexOf('/', start);
+            if (end < 0) {
+                end = uri.length();
+            }
+            if (end > start) {
+                Node child = node.children.get(uri.substring(start, end));
+                if (child == null) {
+                    break;
+                }
+                node = child;
+                if (!node.roots.isEmpty() || node.archive != null) {
+                    mount = node;
+                    mountEnd = end;
+                }
+                Target t = node.target(extension);
+                if (t != null) {
+                    target = t;
+                }
+            }
+            start = end + 1;
+        }
+        String path = mountEnd == 0 ? uri : mountEnd < uri.length() ? uri.substring(mountEnd) : "/";
+        return new Match(mount, path, target != null ? target.plugin : null);
+    }
+
+    // 最后一段路径的扩展名，小写
+    private static String extension(String uri) {
+        int slash = uri.lastIndexOf('/');
+        int dot = uri.lastIndexOf('.');
+        if (dot <= slash + 1 || dot == uri.length() - 1) {
+            return null;
+        }
+        return uri.substring(dot + 1).toLowerCase();
+    }
+
+    @Override
+    public String toString() {
+        return "RouteTable{mounts=" + this.mounts + ", archives=" + this.archives + ", routes=" + this.routes + "}";
+    }
+}
@@ -0,0 +1,504 @@
+package webserver;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Parks idle keep-alive connections on a few selector threads instead of a
+ * thread blocked in read per connection. A selector thread reads a request
+ * head into the connection's buffer; once it is complete the connection
+ * goes to a worker, which runs the request through NanoHTTPD's HTTPSession
+ * and serve() as before, then parks the connection again.
+ * <p>
+ * The session reads the request through a stream that ends after the
+ * request's body (Content-Length), so pipelined requests stay in the
+ * connection's buffer. Requests with a body of unknown length close the
+ * connection afterwards. Needs sockets from {@link ChannelServerSocketFactory};
+ * connections without a channel are served by the workers the blocking way.
+ */
+public class SelectorAsyncRunner extends AbstractAsyncRunner {
+    private static final Logger LOG = Logger.getLogger(SelectorAsyncRunner.class.getName());
+    // 请求头必须在这个时间内收完，防止慢速发送请求头的连接一直占着缓冲区
+    private static final long HEAD_TIMEOUT_MILLIS = NanoHTTPD.SOCKET_READ_TIMEOUT;
+    // 没有被读取的请求体不超过这个大小时读掉丢弃，否则关闭连接
+    private static final long MAX_DRAIN = 64 * 1024;
+    private static final long SWEEP_MILLIS = 1000;
+    // 和 HTTPSession.BUFSIZE 相同，NanoHTTPD 也只接受这么大的请求头
+    private static final int HEAD_BUFFER_SIZE = 8192;
+    private static final byte[] HEADER_TOO_LARGE = ("HTTP/1.1 " + HttpStatus.REQUEST_HEADER_FIELDS_TOO_LARGE.getDescription()
+            + "\r\nConnection: close\r\nContent-Length: 0\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    private final SimpleWebServer server;
+    private final long idleTimeoutMillis;
+    private final SelectorThread[] selectors;
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger parked = new AtomicInteger();
+
+    /**
+     * @param idleTimeoutMillis parked connections without a request for this long are closed
+     */
+    public SelectorAsyncRunner(SimpleWebServer server, int selectorThreads, int workers, int queueSize,
+                               long idleTimeoutMillis) throws IOException {
+        this.server = server;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        final AtomicInteger count = new AtomicInteger();
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                t.setName("NanoHttpd Worker (#" + count.incrementAndGet() + ")");
+                return t;
+            }
+        };
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), threadFactory,
+                new ThreadPoolExecutor.AbortPolicy());
+        this.selectors = new SelectorThread[Math.max(1, selectorThreads)];
+        for (int i = 0; i < this.selectors.length; i++) {
+            this.selectors[i] = new SelectorThread(i + 1);
+            this.selectors[i].start();
+        }
+    }
+
+    @Override
+    protected boolean dispatch(NanoHTTPD.ClientHandler clientHandler) {
+        Socket socket = socketOf(clientHandler);
+        SocketChannel channel = socket != null ? socket.getChannel() : null;
+        if (channel == null) {
+            // 没有 channel 的 socket 无法注册到 selector，按阻塞方式占用一个 worker
+            try {
+                this.executor.execute(clientHandler);
+                return true;
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+        SelectorThread selector = this.selectors[(this.next.getAndIncrement() & Integer.MAX_VALUE) % this.selectors.length];
+        selector.park(new Connection(clientHandler, socket, channel, selector));
+        return true;
+    }
+
+    @Override
+    public void closeAll() {
+        super.closeAll();
+        for (SelectorThread selector : this.selectors) {
+            selector.shutdown();
+        }
+        this.executor.shutdown();
+    }
+
+    /**
+     * @return connections waiting on a selector for their next request
+     */
+    public int getParked() {
+        return this.parked.get();
+    }
+
+    @Override
+    public int getActiveWorkers() {
+        return this.executor.getActiveCount();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return this.executor.getQueue().size();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{connections=" + getConnections() + ", parked=" + getParked()
+                + ", selectors=" + this.selectors.length + ", activeWorkers=" + getActiveWorkers()
+                + ", queueDepth=" + getQueueDepth() + ", accepted=" + getAccepted()
+                + ", rejections=" + getRejections() + "}";
+    }
+
+    // 和 HTTPSession.findHeaderEnd 相同：请求头之后第一个字节的位置，请求头不完整时返回 0
+    static int findHeaderEnd(byte[] buf, int length) {
+        for (int i = 0; i + 1 < length; i++) {
+            if (buf[i] == '\r' && buf[i + 1] == '\n' && i + 3 < length && buf[i + 2] == '\r' && buf[i + 3] == '\n') {
+                return i + 4;
+            }
+            if (buf[i] == '\n' && buf[i + 1] == '\n') {
+                return i + 2;
+            }
+        }
+        return 0;
+    }
+
+    private final class Connection implements Runnable {
+        private final NanoHTTPD.ClientHandler handler;
+        private final Socket socket;
+        private final SocketChannel channel;
+        private final SelectorThread selector;
+        private NanoHTTPD.TempFileManager tempFileManager;
+
+        // 已读到但还没交给 HTTPSession 的字节；空闲连接不占用缓冲区
+        private byte[] pending;
+        private int pendingLength;
+        private long lastActive = System.currentTimeMillis();
+        private long headStartedAt;
+        private boolean isParked;
+
+        private Connection(NanoHTTPD.ClientHandler handler, Socket socket, SocketChannel channel,
+                           SelectorThread selector) {
+            this.handler = handler;
+            this.socket = socket;
+            this.channel = channel;
+            this.selector = selector;
+        }
+
+        /**
+         * Runs the buffered request, and pipelined ones after it, on a worker.
+         */
+        @Override
+        public void run() {
+            try {
+                OutputStream out = this.socket.getOutputStream();
+                if (this.tempFileManager == null) {
+                    this.tempFileManager = server.getTempFileManagerFactory().create();
+                }
+                if (server.isH2c() && Http2Connection.isPreface(this.pending, this.pendingLength)) {
+                    // HTTP/2 连接一直占用这个 worker，直到连接结束
+                    InputStream in = new SequenceInputStream(
+                            new ByteArrayInputStream(this.pending, 0, this.pendingLength), this.socket.getInputStream());
+                    this.pending = null;
+                    this.pendingLength = 0;
+                    new Http2Connection(server, this.socket.getInetAddress(), in, out).serve(null, null);
+                    close();
+                    return;
+                }
+                do {
+                    RequestStream in = new RequestStream(this, server.isH2c());
+                    server.execute(this.tempFileManager, in, out, this.socket.getInetAddress());
+                    if (!this.channel.isOpen() || !in.finish()) {
+                        close();
+                        return;
+                    }
+                } while (findHeaderEnd(this.pending, this.pendingLength) > 0);
+                this.lastActive = System.currentTimeMillis();
+                this.headStartedAt = this.lastActive;
+                this.selector.park(this);
+            } catch (IOException | RuntimeException e) {
+                // HTTPSession 用 "NanoHttpd Shutdown" 表示客户端关闭了连接或不使用 keep-alive
+                if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))
+                        && !(e instanceof SocketTimeoutException)) {
+                    LOG.log(Level.FINE, "Communication with the client broken", e);
+                }
+                close();
+            }
+        }
+
+        private void close() {
+            this.handler.close();
+            closed(this.handler);
+        }
+    }
+
+    /**
+     * One request as HTTPSession sees it: the buffered head, then the body from the buffer and the
+     * socket, then end of stream.
+     */
+    private static final class RequestStream extends InputStream {
+        private final Connection connection;
+        private final int headEnd;
+        private long bodyRemaining;     // -1: 长度未知，读到连接关闭
+        private int pos;
+        private InputStream socketIn;
+
+        private RequestStream(Connection connection, boolean h2c) {
+            this.connection = connection;
+            this.headEnd = findHeaderEnd(connection.pending, connection.pendingLength);
+            this.bodyRemaining = bodyLength(new String(connection.pending, 0, this.headEnd, StandardCharsets.ISO_8859_1),
+                    h2c);
+        }
+
+        // h2c 升级请求之后的字节属于 HTTP/2 连接，按长度未知处理，让它们都能读到
+        private static long bodyLength(String head, boolean h2c) {
+            long length = 0;
+            for (String line : head.split("\r?\n")) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("transfer-encoding") && !value.equalsIgnoreCase("identity")) {
+                    return -1;
+                }
+                if (h2c && name.equalsIgnoreCase("upgrade") && value.toLowerCase().contains("h2c")) {
+                    return -1;
+                }
+                if (name.equalsIgnoreCase("content-length")) {
+                    try {
+                        length = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        return -1;
+                    }
+                }
+            }
+            return length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (this.pos < this.headEnd) {
+                int n = Math.min(len, this.headEnd - this.pos);
+                System.arraycopy(this.connection.pending, this.pos, b, off, n);
+                this.pos += n;
+                return n;
+            }
+            if (this.bodyRemaining == 0) {
+                return -1;
+            }
+            int max = this.bodyRemaining < 0 ? len : (int) Math.min(len, this.bodyRemaining);
+            int buffered = this.connection.pendingLength - this.pos;
+            int n;
+            if (buffered > 0) {
+                n = Math.min(max, buffered);
+                System.arraycopy(this.connection.pending, this.pos, b, off, n);
+                this.pos += n;
+            } else {
+                if (this.socketIn == null) {
+                    this.socketIn = this.connection.socket.getInputStream();
+                }
+                n = this.socketIn.read(b, off, max);
+                if (n < 0) {
+                    return -1;
+                }
+            }
+            if (this.bodyRemaining > 0) {
+                this.bodyRemaining -= n;
+            }
+            return n;
+        }
+
+        /**
+         * Skips what is left of the body and keeps only the bytes of later requests buffered.
+         *
+         * @return false if the connection cannot be reused
+         */
+        private boolean finish() throws IOException {
+            if (this.bodyRemaining < 0) {
+                return false;
+            }
+            this.pos = Math.max(this.pos, this.headEnd);
+            int buffered = (int) Math.min(this.connection.pendingLength - this.pos, this.bodyRemaining);
+            this.pos += buffered;
+            this.bodyRemaining -= buffered;
+            if (this.bodyRemaining > MAX_DRAIN) {
+                return false;
+            }
+            byte[] skip = new byte[(int) Math.min(8192, Math.max(1, this.bodyRemaining))];
+            while (this.bodyRemaining > 0) {
+                int n = read(skip, 0, (int) Math.min(skip.length, this.bodyRemaining));
+                if (n < 0) {
+                    return false;
+                }
+            }
+            Connection c = this.connection;
+            c.pendingLength -= this.pos;
+            if (c.pendingLength > 0) {
+                System.arraycopy(c.pending, this.pos, c.pending, 0, c.pendingLength);
+            } else {
+                c.pending = null;
+            }
+            return true;
+        }
+    }
+
+    private final class SelectorThread extends Thread {
+        private final Selector selector;
+        private final Queue<Connection> incoming = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        private SelectorThread(int number) throws IOException {
+            this.selector = Selector.open();
+            setDaemon(true);
+            setName("NanoHttpd Selector #" + number);
+        }
+
+        private void park(Connection connection) {
+            this.incoming.add(connection);
+            this.selector.wakeup();
+        }
+
+        private void shutdown() {
+            this.running = false;
+            this.selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            List<Connection> ready = new ArrayList<>();
+            long nextSweep = System.currentTimeMillis() + SWEEP_MILLIS;
+            try {
+                while (this.running) {
+                    this.selector.select(SWEEP_MILLIS);
+                    register();
+                    Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isValid() && read(connection)) {
+                            key.cancel();
+                            ready.add(connection);
+                        }
+                    }
+                    if (!ready.isEmpty()) {
+                        // 取消的 key 在下一次 select 时才注销，注销之后 channel 才能切换回阻塞模式
+                        this.selector.selectNow();
+                        for (Connection connection : ready) {
+                            handOff(connection);
+                        }
+                        ready.clear();
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now >= nextSweep) {
+                        sweep(now);
+                        nextSweep = now + SWEEP_MILLIS;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                LOG.log(Level.SEVERE, "selector failed, closing its connections", e);
+            } finally {
+                for (SelectionKey key : this.selector.keys()) {
+                    unpark((Connection) key.attachment());
+                }
+                Connection connection;
+                while ((connection = this.incoming.poll()) != null) {
+                    connection.close();
+                }
+                try {
+                    this.selector.close();
+                } catch (IOException e) {
+                    LOG.log(Level.FINE, "could not close selector", e);
+                }
+            }
+        }
+
+        private void register() {
+            Connection connection;
+            while ((connection = this.incoming.poll()) != null) {
+                try {
+                    connection.channel.configureBlocking(false);
+                    connection.channel.register(this.selector, SelectionKey.OP_READ, connection);
+                    connection.isParked = true;
+                    parked.incrementAndGet();
+                } catch (IOException | RuntimeException e) {
+                    connection.close();
+                }
+            }
+        }
+
+        /**
+         * @return true once the connection has a complete request head buffered
+         */
+        private boolean read(Connection connection) {
+            long now = System.currentTimeMillis();
+            if (connection.pending == null) {
+                connection.pending = new byte[HEAD_BUFFER_SIZE];
+                connection.pendingLength = 0;
+                connection.headStartedAt = now;
+            }
+            int n;
+            try {
+                n = connection.channel.read(ByteBuffer.wrap(connection.pending, connection.pendingLength,
+                        connection.pending.length - connection.pendingLength));
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n < 0) {
+                unpark(connection);
+                return false;
+            }
+            connection.pendingLength += n;
+            connection.lastActive = now;
+            if (findHeaderEnd(connection.pending, connection.pendingLength) > 0) {
+                return true;
+            }
+            if (connection.pendingLength == connection.pending.length) {
+                try {
+                    connection.channel.write(ByteBuffer.wrap(HEADER_TOO_LARGE));
+                } catch (IOException e) {
+                    // closing anyway
+                }
+                unpark(connection);
+            } else if (connection.pendingLength == 0) {
+                connection.pending = null;
+            }
+            return false;
+        }
+
+        private void handOff(Connection connection) {
+            connection.isParked = false;
+            parked.decrementAndGet();
+            try {
+                connection.channel.configureBlocking(true);
+                executor.execute(connection);
+            } catch (IOException e) {
+                connection.close();
+            } catch (RejectedExecutionException e) {
+                reject(connection.handler);
+            }
+        }
+
+        private void sweep(long now) {
+            for (SelectionKey key : this.selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                boolean expired = connection.pendingLength > 0
+                        ? now - connection.headStartedAt > HEAD_TIMEOUT_MILLIS
+                        : now - connection.lastActive > idleTimeoutMillis;
+                if (expired) {
+                    unpark(connection);
+                }
+            }
+        }
+
+        private void unpark(Connection connection) {
+            if (connection.isParked) {
+                connection.isParked = false;
+                parked.decrementAndGet();
+            }
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package webserver;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Wraps a response body to find out when the response has been sent and how
+ * many body bytes went out. NanoHTTPD closes every response after sending it
+ * (or failing to), which closes this stream and notifies the listener once.
+ */
+class SentBodyStream extends FilterInputStream {
+    interface Listener {
+        void sent(NanoHTTPD.Response response, long bytes);
+    }
+
+    private static final InputStream EMPTY = new InputStream() {
+        @Override
+        public int read() {
+            return -1;
+        }
+    };
+
+    private final NanoHTTPD.Response response;
+    private final Listener listener;
+    private long count;
+    private boolean closed;
+
+    private SentBodyStream(NanoHTTPD.Response response, Listener listener) {
+        super(response.getData() != null ? response.getData() : EMPTY);
+        this.response = response;
+        this.listener = listener;
+    }
+
+    static void attach(NanoHTTPD.Response response, Listener listener) {
+        response.setData(new SentBodyStream(response, listener));
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+            count++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n > 0) {
+            count += n;
+        }
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            super.close();
+        } finally {
+            long bytes = count;
+            if (response instanceof FileChannelResponse && response.getRequestMethod() != NanoHTTPD.Method.HEAD) {
+                bytes = ((FileChannelResponse) response).getLength();   // 零拷贝发送不经过 data
+            } else if (response instanceof StreamingResponse) {
+                bytes = ((StreamingResponse) response).getBytesSent();
+            }
+            listener.sent(response, bytes);
+        }
+    }
+}
@@ -4,11 +4,23 @@ import fi.iki.elonen.NanoHTTPD;
 import fi.iki.elonen.util.ServerRunner;
 
 import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
 import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SimpleWebServer extends NanoHTTPD {
-    private final boolean quiet;
     protected List<File> rootDirs;
 
     private final String cors;   // 跨域资源共享（Cross-origin resource sharing）
@@ -48,11 +60,248 @@ public class SimpleWebServer extends NanoHTTPD {
 
     private static final Map<String, WebServerPlugin> mimeTypeHandlers = new HashMap<>();
 
-    public SimpleWebServer(String host, int port, List<File> wwwroots, boolean quiet, String cors) {
+    public static final String MIME_JSON = "application/json";
+    // 超过这个条目数的目录列表不再整体生成，而是分块流式发送
+    private static final int STREAMING_LISTING_THRESHOLD = 2000;
+    public static final String DEFAULT_STATS_URI = "/_stats";
+    // 目录太多（或没有 WatchService）时 ResolutionCache 改为按时间过期
+    private static final long RESOLUTION_POLL_MILLIS = 2000;
+    private static final int MAX_WATCHED_DIRECTORIES = 10000;
+    private static final int DEFAULT_INDEX_LIMIT = 500000;
+    // --nio 时空闲 keep-alive 连接保留的时间
+    private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60000;
+    // h2c 连接上排队等待执行的 stream 数
+    private static final int H2C_STREAM_QUEUE = 256;
+    // 单独记录令牌桶的客户端地址数，超过后新地址共用一个桶
+    private static final int DEFAULT_RATE_LIMIT_CLIENTS = 100000;
+    // --recycle-temp-files 不带数字时复用的临时文件数
+    private static final int RECYCLED_TEMP_FILES = 32;
+    // 一个请求最多经过这么多次内部重写（index 文件、插件的 InternalRewrite），防止循环
+    private static final int MAX_REWRITES = 8;
+
+    private HotFileCache fileCache;
+    private boolean zeroCopy;
+    private CompressionCache compression;
+    private DirectoryListingCache listingCache;
+    private ResolutionCache resolutionCache;
+    private AccessLog accessLog;
+    private int dumpHeadersEvery;
+    private Metrics metrics;
+    private CachePolicy cachePolicy;
+    private RateLimiter rateLimiter;
+    private String statsUri = DEFAULT_STATS_URI;
+    private ExecutorService h2cStreams;     // null: 不支持 h2c
+    private boolean allowWrite;
+    private long maxUploadSize;             // 0 表示不限制
+    private RouteTable routes;
+    private final AtomicLong requestCount = new AtomicLong();
+
+    public SimpleWebServer(String host, int port, List<File> wwwroots, String cors) {
         super(host, port);
-        this.quiet = quiet;
         this.cors = cors;
         this.rootDirs = new ArrayList<>(wwwroots);
+        this.routes = defaultRoutes(this.rootDirs);
+        setZeroCopy(true);
+    }
+
+    /**
+     * The root directories mounted at "/" and the registered plugins routed by the extensions of their
+     * MIME types.
+     */
+    public static RouteTable defaultRoutes(List<File> rootDirs) {
+        RouteTable routes = new RouteTable(rootDirs);
+        for (Map.Entry<String, String> entry : mimeTypes().entrySet()) {
+            WebServerPlugin plugin = mimeTypeHandlers.get(entry.getValue());
+            if (plugin != null) {
+                routes.route("*." + entry.getKey(), plugin);
+            }
+        }
+        return routes;
+    }
+
+    public RouteTable getRoutes() {
+        return routes;
+    }
+
+    // 在 start() 之前设置；ResolutionCache 和 RootIndex 要用同一张表的挂载点
+    public void setRoutes(RouteTable routes) {
+        this.routes = routes;
+    }
+
+    public boolean isZeroCopy() {
+        return zeroCopy;
+    }
+
+    // 零拷贝需要基于 NIO channel 的 socket，所以要在 start() 之前设置
+    public void setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+        setServerSocketFactory(zeroCopy ? new ChannelServerSocketFactory() : new DefaultServerSocketFactory());
+    }
+
+    public HotFileCache getFileCache() {
+        return fileCache;
+    }
+
+    public void setFileCache(HotFileCache fileCache) {
+        this.fileCache = fileCache;
+    }
+
+    public CompressionCache getCompression() {
+        return compression;
+    }
+
+    public void setCompression(CompressionCache compression) {
+        this.compression = compression;
+    }
+
+    // 开启压缩后由服务器自己处理 gzip/deflate，不再使用 NanoHTTPD 自带的 chunked gzip
+    @Override
+    protected boolean useGzipWhenAccepted(Response r) {
+        return this.compression == null && super.useGzipWhenAccepted(r);
+    }
+
+    public DirectoryListingCache getListingCache() {
+        return listingCache;
+    }
+
+    public void setListingCache(DirectoryListingCache listingCache) {
+        this.listingCache = listingCache;
+    }
+
+    public ResolutionCache getResolutionCache() {
+        return resolutionCache;
+    }
+
+    public void setResolutionCache(ResolutionCache resolutionCache) {
+        this.resolutionCache = resolutionCache;
+    }
+
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    public void setAccessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
+    }
+
+    public CachePolicy getCachePolicy() {
+        return cachePolicy;
+    }
+
+    public void setCachePolicy(CachePolicy cachePolicy) {
+        this.cachePolicy = cachePolicy;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    // 开启后 statsUri 被保留，不再映射到文件
+    public void setMetrics(Metrics metrics, String statsUri) {
+        this.metrics = metrics;
+        this.statsUri = statsUri;
+    }
+
+    public boolean isAllowWrite() {
+        return allowWrite;
+    }
+
+    // 开启后 PUT 把请求体写到根目录下的文件，DELETE 删除文件；否则它们和 GET 一样只读
+    public void setAllowWrite(boolean allowWrite, long maxUploadSize) {
+        this.allowWrite = allowWrite;
+        this.maxUploadSize = maxUploadSize;
+    }
+
+    public boolean isH2c() {
+        return h2cStreams != null;
+    }
+
+    // 开启后接受 HTTP/2 前言开始的连接和 Upgrade: h2c，每个 stream 在单独的线程上执行
+    public void setH2c(boolean h2c) {
+        if (h2c == isH2c()) {
+            return;
+        }
+        if (!h2c) {
+            this.h2cStreams.shutdown();
+            this.h2cStreams = null;
+            return;
+        }
+        final AtomicInteger count = new AtomicInteger();
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                t.setName("NanoHttpd h2c Stream (#" + count.incrementAndGet() + ")");
+                return t;
+            }
+        };
+        int threads = Math.max(8, 4 * Runtime.getRuntime().availableProcessors());
+        this.h2cStreams = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(H2C_STREAM_QUEUE), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    ExecutorService getH2cStreams() {
+        return h2cStreams;
+    }
+
+    // 0 表示不输出请求头
+    public void setDumpHeadersEvery(int dumpHeadersEvery) {
+        this.dumpHeadersEvery = dumpHeadersEvery;
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        if (this.resolutionCache != null) {
+            this.resolutionCache.close();
+        }
+        if (this.accessLog != null) {
+            this.accessLog.close();
+        }
+        if (this.h2cStreams != null) {
+            this.h2cStreams.shutdownNow();
+        }
+        if (getTempFileManagerFactory() instanceof RecycledTempFiles) {
+            ((RecycledTempFiles) getTempFileManagerFactory()).close();
+        }
+    }
+
+    public AsyncRunner getAsyncRunner() {
+        return asyncRunner;
+    }
+
+    @Override
+    protected ClientHandler createClientHandler(Socket finalAccept, InputStream inputStream) {
+        try {
+            // 响应头和响应体分两次写出，开着 Nagle 算法时 keep-alive 连接上每个请求要等待对方的延迟 ACK（约 40ms）
+            finalAccept.setTcpNoDelay(true);
+        } catch (SocketException e) {
+            // 连接已经断开
+        }
+        if (isH2c() && !(this.asyncRunner instanceof SelectorAsyncRunner)) {
+            // SelectorAsyncRunner 自己检查缓冲的请求头
+            inputStream = Http2Connection.detectPriorKnowledge(this, finalAccept, inputStream);
+        }
+        ClientHandler handler = super.createClientHandler(finalAccept, inputStream);
+        if (this.asyncRunner instanceof AbstractAsyncRunner) {
+            ((AbstractAsyncRunner) this.asyncRunner).register(handler, finalAccept);
+        }
+        return handler;
+    }
+
+    // HTTPSession 是 protected 的，SelectorAsyncRunner 通过这里为每个请求执行一次
+    void execute(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream,
+                 InetAddress inetAddress) throws IOException {
+        new HTTPSession(tempFileManager, inputStream, outputStream, inetAddress).execute();
     }
 
     protected Response getInternalErrorResponse(String s) {
@@ -60,6 +309,14 @@ public class SimpleWebServer extends NanoHTTPD {
                 NanoHTTPD.MIME_PLAINTEXT, "INTERNAL ERROR: " + s);
     }
 
+    protected Response getTooManyRequestsResponse(long retryAfterMillis) {
+        handledBy(Metrics.THROTTLED);
+        Response res = newFixedLengthResponse(HttpStatus.TOO_MANY_REQUESTS,
+                NanoHTTPD.MIME_PLAINTEXT, "TOO MANY REQUESTS: slow down.");
+        res.addHeader("Retry-After", String.valueOf((retryAfterMillis + 999) / 1000));
+        return res;
+    }
+
     protected Response getForbiddenResponse(String s) {
         return newFixedLengthResponse(Response.Status.FORBIDDEN,
                 NanoHTTPD.MIME_PLAINTEXT, "FORBIDDEN: " + s);
@@ -83,7 +340,7 @@ public class SimpleWebServer extends NanoHTTPD {
 
     // URL-encodes everything between "/"-characters. Encodes spaces as '%20'
     // TODO split tokenizer
-    private String encodeUri(String uri) {
+    static String encodeUri(String uri) {
         StringBuilder newUri = new StringBuilder();
         // If the returnDelims flag is true, then the delimiter characters are also returned as tokens
         StringTokenizer st = new StringTokenizer(uri, "/", true);
@@ -111,261 +368,765 @@ public class SimpleWebServer extends NanoHTTPD {
     }
 
     protected String listDirectory(String uri, File file) {
-        String heading = "Directory " + uri;
-        StringBuilder msg = new StringBuilder("<html><head><title>").append(heading).append("</title><style><!--\n")
-                .append("span.dirname { font-weight: bold; }\n").append("span.filesize { font-size: 75%; }\n")
-                .append("// -->\n" + "</style>" + "</head><body><h1>")
-                .append(heading).append("</h1>");
+        try {
+            return new ListingRenderer(readListing(file), uri, parentUri(uri), 0, 0, false).render();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
+    private String parentUri(String uri) {
         String up = null;
         if (uri.length() > 1) {
             String u = uri.substring(0, uri.length() - 1); // 所有的uri都是以'/'结尾的
             int slash = u.lastIndexOf('/');
             if (slash >= 0) {
-                up = uri.substring(slash - 1);            // 上一级目录
+                up = uri.substring(0, slash + 1);         // 上一级目录
             }
         }
+        return up;
+    }
 
-        List<String> files = new ArrayList<>();
-        List<String> directories = new ArrayList<>();
-        for (File f : file.listFiles()) { // 将文件和目录分开
-            if (f.isFile()) {
-                files.add(f.getName());
-            }
-            else {
-                directories.add(f.getName());
-            }
+    private DirectoryListing readListing(File directory) throws IOException {
+        return this.listingCache != null ? this.listingCache.get(directory) : DirectoryListing.read(directory);
+    }
+
+    // ?offset=&limit= 分页，?format=json 或 Accept: application/json 时返回 JSON，条目太多时使用 chunked 流式输出
+    private Response serveDirectoryListing(Map<String, String> header, IHTTPSession session, String uri, File directory) {
+        Map<String, String> params = session.getParms();
+        String accept = header.get("accept");
+        boolean json = "json".equals(params.get("format"))
+                || (accept != null && accept.contains(MIME_JSON) && !accept.contains(MIME_HTML));
+        DirectoryListing listing;
+        try {
+            listing = readListing(directory);
+        } catch (IOException e) {
+            return getForbiddenResponse("No directory listing.");
         }
-        Collections.sort(files);
-        Collections.sort(directories);
+        ListingRenderer renderer = new ListingRenderer(listing, uri, json ? null : parentUri(uri),
+                parseInt(params.get("offset"), 0), parseInt(params.get("limit"), 0), json);
+        String mime = json ? MIME_JSON : NanoHTTPD.MIME_HTML;
+        if (renderer.getEntryCount() > STREAMING_LISTING_THRESHOLD) {
+            return newChunkedResponse(Response.Status.OK, mime, renderer.asInputStream());
+        }
+        return newFixedLengthResponse(Response.Status.OK, mime, renderer.render());
+    }
 
-        if (up != null || directories.size() + files.size() > 0) {
-            msg.append("<u1>");
-            if (up != null || directories.size() > 0) {
-                msg.append("<section class=\"directories\">");
-                if (up != null) {
-                    msg.append("<li><a rel=\"directory\" href=\"").append(up).
-                            append("\"><span class=\"dirname\">..</span></a></li>");
-                }
-                for (String directory : directories) {
-                    String dir = directory + "/";
-                    msg.append("<li><a rel=\"directory\" href=\"").append(encodeUri(uri + dir)).
-                            append("\"><span class=\"dirname\">").append(dir).append("</span></a></li>");
-                }
-                msg.append("</section>");
-            }
-            if (files.size() > 0) {
-                msg.append("<section class=\"files\">");
-                for (String f : files) {
-                    msg.append("<li><a href=\"").append(encodeUri(uri + f)).append("\">")
-                            .append("<span class=\"filename\">").append(f).append("</span></a>");
-                    File curFile = new File(file, f);
-                    long len = curFile.length();
-                    msg.append("&nbsp;<span class=\"filesize\">(");
-                    if (len < 1024) {
-                        msg.append(len).append(" bytes");
-                    } else if (len < 1024 * 1024) {
-                        msg.append(len / 1024).append(".").append(len % 1024 / 10 % 100).append(" KB");
-                    } else {
-                        msg.append(len / (1024 * 1024)).append(".").
-                                append(len % (1024 * 1024) / 10000 % 100).append(" MB");
-                    }
-                    msg.append(")</span></li>");
-                }
-                msg.append("</section>");
-            }
-            msg.append("</ul>");
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
         }
-        msg.append("</body></html>");
-        return msg.toString();
+    }
+
+    // toHexString - Returns a string representation of the integer argument as an unsigned integer in base 16
+    // The ETag HTTP response header is an identifier for a specific version of a resource.
+    // It lets caches be more efficient and save bandwidth, as a web server does not need to resend
+    // a full response if the content has not changed
+    static String etag(File file, long lastModified, long length) {
+        return Integer.toHexString((file.getAbsolutePath() + lastModified + "" + length).hashCode());
     }
 
     Response serveFile(Map<String, String> header, File file, String mime) {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        return serveFile(header, file, mime, length, lastModified, etag(file, lastModified, length));
+    }
+
+    // 长度、修改时间和 etag 来自 Resolution，不必再次 stat 文件
+    Response serveFile(Map<String, String> header, File file, String mime, long length, long lastModified,
+                       String etag) {
         Response res;
-        // toHexString - Returns a string representation of the integer argument as an unsigned integer in base 16
-        // The ETag HTTP response header is an identifier for a specific version of a resource.
-        // It lets caches be more efficient and save bandwidth, as a web server does not need to resend
-        // a full response if the content has not changed
-        String etag = Integer.toHexString((file.getAbsolutePath() + file.lastModified() + "" + file.length()).hashCode());
-
-        long startFrom = 0;
-        long endAt = -1;
-        String range = header.get("range");
-        if (range != null && range.startsWith("bytes=")) {
-            range = range.substring("bytes=".length());
-            int minus = range.indexOf('-');
-            if (minus > 0) {
-                startFrom = Long.parseLong(range.substring(0, minus));
-                endAt = Long.parseLong(range.substring(minus + 1));
+        // range requests are always answered from the identity representation
+        if (this.compression != null && header.get("range") == null && CompressionCache.isCompressible(mime)) {
+            String encoding = CompressionCache.negotiate(header.get("accept-encoding"));
+            if (encoding != null) {
+                Response compressed = serveCompressed(header, file, mime, length, lastModified, etag, encoding);
+                if (compressed != null) {
+                    return compressed;
+                }
             }
         }
 
-        // get if-range header. If present, it must match etag, or we should ignore the range request
+        String range = header.get("range");
+
+        // get if-range header. If present, it must match etag (or exactly the modification time),
+        // or we should ignore the range request
         String ifRange = header.get("if-range");
-        boolean headerIfRangeMissingOrMatching = (ifRange == null || etag.equals(ifRange));
+        long ifRangeDate = HttpDates.parse(ifRange);
+        boolean headerIfRangeMissingOrMatching = (ifRange == null || etag.equals(ifRange)
+                || (ifRangeDate >= 0 && ifRangeDate / 1000 == lastModified / 1000));
 
         String ifNoneMatch = header.get("if-none-match");
         boolean headerIfNoneMatchPresentAndMatching = ifNoneMatch != null
                 && ("*".equals(ifNoneMatch) || ifNoneMatch.equals(etag));
+        // If-Modified-Since is only evaluated without If-None-Match (RFC 7232 section 6)
+        boolean notModifiedSince = ifNoneMatch == null
+                && HttpDates.notModifiedSince(lastModified, header.get("if-modified-since"));
 
-        // Change return code and add Content-Range header when skipping is requested
-        long fileLen = file.length();
+        long fileLen = length;
+        // null: 没有 Range 头，或者 Range 头无效、范围太多、If-Range 不匹配，返回整个文件
+        List<long[]> ranges = range != null && headerIfRangeMissingOrMatching ? ByteRanges.parse(range, fileLen) : null;
         boolean flag = true;
-        if (headerIfRangeMissingOrMatching && range != null && startFrom >= 0 && startFrom < fileLen) {
-            // range request that matches current etag and the startFrom of the range is satisfiable
-
-            if (headerIfNoneMatchPresentAndMatching) {
-                // match current etag, respond with not-modified
-                res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
-            }
-            else {
-                if (endAt < 0) {
-                    endAt = fileLen - 1;
+        if (headerIfNoneMatchPresentAndMatching || notModifiedSince) {
+            // match current etag, respond with not-modified
+            res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
+        } else if (ranges != null && ranges.isEmpty()) {
+            res = newFixedLengthResponse(Response.Status.RANGE_NOT_SATISFIABLE, NanoHTTPD.MIME_PLAINTEXT, "");
+            res.addHeader("Content-Range", "bytes */" + fileLen);
+        } else {
+            // small hot files are served from memory when the cache is enabled; only read once the
+            // conditional checks are done, and only while it matches the length and mtime of the validators
+            byte[] cached = this.fileCache != null ? this.fileCache.get(file, length, lastModified) : null;
+            try {
+                if (ranges == null) {
+                    // supply the file
+                    res = newFileResponse(Response.Status.OK, mime, file, cached, 0, fileLen);
+                } else if (ranges.size() == 1) {
+                    long[] r = ranges.get(0);
+                    long newLen = r[1] - r[0] + 1;
+                    res = newFileResponse(Response.Status.PARTIAL_CONTENT, mime, file, cached, r[0], newLen);
+                    res.addHeader("Content-Range", ByteRanges.contentRange(r, fileLen));
+                } else {
+                    // 多个范围：multipart/byteranges，逐个 part 从文件中读取发送
+                    String boundary = ByteRanges.newBoundary();
+                    ByteRanges.MultipartStream body = new ByteRanges.MultipartStream(file, cached, mime, fileLen,
+                            ranges, boundary);
+                    res = fixedLength(newFixedLengthResponse(Response.Status.PARTIAL_CONTENT,
+                            "multipart/byteranges; boundary=" + boundary, body, body.getContentLength()));
                 }
-                long newLen = endAt - startFrom + 1;
-                if (newLen < 0) newLen = 0;
+                res.addHeader("Accept-Ranges", "bytes");
+            } catch (IOException e) {
+                res = getForbiddenResponse("Reading file failed.");
+                flag = false;
+            }
+        }
+        if (flag) {
+            res.addHeader("ETag", etag);
+            res.addHeader("Last-Modified", HttpDates.format(lastModified));
+        }
+        if (flag && this.compression != null && CompressionCache.isCompressible(mime)) {
+            res.addHeader("Vary", "Accept-Encoding");
+        }
+        return res;
+    }
 
-                FileInputStream fis;
-                try {
-                    fis = new FileInputStream(file);
-                    fis.skip(startFrom);
-                    res = newFixedLengthResponse(Response.Status.PARTIAL_CONTENT, mime, fis, newLen);
-                    res.addHeader("Accept-Ranges", "bytes");
-                    res.addHeader("Content-Length", "" + newLen);
-                    res.addHeader("Content-Range", "bytes " + startFrom + "-" + endAt + "/" + fileLen);
-                } catch (IOException e) {
-                    res = getForbiddenResponse("Reading file failed.");
-                    flag = false;
+    // 优先使用预压缩的 file.gz，否则压缩文件内容并缓存；文件太小或太大时返回 null，按原样发送
+    private Response serveCompressed(Map<String, String> header, File file, String mime, long length,
+                                     long lastModified, String etag, String encoding) {
+        File precompressed = new File(file.getPath() + ".gz");
+        boolean usePrecompressed = CompressionCache.GZIP.equals(encoding) && precompressed.isFile()
+                && precompressed.lastModified() >= file.lastModified();
+        if (!usePrecompressed && !this.compression.accepts(length)) {
+            return null;
+        }
+
+        String variantTag = etag + "-" + encoding;
+        String ifNoneMatch = header.get("if-none-match");
+        Response res;
+        if (ifNoneMatch != null ? "*".equals(ifNoneMatch) || ifNoneMatch.equals(variantTag)
+                : HttpDates.notModifiedSince(lastModified, header.get("if-modified-since"))) {
+            res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
+        } else {
+            try {
+                if (usePrecompressed) {
+                    long gzLength = precompressed.length();
+                    res = newFileResponse(Response.Status.OK, mime, precompressed, null, 0, gzLength);
+                } else {
+                    String key = CompressionCache.fileKey(file, lastModified, length, encoding);
+                    byte[] body = this.compression.get(key);
+                    if (body == null) {
+                        byte[] data = this.fileCache != null ? this.fileCache.get(file, length, lastModified) : null;
+                        if (data == null) {
+                            data = Files.readAllBytes(file.toPath());
+                        }
+                        body = this.compression.compress(key, encoding, data, 0, data.length);
+                    }
+                    res = fixedLength(newFixedLengthResponse(Response.Status.OK, mime, new ByteArrayInputStream(body),
+                            body.length));
                 }
+            } catch (IOException e) {
+                return getForbiddenResponse("Reading file failed.");
             }
+            res.addHeader("Content-Encoding", encoding);
         }
-        else {
-            if (headerIfRangeMissingOrMatching && range != null && startFrom >= fileLen) {
-                res = newFixedLengthResponse(Response.Status.RANGE_NOT_SATISFIABLE, NanoHTTPD.MIME_PLAINTEXT, "");
-                res.addHeader("Content-Range", "bytes */" + fileLen);
-            }
-            else if (range == null && headerIfNoneMatchPresentAndMatching) {
-                // full-file-fetch request would return entire file respond with not-modified
-                res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
-            } else if (!headerIfRangeMissingOrMatching && headerIfNoneMatchPresentAndMatching) {
-                // range request doesn't match current etag
-                // return entire (different) file respond with not-modified
-                res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
-            } else {
-                // supply the file
-                try {
-                    res = newFixedLengthResponse(Response.Status.OK, mime,
-                            new FileInputStream(file), (int)file.length());
-                    res.addHeader("Accept-Ranges", "bytes");
-                    res.addHeader("Content-Length", "" + fileLen);
-                } catch (IOException e) {
-                    res = getForbiddenResponse("Reading file failed.");
-                    flag = false;
+        res.addHeader("ETag", variantTag);
+        res.addHeader("Last-Modified", HttpDates.format(lastModified));
+        res.addHeader("Vary", "Accept-Encoding");
+        return res;
+    }
+
+    // 压缩插件和目录列表生成的内存中的响应
+    private Response compressInMemory(Map<String, String> header, String uri, Response res) {
+        if (res.getHeader("Content-Encoding") != null || !CompressionCache.isCompressible(res.getMimeType())) {
+            return res;
+        }
+        String encoding = CompressionCache.negotiate(header.get("accept-encoding"));
+        String etag = res.getHeader("ETag");
+        if (res.getStatus() == Response.Status.NOT_MODIFIED && encoding != null && etag != null) {
+            res.addHeader("Vary", "Accept-Encoding");
+            if ((etag + "-" + encoding).equals(header.get("if-none-match"))) {
+                res.addHeader("ETag", etag + "-" + encoding);
+            }
+            return res;
+        }
+        if (res instanceof StreamingResponse && res.getStatus() == Response.Status.OK) {
+            // 流式响应边发送边压缩
+            StreamingResponse streaming = (StreamingResponse) res;
+            res.addHeader("Vary", "Accept-Encoding");
+            if (encoding != null && this.compression.acceptsStream(streaming.getLength())) {
+                streaming.encode(encoding);
+                if (etag != null) {
+                    res.addHeader("ETag", etag + "-" + encoding);
                 }
             }
+            return res;
+        }
+        if (res.getStatus() != Response.Status.OK || !(res.getData() instanceof ByteArrayInputStream)) {
+            return res;
+        }
+        res.addHeader("Vary", "Accept-Encoding");
+        ByteArrayInputStream data = (ByteArrayInputStream) res.getData();
+        int length = data.available();
+        if (encoding == null || !this.compression.accepts(length)) {
+            return res;
+        }
+        try {
+            byte[] bytes = new byte[length];
+            int read = data.read(bytes, 0, length);
+            // 只缓存带 ETag 的响应；键按内容计算，ETag 可能重复
+            String key = etag != null ? CompressionCache.contentKey(uri, bytes, 0, read, encoding) : null;
+            byte[] body = key != null ? this.compression.get(key) : null;
+            if (body == null) {
+                body = this.compression.compress(key, encoding, bytes, 0, read);
+            }
+            res.setData(new ByteArrayInputStream(body));
+            res.addHeader("Content-Encoding", encoding);
+            res.addHeader("Content-Length", "" + body.length);
+            if (etag != null) {
+                res.addHeader("ETag", etag + "-" + encoding);
+            }
+        } catch (IOException e) {
+            return getInternalErrorResponse("compression failed: " + e.getMessage());
+        }
+        return res;
+    }
+
+    // 文件内容的三种发送方式：内存缓存、零拷贝（transferTo / mmap）、普通的 FileInputStream
+    private Response newFileResponse(Response.IStatus status, String mime, File file, byte[] cached,
+                                     long offset, long length) throws IOException {
+        if (cached != null) {
+            return fixedLength(newFixedLengthResponse(status, mime,
+                    new ByteArrayInputStream(cached, (int) offset, (int) length), length));
+        }
+        if (this.zeroCopy) {
+            return new FileChannelResponse(status, mime, file, offset, length);
+        }
+        FileInputStream fis = new FileInputStream(file);
+        fis.skip(offset);
+        return fixedLength(newFixedLengthResponse(status, mime, fis, length));
+    }
+
+    // 文件内容按原样带 Content-Length 发送，NanoHTTPD 不会再对它 gzip
+    private static Response fixedLength(Response res) {
+        if (res instanceof PooledResponse) {
+            ((PooledResponse) res).setFixedLength(true);
         }
-        if (flag)  res.addHeader("ETag", etag);
         return res;
     }
 
+    /**
+     * Hides NanoHTTPD's factory: the server's fixed-length responses are sent through
+     * {@link ResponseWriter}'s pooled buffers.
+     */
+    public static Response newFixedLengthResponse(Response.IStatus status, String mimeType, InputStream data,
+                                                  long totalBytes) {
+        return new PooledResponse(status, mimeType, data, totalBytes);
+    }
+
+    public static Response newFixedLengthResponse(Response.IStatus status, String mimeType, String txt) {
+        byte[] bytes = txt != null ? txt.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        return newFixedLengthResponse(status, mimeType, new ByteArrayInputStream(bytes), bytes.length);
+    }
+
     @Override
     public Response serve(IHTTPSession session) {
         Map<String, String> header = session.getHeaders();
         Map<String, String> params = session.getParms();
         String uri = session.getUri();
 
-        System.out.println(session.getMethod() + " '" + uri + "' ");
-        if (!this.quiet) {
+        if (isH2c() && header.containsKey("http2-settings")) {
+            Response upgrade = Http2Connection.upgrade(this, session);
+            if (upgrade != null) {
+                return upgrade;
+            }
+        }
+
+        long start = System.nanoTime();
+
+        // 只抽样输出请求头和参数，每 dumpHeadersEvery 个请求输出一次
+        if (this.dumpHeadersEvery > 0 && this.requestCount.getAndIncrement() % this.dumpHeadersEvery == 0) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(session.getMethod()).append(" '").append(uri).append("' \n");
             for (Map.Entry<String, String> entry : header.entrySet()) {
-                System.out.println("  HDR: '" + entry.getKey() + "' = '" + entry.getValue() + "'");
+                sb.append("  HDR: '").append(entry.getKey()).append("' = '").append(entry.getValue()).append("'\n");
             }
             for (Map.Entry<String, String> entry : params.entrySet()) {
-                System.out.println("  PRM: '" + entry.getKey() + "' = '" + entry.getValue() + "'");
+                sb.append("  PRM: '").append(entry.getKey()).append("' = '").append(entry.getValue()).append("'\n");
             }
+            System.out.print(sb);
+        }
+        if (this.metrics != null) {
+            this.metrics.started();
         }
-        for (File homeDir : this.rootDirs) {
-            if (!homeDir.isDirectory()) {
-                return getInternalErrorResponse("given path is not a directory (" + homeDir + ").");
+        Response res = null;
+        long retryAfter = this.rateLimiter != null ? this.rateLimiter.admit(header.get("remote-addr")) : 0;
+        if (retryAfter > 0) {
+            res = getTooManyRequestsResponse(retryAfter);
+        } else if (this.metrics != null && uri.equals(this.statsUri)) {
+            res = serveStats(header, session);
+        } else if (this.resolutionCache == null || !this.resolutionCache.rootsAreDirectories()) {
+            for (RouteTable.Mount mount : this.routes.getMounts()) {
+                if (!mount.getDir().isDirectory()) {
+                    res = getInternalErrorResponse("given path is not a directory (" + mount.getDir() + ").");
+                    break;
+                }
             }
         }
-        // Returns an unmodifiable view of the specified map.
-        // This method allows modules to provide users with "read-only" access to internal maps
-        return response(Collections.unmodifiableMap(header), session, uri);
+        if (res == null) {
+            // Returns an unmodifiable view of the specified map.
+            // This method allows modules to provide users with "read-only" access to internal maps
+            res = response(Collections.unmodifiableMap(header), session, uri, 0);
+        }
+        final Metrics.Handler handler = this.metrics != null ? this.metrics.sending() : null;
+        if (this.accessLog != null || handler != null || this.rateLimiter != null) {
+            SentBodyStream.attach(res, new SentBodyStream.Listener() {
+                @Override
+                public void sent(Response response, long bytes) {
+                    completed(session, response, handler, bytes, System.nanoTime() - start);
+                }
+            });
+        }
+        return res;
     }
 
-    private Response response(Map<String, String> header, IHTTPSession session, String uri) {
+    // 响应发送完毕（或发送失败）后调用
+    private void completed(IHTTPSession session, Response response, Metrics.Handler handler, long bytes,
+                           long latencyNanos) {
+        int status = response.getStatus() != null ? response.getStatus().getRequestStatus() : 0;
+        if (handler != null) {
+            this.metrics.finished(handler, status, bytes, latencyNanos);
+        }
+        if (this.accessLog != null) {
+            this.accessLog.log(session, status, bytes, latencyNanos);
+        }
+        if (this.rateLimiter != null) {
+            this.rateLimiter.sent(session.getHeaders().get("remote-addr"), bytes);
+        }
+    }
+
+    // Prometheus 文本格式，?format=json 或 Accept: application/json 时返回 JSON
+    private Response serveStats(Map<String, String> header, IHTTPSession session) {
+        this.metrics.handledBy(this.metrics.handler(Metrics.STATS));
+        String accept = header.get("accept");
+        Response res;
+        if ("json".equals(session.getParms().get("format")) || (accept != null && accept.contains(MIME_JSON))) {
+            res = newFixedLengthResponse(Response.Status.OK, MIME_JSON, this.metrics.toJson());
+        } else {
+            res = newFixedLengthResponse(Response.Status.OK, "text/plain; version=0.0.4", this.metrics.toPrometheus());
+        }
+        res.addHeader("Cache-Control", "no-cache");
+        return res;
+    }
+
+    private void handledBy(String handler) {
+        if (this.metrics != null) {
+            this.metrics.handledBy(this.metrics.handler(handler));
+        }
+    }
+
+    private Response response(Map<String, String> header, IHTTPSession session, String uri, int rewrites) {
+        if (rewrites > MAX_REWRITES) {
+            return getInternalErrorResponse("too many internal rewrites.");
+        }
         if (cors != null && Method.OPTIONS.equals(session.getMethod())) {
             return newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, null, 0);
         }
+        if (this.allowWrite && (Method.PUT.equals(session.getMethod()) || Method.DELETE.equals(session.getMethod()))) {
+            Response res = serveWrite(header, session, uri);
+            return cors != null ? addCORSHeaders(res, cors) : res;
+        }
 
-        Response res = defaultRespond(header, session, uri);
+        Response res = defaultRespond(header, session, uri, rewrites);
+        if (this.cachePolicy != null) {
+            this.cachePolicy.apply(uri, res);
+        }
+        if (this.compression != null) {
+            res = compressInMemory(header, uri, res);
+        }
         if (cors != null){
             res = addCORSHeaders(res, cors);
         }
         return res;
     }
 
-    private Response defaultRespond(Map<String, String> header, IHTTPSession session, String uri) {
-        uri = uri.trim().replace(File.separatorChar, '/'); // trim 去掉头尾的空格
+    private Response serveWrite(Map<String, String> header, IHTTPSession session, String uri) {
+        handledBy(Metrics.WRITE);
+        uri = uri.trim().replace(File.separatorChar, '/');
         if (uri.contains("?")) {
             uri = uri.substring(0, uri.indexOf("?"));
         }
+        boolean put = Method.PUT.equals(session.getMethod());
         if (uri.contains("../")) {
-            getForbiddenResponse("Won't serve ../ for security reasons.");
+            Response res = getForbiddenResponse("Won't write ../ for security reasons.");
+            return put ? withoutBody(res) : res;
+        }
+        if (this.routes.match(uri).getArchive() != null) {
+            // 挂载的归档是只读的
+            Response res = newFixedLengthResponse(Response.Status.METHOD_NOT_ALLOWED, NanoHTTPD.MIME_PLAINTEXT,
+                    "METHOD NOT ALLOWED: " + uri + " is in a read-only archive.");
+            res.addHeader("Allow", "GET, HEAD");
+            return put ? withoutBody(res) : res;
         }
+        return put ? servePut(header, session, uri) : serveDelete(uri);
+    }
 
-        boolean canServeUri = false;
-        File homeDir = null;
-        for (int i = 0; !canServeUri && i < this.rootDirs.size(); i++) {
-            homeDir = this.rootDirs.get(i);
-            canServeUri = canServeUri(uri, homeDir); // homeDir下是否有uri这个子路径
+    // 请求体直接流进文件，不经过 NanoHTTPD 的临时文件
+    private Response servePut(Map<String, String> header, IHTTPSession session, String uri) {
+        long length = -1;
+        String contentLength = header.get("content-length");
+        if (contentLength != null && !header.containsKey("transfer-encoding")) {
+            try {
+                length = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                length = -1;
+            }
+        }
+        if (length < 0) {
+            return withoutBody(newFixedLengthResponse(HttpStatus.LENGTH_REQUIRED, NanoHTTPD.MIME_PLAINTEXT,
+                    "LENGTH REQUIRED: PUT needs a Content-Length."));
+        }
+        if (this.maxUploadSize > 0 && length > this.maxUploadSize) {
+            return withoutBody(newFixedLengthResponse(HttpStatus.PAYLOAD_TOO_LARGE, NanoHTTPD.MIME_PLAINTEXT,
+                    "PAYLOAD TOO LARGE: uploads are limited to " + this.maxUploadSize + " bytes."));
+        }
+        File target = writeTarget(uri);
+        if (uri.endsWith("/") || target.isDirectory()) {
+            return withoutBody(newFixedLengthResponse(Response.Status.CONFLICT, NanoHTTPD.MIME_PLAINTEXT,
+                    "CONFLICT: " + uri + " is a directory."));
+        }
+        // 新建的最上层目录，写完后连同它一起失效
+        File changed = target;
+        for (File dir = target.getParentFile(); dir != null && !dir.exists(); dir = dir.getParentFile()) {
+            changed = dir;
+        }
+        boolean existed = target.exists();
+        long oldModified = target.lastModified();
+        try {
+            Files.createDirectories(target.getParentFile().toPath());
+            FileUpload.write(session.getInputStream(), length, target);
+            // ETag 和 Last-Modified 由修改时间（按秒比较）和长度得出，同一秒内覆盖也要让它们变化
+            long modified = target.lastModified();
+            if (existed && modified / 1000 <= oldModified / 1000) {
+                target.setLastModified((oldModified / 1000 + 1) * 1000);
+            }
+        } catch (FileAlreadyExistsException e) {
+            return withoutBody(newFixedLengthResponse(Response.Status.CONFLICT, NanoHTTPD.MIME_PLAINTEXT,
+                    "CONFLICT: a parent of " + uri + " is not a directory."));
+        } catch (IOException e) {
+            return withoutBody(getInternalErrorResponse("could not write " + uri + ": " + e.getMessage()));
+        } finally {
+            invalidate(changed);
+        }
+        Response res;
+        if (existed) {
+            res = newFixedLengthResponse(Response.Status.NO_CONTENT, NanoHTTPD.MIME_PLAINTEXT, null, 0);
+        } else {
+            res = newFixedLengthResponse(Response.Status.CREATED, NanoHTTPD.MIME_PLAINTEXT, null, 0);
+            res.addHeader("Location", encodeUri(uri));
         }
-        if (!canServeUri) {
+        res.addHeader("ETag", etag(target, target.lastModified(), target.length()));
+        return res;
+    }
+
+    private Response serveDelete(String uri) {
+        File target = writeTarget(uri);
+        if (!target.exists()) {
             return getNotFoundResponse();
         }
+        if (target.isDirectory()) {
+            return newFixedLengthResponse(Response.Status.CONFLICT, NanoHTTPD.MIME_PLAINTEXT,
+                    "CONFLICT: won't delete the directory " + uri + ".");
+        }
+        try {
+            Files.delete(target.toPath());
+        } catch (IOException e) {
+            return getInternalErrorResponse("could not delete " + uri + ": " + e.getMessage());
+        } finally {
+            invalidate(target);
+        }
+        return newFixedLengthResponse(Response.Status.NO_CONTENT, NanoHTTPD.MIME_PLAINTEXT, null, 0);
+    }
 
-        File f = new File(homeDir, uri);
-        if (f.isDirectory() && !uri.endsWith("/")) {
-            uri += "/";
-            Response res = newFixedLengthResponse(Response.Status.REDIRECT, NanoHTTPD.MIME_HTML,
-                    "<html><body>Redirected: <a href=\"" + uri + "\">" + uri + "</a></body></html>");
-            res.addHeader("Location", uri);
-            return res;
+    // 已经存在的文件写回它所在的根目录，新文件写到第一个根目录
+    private File writeTarget(String uri) {
+        RouteTable.Match match = this.routes.match(uri);
+        for (File homeDir : match.getRoots()) {
+            File f = new File(homeDir, match.getPath());
+            if (f.exists()) {
+                return f;
+            }
+        }
+        return new File(match.getRoots().get(0), match.getPath());
+    }
+
+    // 请求体没有读，HTTP/1.1 连接上剩下的字节不能当成下一个请求，只能关闭连接
+    private static Response withoutBody(Response res) {
+        res.addHeader("Connection", "close");
+        return res;
+    }
+
+    // 文件变化后丢掉缓存里和它有关的内容；压缩缓存按 ETag 存放，修改时间变了就不会再命中
+    private void invalidate(File file) {
+        if (this.fileCache != null) {
+            this.fileCache.invalidate(file);
+        }
+        if (this.listingCache != null) {
+            this.listingCache.invalidate(file.getParentFile());
+        }
+        if (this.resolutionCache != null) {
+            this.resolutionCache.invalidate(file.toPath());
+        }
+    }
+
+    private Response defaultRespond(Map<String, String> header, IHTTPSession session, String uri, int rewrites) {
+        uri = uri.trim().replace(File.separatorChar, '/'); // trim 去掉头尾的空格
+        if (uri.contains("?")) {
+            uri = uri.substring(0, uri.indexOf("?"));
+        }
+        if (uri.contains("../")) {
+            return getForbiddenResponse("Won't serve ../ for security reasons.");
+        }
+        if (this.routes.hasArchives()) {
+            RouteTable.Match match = this.routes.match(uri);
+            if (match.getArchive() != null) {
+                return serveArchive(header, session, uri, match, rewrites);
+            }
+        }
+
+        Resolution resolution = resolve(uri);
+        if (resolution.getKind() == Resolution.Kind.NOT_FOUND) {
+            return getNotFoundResponse();
         }
 
-        if (f.isDirectory()) {
-            String indexFile = findIndexFileInDirectory(f);
+        File f = resolution.getFile();
+        if (resolution.getKind() == Resolution.Kind.DIRECTORY) {
+            if (!uri.endsWith("/")) {
+                return redirectToDirectory(uri + "/");
+            }
+            String indexFile = resolution.getIndexFile();
             if (indexFile == null) {
-                if (f.canRead()) {
+                if (resolution.isReadable()) {
                     // No index file, list the directory if it is readable
-                    return newFixedLengthResponse(Response.Status.OK,
-                            NanoHTTPD.MIME_HTML, listDirectory(uri, f));
+                    handledBy(Metrics.LISTING);
+                    return serveDirectoryListing(header, session, uri, f);
                 }
                 else {
                     return getForbiddenResponse("No directory listing.");
                 }
             }
             else {
-                return response(header, session, uri + indexFile);
+                return response(header, session, uri + indexFile, rewrites + 1);
             }
         }
-        String mimeTypeForFile = getMimeTypeForFile(uri);
-        WebServerPlugin plugin = SimpleWebServer.mimeTypeHandlers.get(mimeTypeForFile);
+        String mimeTypeForFile = resolution.getMimeType();
+        WebServerPlugin plugin = resolution.getPlugin();
         Response response;
-        if (plugin != null && plugin.canServeUri(uri, homeDir)) {
+        if (plugin != null) {
+            if (this.metrics != null) {
+                this.metrics.handledBy(this.metrics.pluginHandler(plugin));
+            }
             response = plugin.serveFile(uri, header, session, f, mimeTypeForFile);
             // internalRewrite 的作用？
             if (response instanceof InternalRewrite) {
                 InternalRewrite rewrite = (InternalRewrite) response;
-                return response(rewrite.getHeader(), session, rewrite.getUri());
+                return response(rewrite.getHeader(), session, rewrite.getUri(), rewrites + 1);
+            }
+            if (response instanceof StaticFile) {
+                StaticFile staticFile = (StaticFile) response;
+                response = serveFile(header, staticFile.getFile(), staticFile.getMimeType());
             }
         }
         else {
-            response = serveFile(header, f, mimeTypeForFile);
+            handledBy(Metrics.STATIC);
+            response = serveFile(header, f, mimeTypeForFile, resolution.getLength(), resolution.getLastModified(),
+                    resolution.getEtag());
         }
         return response == null? getNotFoundResponse() : response;
     }
 
+    private static Response redirectToDirectory(String uri) {
+        Response res = newFixedLengthResponse(Response.Status.REDIRECT, NanoHTTPD.MIME_HTML,
+                "<html><body>Redirected: <a href=\"" + uri + "\">" + uri + "</a></body></html>");
+        res.addHeader("Location", uri);
+        return res;
+    }
+
+    // 挂载的 zip：目录和 index 文件和 defaultRespond 一样处理，不生成目录列表，不经过插件
+    private Response serveArchive(Map<String, String> header, IHTTPSession session, String uri,
+                                  RouteTable.Match match, int rewrites) {
+        ZipArchive archive = match.getArchive();
+        ZipArchive.Entry entry = archive.entry(match.getPath());
+        if (entry == null) {
+            return getNotFoundResponse();
+        }
+        if (entry.isDirectory()) {
+            if (!uri.endsWith("/")) {
+                return redirectToDirectory(uri + "/");
+            }
+            for (String filename : SimpleWebServer.INDEX_FILE_NAMES) {
+                ZipArchive.Entry index = archive.entry(match.getPath() + filename);
+                if (index != null && !index.isDirectory()) {
+                    return response(header, session, uri + filename, rewrites + 1);
+                }
+            }
+            return getForbiddenResponse("No directory listing.");
+        }
+        handledBy(Metrics.ARCHIVE);
+        return serveEntry(header, archive, entry, getMimeTypeForFile(uri));
+    }
+
+    private Response serveEntry(Map<String, String> header, ZipArchive archive, ZipArchive.Entry entry,
+                                String mime) {
+        long size = entry.getSize();
+        long lastModified = entry.getLastModified();
+        String range = header.get("range");
+        boolean deflated = entry.getMethod() == ZipArchive.DEFLATED;
+        // 压缩的条目原样发给接受 gzip 的客户端，gzip 尾部的 CRC-32 和长度在中央目录里都有
+        boolean gzip = deflated && range == null
+                && CompressionCache.GZIP.equals(CompressionCache.negotiate(header.get("accept-encoding")));
+        String etag = gzip ? entry.getEtag() + "-" + CompressionCache.GZIP : entry.getEtag();
+
+        String ifRange = header.get("if-range");
+        long ifRangeDate = HttpDates.parse(ifRange);
+        boolean headerIfRangeMissingOrMatching = (ifRange == null || etag.equals(ifRange)
+                || (ifRangeDate >= 0 && ifRangeDate / 1000 == lastModified / 1000));
+        String ifNoneMatch = header.get("if-none-match");
+        boolean notModified = ifNoneMatch != null ? "*".equals(ifNoneMatch) || ifNoneMatch.equals(etag)
+                : HttpDates.notModifiedSince(lastModified, header.get("if-modified-since"));
+        List<long[]> ranges = range != null && headerIfRangeMissingOrMatching ? ByteRanges.parse(range, size) : null;
+        if (ranges != null && ranges.size() > 1) {
+            // 多个范围时返回整个条目
+            ranges = null;
+        }
+
+        Response res;
+        if (notModified) {
+            res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
+        } else if (ranges != null && ranges.isEmpty()) {
+            res = newFixedLengthResponse(Response.Status.RANGE_NOT_SATISFIABLE, NanoHTTPD.MIME_PLAINTEXT, "");
+            res.addHeader("Content-Range", "bytes */" + size);
+        } else {
+            Response.IStatus status = ranges != null ? Response.Status.PARTIAL_CONTENT : Response.Status.OK;
+            long offset = ranges != null ? ranges.get(0)[0] : 0;
+            long length = ranges != null ? ranges.get(0)[1] - offset + 1 : size;
+            try {
+                if (gzip) {
+                    res = newGzipEntryResponse(archive, entry, mime);
+                    res.addHeader("Content-Encoding", CompressionCache.GZIP);
+                } else if (!deflated) {
+                    // 存储的条目就是文件里的一段，和普通文件一样零拷贝发送
+                    res = newFileResponse(status, mime, archive.getFile(), null, entry.getDataOffset() + offset,
+                            length);
+                } else {
+                    InputStream in = archive.openContents(entry);
+                    if (in.skip(offset) < offset) {
+                        in.close();
+                        throw new IOException("entry shorter than " + offset);
+                    }
+                    res = fixedLength(newFixedLengthResponse(status, mime, in, length));
+                }
+            } catch (IOException e) {
+                return getForbiddenResponse("Reading file failed.");
+            }
+            if (ranges != null) {
+                res.addHeader("Content-Range", ByteRanges.contentRange(ranges.get(0), size));
+            }
+            res.addHeader("Accept-Ranges", "bytes");
+        }
+        res.addHeader("ETag", etag);
+        res.addHeader("Last-Modified", HttpDates.format(lastModified));
+        if (deflated) {
+            res.addHeader("Vary", "Accept-Encoding");
+        }
+        return res;
+    }
+
+    // 压缩数据前后加上 gzip 的头和尾，数据本身不经过解压和压缩
+    private Response newGzipEntryResponse(ZipArchive archive, ZipArchive.Entry entry, String mime)
+            throws IOException {
+        byte[] head = ZipArchive.gzipHeader();
+        byte[] trailer = ZipArchive.gzipTrailer(entry);
+        long compressedSize = entry.getCompressedSize();
+        if (this.zeroCopy) {
+            return new FileChannelResponse(Response.Status.OK, mime, archive.getFile(), entry.getDataOffset(),
+                    compressedSize, head, trailer);
+        }
+        InputStream body = new SequenceInputStream(new ByteArrayInputStream(head),
+                new SequenceInputStream(archive.open(entry, 0, compressedSize), new ByteArrayInputStream(trailer)));
+        return fixedLength(newFixedLengthResponse(Response.Status.OK, mime, body,
+                head.length + compressedSize + trailer.length));
+    }
+
+    // 开启 ResolutionCache 后，热点路径不再访问文件系统
+    protected Resolution resolve(String uri) {
+        if (this.resolutionCache == null) {
+            return resolveUncached(uri);
+        }
+        Resolution resolution = this.resolutionCache.get(uri);
+        if (resolution == null) {
+            // 在访问文件系统之前读取，和 PUT 或文件变化同时发生时不缓存旧的结果
+            long generation = this.resolutionCache.getGeneration();
+            resolution = resolveUncached(uri);
+            this.resolutionCache.put(resolution, generation);
+        }
+        return resolution;
+    }
+
+    private Resolution resolveUncached(String uri) {
+        // 一次查表得到要找的根目录、根目录下的路径和插件
+        RouteTable.Match match = this.routes.match(uri);
+        for (File homeDir : match.getRoots()) {
+            File f = new File(homeDir, match.getPath());
+            if (f.isDirectory()) {
+                // 没有结尾的 '/' 时会被重定向，不需要查找 index 文件
+                String indexFile = uri.endsWith("/") ? findIndexFileInDirectory(f) : null;
+                return Resolution.directory(uri, homeDir, f, indexFile, f.canRead());
+            }
+            WebServerPlugin plugin = pluginFor(match, homeDir);
+            if (f.exists() || plugin != null) {
+                return fileResolution(uri, homeDir, f, f.length(), f.lastModified(), plugin);
+            }
+        }
+        return Resolution.notFound(uri);
+    }
+
+    // 匹配到的插件，它不处理这个根目录下的路径时返回 null；RootIndex 启动时也用它
+    static WebServerPlugin pluginFor(RouteTable.Match match, File homeDir) {
+        WebServerPlugin plugin = match.getPlugin();
+        return plugin != null && plugin.canServeUri(match.getPath(), homeDir) ? plugin : null;
+    }
+
+    // plugin 来自 pluginFor()
+    static Resolution fileResolution(String uri, File homeDir, File f, long length, long lastModified,
+                                     WebServerPlugin plugin) {
+        return Resolution.file(uri, homeDir, f, length, lastModified, getMimeTypeForFile(uri), plugin);
+    }
+
     protected Response addCORSHeaders(Response res, String cors) {
         res.addHeader("Access-Control-Allow-Origin", cors);
         res.addHeader("Access-Control-Allow-Headers", calculateAllowHeaders());
@@ -376,19 +1137,6 @@ public class SimpleWebServer extends NanoHTTPD {
         return res;
     }
 
-    private boolean canServeUri(String uri, File homeDir) {
-        boolean canServeUri;
-        File file = new File(homeDir, uri);
-        canServeUri = file.exists();
-        if (!canServeUri) {
-            WebServerPlugin plugin = SimpleWebServer.mimeTypeHandlers.get(getMimeTypeForFile(uri));
-            if (plugin != null) {
-                canServeUri = plugin.canServeUri(uri, homeDir);
-            }
-        }
-        return canServeUri;
-    }
-
     protected static void registerPluginForMimeType(String[] indexFiles, String mimeType, WebServerPlugin plugin,
                                                     Map<String, String> commandLineOptions) {
         if (mimeType == null || plugin == null) {
@@ -414,8 +1162,41 @@ public class SimpleWebServer extends NanoHTTPD {
         int port = 8080;
         String host = null;  // bind to all interfaces by default
         List<File> rootDirs = new ArrayList<>();
+        List<String[]> mounts = new ArrayList<>();     // {前缀, 目录}
+        List<String[]> routes = new ArrayList<>();     // {模式, MIME 类型或 static}
         boolean quiet = false;
         String cors = null;
+        long cacheSize = 0;
+        long cacheMaxFile = 64 * 1024;
+        boolean zeroCopy = true;
+        long compressionCacheSize = 0;
+        long compressionMinSize = CompressionCache.DEFAULT_MIN_SIZE;
+        long listingCacheEntries = 200000;
+        int workers = 0;
+        int queueSize = 256;
+        int recycledTempFiles = 0;
+        boolean virtualThreads = false;
+        int selectorThreads = 0;
+        long idleTimeout = DEFAULT_IDLE_TIMEOUT_MILLIS;
+        boolean h2c = false;
+        boolean allowWrite = false;
+        long maxUploadSize = 0;
+        int resolutionCacheEntries = 0;
+        int indexLimit = 0;
+        String accessLogFile = null;    // null: stdout, "off": no access log
+        AccessLog.Format accessLogFormat = AccessLog.Format.COMMON;
+        int accessLogBuffer = 8192;
+        boolean accessLogBlock = false;
+        long accessLogMaxSize = 64 * 1024 * 1024;
+        int accessLogFiles = 5;
+        int dumpHeadersEvery = 0;
+        String statsUri = null;
+        double rateLimit = 0;
+        double rateBurst = 0;
+        long byteRateLimit = 0;
+        long byteBurst = 0;
+        double globalRateLimit = 0;
+        int rateLimitClients = DEFAULT_RATE_LIMIT_CLIENTS;
         Map<String, String> options = new HashMap<>();
 
         // Parse command-line, with short and long versions of the options.
@@ -428,12 +1209,118 @@ public class SimpleWebServer extends NanoHTTPD {
                 quiet = true;
             } else if ("-d".equalsIgnoreCase(args[i]) || "--dir".equalsIgnoreCase(args[i])) {
                 rootDirs.add(new File(args[i + 1]).getAbsoluteFile());
+            } else if (args[i].startsWith("--mount=")) {
+                // --mount=/PREFIX=DIR，DIR 也可以是一个 zip 或 jar
+                mounts.add(args[i].substring("--mount=".length()).split("=", 2));
+            } else if (args[i].startsWith("--route=")) {
+                // --route=PATTERN=MIME 交给这个 MIME 类型的插件，--route=PATTERN=static 直接发送文件
+                routes.add(args[i].substring("--route=".length()).split("=", 2));
             } else if (args[i].startsWith("--cors")) {
                 cors = "*";
                 int equalIdx = args[i].indexOf('=');
                 if (equalIdx > 0) {
                     cors = args[i].substring(equalIdx + 1);
                 }
+            } else if (args[i].startsWith("--cache-max-file=")) {
+                cacheMaxFile = parseSize(args[i].substring("--cache-max-file=".length()));
+            } else if (args[i].startsWith("--cache")) {
+                cacheSize = 32 * 1024 * 1024;
+                int equalIdx = args[i].indexOf('=');
+                if (equalIdx > 0) {
+                    cacheSize = parseSize(args[i].substring(equalIdx + 1));
+                }
+            } else if (args[i].startsWith("--compress-min=")) {
+                compressionMinSize = parseSize(args[i].substring("--compress-min=".length()));
+            } else if (args[i].startsWith("--compress")) {
+                compressionCacheSize = 16 * 1024 * 1024;
+                int equalIdx = args[i].indexOf('=');
+                if (equalIdx > 0) {
+                    compressionCacheSize = parseSize(args[i].substring(equalIdx + 1));
+                }
+            } else if (args[i].startsWith("--listing-cache=")) {
+                listingCacheEntries = Long.parseLong(args[i].substring("--listing-cache=".length()));
+            } else if (args[i].startsWith("--resolve-cache")) {
+                resolutionCacheEntries = 100000;
+                int equalIdx = args[i].indexOf('=');
+                if (equalIdx > 0) {
+                    resolutionCacheEntries = Integer.parseInt(args[i].substring(equalIdx + 1));
+                }
+            } else if (args[i].startsWith("--index")) {
+                indexLimit = DEFAULT_INDEX_LIMIT;
+                int equalIdx = args[i].indexOf('=');
+                if (equalIdx > 0) {
+                    indexLimit = Integer.parseInt(args[i].substring(equalIdx + 1));
+                }
+            } else if (args[i].startsWith("--access-log=")) {
+                accessLogFile = args[i].substring("--access-log=".length());
+            } else if (args[i].startsWith("--access-log-format=")) {
+                accessLogFormat = AccessLog.Format.valueOf(
+                        args[i].substring("--access-log-format=".length()).toUpperCase());
+            } else if (args[i].startsWith("--access-log-buffer=")) {
+                accessLogBuffer = Integer.parseInt(args[i].substring("--access-log-buffer=".length()));
+            } else if ("--access-log-block".equalsIgnoreCase(args[i])) {
+                accessLogBlock = true;
+            } else if (args[i].startsWith("--access-log-max-size=")) {
+                accessLogMaxSize = parseSize(args[i].substring("--access-log-max-size=".length()));
+            } else if (args[i].startsWith("--access-log-files=")) {
+                accessLogFiles = Integer.parseInt(args[i].substring("--access-log-files=".length()));
+            } else if (args[i].startsWith("--stats")) {
+                statsUri = DEFAULT_STATS_URI;
+                int equalIdx = args[i].indexOf('=');
+                if (equalIdx > 0) {
+                    statsUri = args[i].substring(equalIdx + 1);
+                }
+            } else if (args[i].startsWith("--dump-headers")) {
+                dumpHeadersEvery = 1;
+                int equalIdx = args[i].indexOf('=');
+                if (equalIdx > 0) {
+                    dumpHeadersEvery = Integer.parseInt(args[i].substring(equalIdx + 1));
+                }
+            } else if (args[i].startsWith("--nio")) {
+                selectorThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+                int equalIdx = args[i].indexOf('=');
+                if (equalIdx > 0) {
+                    selectorThreads = Integer.parseInt(args[i].substring(equalIdx + 1));
+                }
+            } else if (args[i].startsWith("--idle-timeout=")) {
+                idleTimeout = Long.parseLong(args[i].substring("--idle-timeout=".length())) * 1000;
+            } else if (args[i].startsWith("--rate-limit=")) {
+                // 每个客户端每秒的请求数，可以带 /BURST
+                String[] limit = args[i].substring("--rate-limit=".length()).split("/", 2);
+                rateLimit = Double.parseDouble(limit[0]);
+                rateBurst = limit.length > 1 ? Double.parseDouble(limit[1]) : 2 * rateLimit;
+            } else if (args[i].startsWith("--byte-rate-limit=")) {
+                // 每个客户端每秒的响应字节数，可以带 /BURST
+                String[] limit = args[i].substring("--byte-rate-limit=".length()).split("/", 2);
+                byteRateLimit = parseSize(limit[0]);
+                byteBurst = limit.length > 1 ? parseSize(limit[1]) : 2 * byteRateLimit;
+            } else if (args[i].startsWith("--global-rate-limit=")) {
+                globalRateLimit = Double.parseDouble(args[i].substring("--global-rate-limit=".length()));
+            } else if (args[i].startsWith("--rate-limit-clients=")) {
+                rateLimitClients = Integer.parseInt(args[i].substring("--rate-limit-clients=".length()));
+            } else if (args[i].startsWith("--recycle-temp-files")) {
+                recycledTempFiles = RECYCLED_TEMP_FILES;
+                int equalIdx = args[i].indexOf('=');
+                if (equalIdx > 0) {
+                    recycledTempFiles = Integer.parseInt(args[i].substring(equalIdx + 1));
+                }
+            } else if (args[i].startsWith("--workers=")) {
+                workers = Integer.parseInt(args[i].substring("--workers=".length()));
+            } else if (args[i].startsWith("--queue=")) {
+                queueSize = Integer.parseInt(args[i].substring("--queue=".length()));
+            } else if ("--virtual-threads".equalsIgnoreCase(args[i])) {
+                virtualThreads = true;
+            } else if (args[i].startsWith("--allow-write")) {
+                // 可以带上传大小的上限
+                allowWrite = true;
+                int equalIdx = args[i].indexOf('=');
+                if (equalIdx > 0) {
+                    maxUploadSize = parseSize(args[i].substring(equalIdx + 1));
+                }
+            } else if ("--h2c".equalsIgnoreCase(args[i])) {
+                h2c = true;
+            } else if ("--no-zero-copy".equalsIgnoreCase(args[i])) {
+                zeroCopy = false;
             } else if ("--licence".equalsIgnoreCase(args[i])) {
                 System.out.println(SimpleWebServer.LICENCE + "\n");
             } else if (args[i].startsWith("-X:")) {
@@ -488,6 +1375,175 @@ public class SimpleWebServer extends NanoHTTPD {
                 registerPluginForMimeType(indexFiles, mime, info.getWebServerPlugin(mime), options);
             }
         }
-        ServerRunner.executeInstance(new SimpleWebServer(host, port, rootDirs, quiet, cors));
+        SimpleWebServer server = new SimpleWebServer(host, port, rootDirs, cors);
+        if (!mounts.isEmpty() || !routes.isEmpty()) {
+            RouteTable routeTable = defaultRoutes(rootDirs);
+            try {
+                for (String[] mount : mounts) {
+                    if (mount.length < 2 || !mount[0].startsWith("/")) {
+                        throw new IllegalArgumentException("--mount needs /PREFIX=DIR: " + mount[0]);
+                    }
+                    File dir = new File(mount[1]).getAbsoluteFile();
+                    if (dir.isFile()) {
+                        // zip、jar 等归档文件
+                        ZipArchive archive = ZipArchive.open(dir);
+                        routeTable.mount(mount[0], archive);
+                        if (!quiet) {
+                            System.out.println(archive);
+                        }
+                    } else {
+                        routeTable.mount(mount[0], dir);
+                    }
+                }
+                for (String[] route : routes) {
+                    if (route.length < 2) {
+                        throw new IllegalArgumentException("--route needs PATTERN=MIME or PATTERN=static: " + route[0]);
+                    }
+                    WebServerPlugin plugin = null;
+                    if (!"static".equals(route[1])) {
+                        plugin = mimeTypeHandlers.get(route[1]);
+                        if (plugin == null) {
+                            throw new IllegalArgumentException("no plugin for " + route[1]);
+                        }
+                    }
+                    routeTable.route(route[0], plugin);
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Couldn't build the routes: " + e.getMessage());
+                return;
+            }
+            server.setRoutes(routeTable);
+            if (!quiet) {
+                System.out.println(routeTable);
+            }
+        }
+        server.setZeroCopy(zeroCopy);
+        if (listingCacheEntries > 0) {
+            server.setListingCache(new DirectoryListingCache(listingCacheEntries));
+        }
+        if (compressionCacheSize > 0) {
+            server.setCompression(new CompressionCache(compressionCacheSize, compressionMinSize,
+                    CompressionCache.DEFAULT_MAX_SIZE));
+        }
+        if (virtualThreads) {
+            try {
+                // 只有用 java21 profile 构建时才有这个类
+                Class<?> runner = Class.forName("webserver.VirtualThreadAsyncRunner");
+                server.setAsyncRunner((AsyncRunner) runner.getDeclaredConstructor().newInstance());
+            } catch (ReflectiveOperationException | LinkageError e) {
+                System.err.println("--virtual-threads needs a build with -Pjava21 running on Java 21: " + e);
+                return;
+            }
+        } else if (selectorThreads > 0) {
+            if (!zeroCopy) {
+                // selector 需要基于 channel 的 socket，只关闭 FileChannelResponse
+                server.setServerSocketFactory(new ChannelServerSocketFactory());
+            }
+            try {
+                server.setAsyncRunner(new SelectorAsyncRunner(server, selectorThreads,
+                        workers > 0 ? workers : Math.max(8, 4 * Runtime.getRuntime().availableProcessors()),
+                        queueSize, idleTimeout));
+            } catch (IOException e) {
+                System.err.println("Couldn't open the selectors: " + e);
+                return;
+            }
+        } else if (workers > 0) {
+            server.setAsyncRunner(new WorkerPoolAsyncRunner(workers, queueSize));
+        }
+        if (!"off".equals(accessLogFile)) {
+            try {
+                server.setAccessLog(new AccessLog(accessLogFile != null ? new File(accessLogFile) : null,
+                        accessLogFormat, accessLogBuffer, accessLogBlock, accessLogMaxSize, accessLogFiles));
+            } catch (IOException e) {
+                System.err.println("Couldn't open the access log: " + e);
+                return;
+            }
+        }
+        server.setH2c(h2c);
+        server.setAllowWrite(allowWrite, maxUploadSize);
+        RecycledTempFiles tempFiles = null;
+        if (recycledTempFiles > 0) {
+            tempFiles = new RecycledTempFiles(new File(System.getProperty("java.io.tmpdir")), recycledTempFiles);
+            server.setTempFileManagerFactory(tempFiles);
+        }
+        server.setDumpHeadersEvery(dumpHeadersEvery);
+        if (rateLimit > 0 || byteRateLimit > 0 || globalRateLimit > 0) {
+            server.setRateLimiter(new RateLimiter(rateLimit, rateBurst, byteRateLimit, byteBurst, globalRateLimit,
+                    rateLimitClients));
+        }
+        if (statsUri != null) {
+            server.setMetrics(new Metrics(), statsUri);
+            server.getMetrics().setRateLimiter(server.getRateLimiter());
+        }
+        try {
+            server.setCachePolicy(CachePolicy.fromOptions(options));
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Couldn't load the Cache-Control rules: " + e);
+            return;
+        }
+        if (indexLimit > 0) {
+            // 索引放在 ResolutionCache 里，要能装下所有条目（每个目录有两个 uri）
+            resolutionCacheEntries = Math.max(resolutionCacheEntries, indexLimit * 2);
+        }
+        if (resolutionCacheEntries > 0) {
+            server.setResolutionCache(new ResolutionCache(server.getRoutes().getMounts(), resolutionCacheEntries,
+                    RESOLUTION_POLL_MILLIS, MAX_WATCHED_DIRECTORIES));
+        }
+        if (indexLimit > 0) {
+            RootIndex index = new RootIndex(server.getRoutes(), indexLimit);
+            index.preload(server.getResolutionCache());
+            if (!quiet) {
+                System.out.println(index);
+            }
+        }
+        if (cacheSize > 0) {
+            server.setFileCache(new HotFileCache(cacheSize, cacheMaxFile));
+        }
+        ServerRunner.executeInstance(server);
+        if (server.getFileCache() != null) {
+            System.out.println(server.getFileCache());
+        }
+        if (server.getCompression() != null) {
+            System.out.println(server.getCompression());
+        }
+        if (server.getResolutionCache() != null) {
+            System.out.println(server.getResolutionCache());
+        }
+        if (server.getAccessLog() != null) {
+            System.out.println(server.getAccessLog());
+        }
+        if (server.getMetrics() != null) {
+            System.out.println(server.getMetrics());
+        }
+        if (server.getRateLimiter() != null) {
+            System.out.println(server.getRateLimiter());
+        }
+        for (WebServerPlugin plugin : new LinkedHashSet<>(mimeTypeHandlers.values())) {
+            System.out.println(plugin);
+        }
+        if (tempFiles != null) {
+            System.out.println(tempFiles);
+            tempFiles.close();
+        }
+        if (server.getAsyncRunner() instanceof AbstractAsyncRunner) {
+            System.out.println(server.getAsyncRunner());
+        }
+    }
+
+    // 解析 "512", "64k", "32m", "1g" 这样的大小参数
+    public static long parseSize(String value) {
+        String v = value.trim().toLowerCase();
+        long unit = 1;
+        if (v.endsWith("k")) {
+            unit = 1024;
+        } else if (v.endsWith("m")) {
+            unit = 1024 * 1024;
+        } else if (v.endsWith("g")) {
+            unit = 1024 * 1024 * 1024;
+        }
+        if (unit > 1) {
+            v = v.substring(0, v.length() - 1);
+        }
+        return Long.parseLong(v) * unit;
     }
 }
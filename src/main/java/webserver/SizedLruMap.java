@@ -0,0 +1,88 @@
+package webserver;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An LRU map bounded by the total size of its values (bytes, listing entries,
+ * ...) rather than by their number. Not thread-safe: the caches built on it
+ * hold their own lock around every call.
+ */
+public abstract class SizedLruMap<V> {
+    private final long maxSize;
+    // accessOrder = true 按访问顺序排列，头部是最久未使用的
+    private final LinkedHashMap<String, V> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long currentSize;
+    private long evictions;
+
+    protected SizedLruMap(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    protected abstract long sizeOf(V value);
+
+    /**
+     * @return the value, now the most recently used, or null
+     */
+    public V get(String key) {
+        return this.entries.get(key);
+    }
+
+    /**
+     * Adds the value and evicts the least recently used others until the total fits.
+     *
+     * @return false if the value alone is larger than the bound and was not added
+     */
+    public boolean put(String key, V value) {
+        long size = sizeOf(value);
+        if (size > this.maxSize) {
+            return false;
+        }
+        V old = this.entries.put(key, value);
+        if (old != null) {
+            this.currentSize -= sizeOf(old);
+        }
+        this.currentSize += size;
+        Iterator<Map.Entry<String, V>> it = this.entries.entrySet().iterator();
+        while (this.currentSize > this.maxSize && it.hasNext()) {
+            Map.Entry<String, V> eldest = it.next();
+            if (eldest.getValue() == value) {
+                continue;
+            }
+            this.currentSize -= sizeOf(eldest.getValue());
+            it.remove();
+            this.evictions++;
+        }
+        return true;
+    }
+
+    public V remove(String key) {
+        V old = this.entries.remove(key);
+        if (old != null) {
+            this.currentSize -= sizeOf(old);
+        }
+        return old;
+    }
+
+    public void clear() {
+        this.entries.clear();
+        this.currentSize = 0;
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    public long getCurrentSize() {
+        return this.currentSize;
+    }
+
+    public long getMaxSize() {
+        return this.maxSize;
+    }
+
+    public long getEvictions() {
+        return this.evictions;
+    }
+}
@@ -0,0 +1,24 @@
+package webserver;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+/**
+ * Returned by a plugin to have the server send a file through its static
+ * path (ETag, Last-Modified, conditional and Range requests, file cache,
+ * compression) instead of building the response itself.
+ */
+public class StaticFile extends NanoHTTPD.Response {
+    private final File file;
+
+    public StaticFile(File file, String mimeType) {
+        super(Status.OK, mimeType, new ByteArrayInputStream(new byte[0]), 0);
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+}
@@ -0,0 +1,186 @@
+package webserver;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A response whose body a {@link BodyWriter} writes straight to the
+ * connection, so plugins need not build it in memory first. With a known
+ * length it is sent with Content-Length, otherwise chunked. The server
+ * compresses it on the fly when the client accepts it (the response is then
+ * chunked) and skips the writer for HEAD requests.
+ */
+public class StreamingResponse extends NanoHTTPD.Response {
+    private static final Logger LOG = Logger.getLogger(StreamingResponse.class.getName());
+    // 合并 BodyWriter 的小块写入，每个 chunk 至少这么大
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final BodyWriter writer;
+    private long length;
+    private String encoding;
+    // Response 的 header 是私有的，这里保留一份用于自己输出响应头
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    private boolean keepAlive = true;
+    private long bytesSent;
+
+    /**
+     * @param length the body length, -1 if unknown (chunked)
+     */
+    public StreamingResponse(IStatus status, String mimeType, long length, BodyWriter writer) {
+        super(status, mimeType, null, 0);
+        this.length = length;
+        this.writer = writer;
+    }
+
+    public static StreamingResponse chunked(IStatus status, String mimeType, BodyWriter writer) {
+        return new StreamingResponse(status, mimeType, -1, writer);
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Compresses the body with the content coding (CompressionCache.GZIP or DEFLATE) while sending.
+     */
+    public void encode(String contentCoding) {
+        this.encoding = contentCoding;
+        this.length = -1;
+        addHeader("Content-Encoding", contentCoding);
+    }
+
+    /**
+     * @return the body bytes written to the connection, after compression and without chunk framing
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        super.addHeader(name, value);
+        this.headers.put(name, value);
+    }
+
+    @Override
+    public void setKeepAlive(boolean useKeepAlive) {
+        super.setKeepAlive(useKeepAlive);
+        this.keepAlive = useKeepAlive;
+    }
+
+    @Override
+    protected void send(OutputStream outputStream) {
+        ResponseWriter.Buffer head = ResponseWriter.take();
+        try {
+            ResponseWriter.head(head, this, this.headers, this.keepAlive,
+                    this.length >= 0 ? this.length : ResponseWriter.CHUNKED);
+            head.writeTo(outputStream);
+            if (getRequestMethod() != NanoHTTPD.Method.HEAD) {
+                OutputStream framed = this.length >= 0 ? new FixedLengthStream(outputStream, this.length)
+                        : new ChunkedStream(outputStream);
+                OutputStream body = new BufferedOutputStream(framed, BUFFER_SIZE);
+                if (this.encoding != null) {
+                    body = CompressionCache.encoder(this.encoding, body);
+                }
+                this.writer.writeTo(body);
+                body.close();       // 写出压缩数据的结尾和最后一个 chunk，不会关闭连接
+            }
+            outputStream.flush();
+        } catch (IOException | RuntimeException e) {
+            // 响应头已经发出，无法再返回错误；关闭连接，客户端能看出响应不完整
+            LOG.log(Level.WARNING, "Could not stream response to the client", e);
+            try {
+                outputStream.close();
+            } catch (IOException ignored) {
+                // closing anyway
+            }
+        } finally {
+            ResponseWriter.release(head);
+        }
+    }
+
+    // 计数并把 close 变成 "body 结束"
+    private abstract class BodyStream extends FilterOutputStream {
+        private BodyStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > 0) {
+                writeBody(b, off, len);
+                bytesSent += len;
+            }
+        }
+
+        abstract void writeBody(byte[] b, int off, int len) throws IOException;
+
+        @Override
+        public abstract void close() throws IOException;
+    }
+
+    private final class ChunkedStream extends BodyStream {
+        private ChunkedStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        void writeBody(byte[] b, int off, int len) throws IOException {
+            out.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(b, off, len);
+            out.write(CRLF);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.write(LAST_CHUNK);
+            out.flush();
+        }
+    }
+
+    private final class FixedLengthStream extends BodyStream {
+        private final long expected;
+
+        private FixedLengthStream(OutputStream out, long expected) {
+            super(out);
+            this.expected = expected;
+        }
+
+        @Override
+        void writeBody(byte[] b, int off, int len) throws IOException {
+            if (bytesSent + len > this.expected) {
+                throw new IOException("body is longer than its Content-Length " + this.expected);
+            }
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (bytesSent != this.expected) {
+                throw new IOException("body has " + bytesSent + " bytes, Content-Length is " + this.expected);
+            }
+            out.flush();
+        }
+    }
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+}
@@ -0,0 +1,64 @@
+package webserver;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs connections on a fixed number of worker threads. Connections wait in a
+ * bounded queue; when the queue is full they are answered with 503.
+ */
+public class WorkerPoolAsyncRunner extends AbstractAsyncRunner {
+    private final ThreadPoolExecutor executor;
+
+    public WorkerPoolAsyncRunner(int workers, int queueSize) {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                t.setName("NanoHttpd Worker (#" + count.incrementAndGet() + ")");
+                return t;
+            }
+        };
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), threadFactory,
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @Override
+    protected boolean dispatch(NanoHTTPD.ClientHandler clientHandler) {
+        try {
+            this.executor.execute(clientHandler);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void closeAll() {
+        super.closeAll();
+        this.executor.shutdown();
+    }
+
+    public int getWorkers() {
+        return this.executor.getMaximumPoolSize();
+    }
+
+    @Override
+    public int getActiveWorkers() {
+        return this.executor.getActiveCount();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return this.executor.getQueue().size();
+    }
+}
@@ -0,0 +1,563 @@
+package webserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * A zip or jar archive served as a read-only site. The archive is opened once:
+ * its central directory is read into a compact index (the names packed into
+ * one byte array, the sizes, offsets and CRCs in parallel primitive arrays,
+ * an open-addressing hash table over them) and the file is memory-mapped.
+ * Entry data is never copied at startup; stored entries can be sent straight
+ * from the archive file and deflated entries passed through compressed.
+ * <p>
+ * Directories are indexed too, including the ones only implied by the entry
+ * names. Encrypted entries and entries with other compression methods are
+ * left out. Zip64 archives are supported, multi-disk archives are not.
+ */
+public class ZipArchive {
+    public static final int STORED = 0;
+    public static final int DEFLATED = 8;
+    private static final int DIRECTORY = -1;
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    // gzip 头：deflate、没有文件名和时间、未知系统
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    // MappedByteBuffer 最大 2G，大文件分成多个区域映射
+    private static final long MAP_REGION_SIZE = 1L << 30;
+
+    private final File file;
+    private final long archiveLength;
+    private final long archiveModified;
+    private final MappedByteBuffer[] regions;
+
+    // 第 i 个条目的名字从 names[nameOffsets[i]] 开始，不带开头的 '/'，目录以 '/' 结尾；
+    // 只从文件名推出来的目录和文件名共用同一段字节
+    private byte[] names;
+    private int[] nameOffsets;
+    private int[] nameLengths;
+    private int[] methods;
+    private int[] crcs;
+    private long[] compressedSizes;
+    private long[] sizes;
+    private long[] localOffsets;
+    private long[] lastModified;
+    private int count;
+    private int files;
+    private int namesLength;
+    private int[] table;    // 条目下标 + 1，0 表示空位
+
+    /**
+     * An entry found in the archive.
+     */
+    public static final class Entry {
+        private final ZipArchive archive;
+        private final int index;
+
+        private Entry(ZipArchive archive, int index) {
+            this.archive = archive;
+            this.index = index;
+        }
+
+        public String getName() {
+            return archive.name(index);
+        }
+
+        public boolean isDirectory() {
+            return archive.methods[index] == DIRECTORY;
+        }
+
+        /**
+         * @return {@link #STORED} or {@link #DEFLATED}
+         */
+        public int getMethod() {
+            return archive.methods[index];
+        }
+
+        public int getCrc() {
+            return archive.crcs[index];
+        }
+
+        public long getCompressedSize() {
+            return archive.compressedSizes[index];
+        }
+
+        public long getSize() {
+            return archive.sizes[index];
+        }
+
+        public long getLastModified() {
+            return archive.lastModified[index];
+        }
+
+        /**
+         * The CRC-32 and size of the contents: it changes when they change, whatever the archive's dates.
+         */
+        public String getEtag() {
+            return Integer.toHexString(getCrc()) + "-" + Long.toHexString(getSize());
+        }
+
+        /**
+         * @return where the entry's stored or compressed bytes start in the archive file
+         */
+        public long getDataOffset() throws IOException {
+            return archive.dataOffset(index);
+        }
+    }
+
+    private ZipArchive(File file, long archiveLength, long archiveModified, MappedByteBuffer[] regions) {
+        this.file = file;
+        this.archiveLength = archiveLength;
+        this.archiveModified = archiveModified;
+        this.regions = regions;
+    }
+
+    /**
+     * Maps the archive and indexes its central directory.
+     *
+     * @throws ZipException if it is no zip archive or one that can't be served
+     */
+    public static ZipArchive open(File file) throws IOException {
+        MappedByteBuffer[] regions;
+        long length;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            length = channel.size();
+            // 关闭 channel 后映射仍然有效
+            regions = new MappedByteBuffer[(int) Math.max(1, (length + MAP_REGION_SIZE - 1) / MAP_REGION_SIZE)];
+            for (int i = 0; i < regions.length; i++) {
+                long start = i * MAP_REGION_SIZE;
+                long size = Math.max(0, Math.min(length - start, MAP_REGION_SIZE));
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            }
+        }
+        ZipArchive archive = new ZipArchive(file.getAbsoluteFile(), length, file.lastModified(), regions);
+        archive.readCentralDirectory();
+        return archive;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @param path a decoded path below the archive, with or without a leading '/'; "/" is the root directory
+     * @return the file or directory, null if there is neither
+     */
+    public Entry entry(String path) {
+        int start = path.startsWith("/") ? 1 : 0;
+        if (start == path.length()) {
+            return new Entry(this, rootIndex());
+        }
+        byte[] name = path.substring(start).getBytes(StandardCharsets.UTF_8);
+        int index = find(name, name.length);
+        if (index < 0 && name[name.length - 1] != '/') {
+            // 没有结尾 '/' 的目录
+            name = Arrays.copyOf(name, name.length + 1);
+            name[name.length - 1] = '/';
+            index = find(name, name.length);
+        }
+        return index >= 0 ? new Entry(this, index) : null;
+    }
+
+    // 根目录是最后加入的条目，名字为空
+    private int rootIndex() {
+        return this.count;
+    }
+
+    /**
+     * @return the stored or compressed bytes of an entry, read from the mapped archive
+     */
+    public InputStream open(Entry entry, long offset, long length) throws IOException {
+        return new MappedInputStream(entry.getDataOffset() + offset, length);
+    }
+
+    /**
+     * @return the contents of an entry, inflated if it is compressed
+     */
+    public InputStream openContents(Entry entry) throws IOException {
+        InputStream in = open(entry, 0, entry.getCompressedSize());
+        if (entry.getMethod() == STORED) {
+            return in;
+        }
+        // 和 ZipFile 一样多给 Inflater 一个字节，nowrap 模式有时需要它才能结束
+        final Inflater inflater = new Inflater(true);
+        return new InflaterInputStream(new SequenceInputStream(in, new ByteArrayInputStream(new byte[1])), inflater) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                inflater.end();
+            }
+        };
+    }
+
+    /**
+     * The 10 bytes that turn a deflated entry into a gzip stream.
+     */
+    public static byte[] gzipHeader() {
+        return GZIP_HEADER.clone();
+    }
+
+    /**
+     * The 8 bytes that end a deflated entry sent as gzip: its CRC-32 and size from the central directory.
+     */
+    public static byte[] gzipTrailer(Entry entry) {
+        int crc = entry.getCrc();
+        int size = (int) entry.getSize();
+        return new byte[]{(byte) crc, (byte) (crc >>> 8), (byte) (crc >>> 16), (byte) (crc >>> 24),
+                (byte) size, (byte) (size >>> 8), (byte) (size >>> 16), (byte) (size >>> 24)};
+    }
+
+    public int getFileCount() {
+        return files;
+    }
+
+    private String name(int index) {
+        return new String(this.names, this.nameOffsets[index], this.nameLengths[index], StandardCharsets.UTF_8);
+    }
+
+    // 本地文件头里的文件名和扩展字段长度可能和中央目录里的不同，只能从本地文件头读
+    private long dataOffset(int index) throws IOException {
+        long offset = this.localOffsets[index];
+        if (offset + LOCAL_HEADER_SIZE > this.archiveLength || readInt(offset) != LOCAL_SIGNATURE) {
+            throw new ZipException("no local header for " + name(index) + " at " + offset);
+        }
+        return offset + LOCAL_HEADER_SIZE + readShort(offset + 26) + readShort(offset + 28);
+    }
+
+    private ByteBuffer region(long offset) {
+        return this.regions[(int) (offset / MAP_REGION_SIZE)];
+    }
+
+    private void readCentralDirectory() throws IOException {
+        // 注释最长 64K，从文件末尾往前找目录结束记录
+        long eocd = -1;
+        for (long p = this.archiveLength - EOCD_SIZE; p >= Math.max(0, this.archiveLength - EOCD_SIZE - 0xffff); p--) {
+            if (readInt(p) == EOCD_SIGNATURE) {
+                eocd = p;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new ZipException("no end of central directory in " + this.file);
+        }
+        long total = readShort(eocd + 10);
+        long cdSize = readInt(eocd + 12) & 0xffffffffL;
+        long cdOffset = readInt(eocd + 16) & 0xffffffffL;
+        if ((total == 0xffff || cdSize == 0xffffffffL || cdOffset == 0xffffffffL) && eocd >= 20
+                && readInt(eocd - 20) == ZIP64_LOCATOR_SIGNATURE) {
+            long zip64 = readLong(eocd - 20 + 8);
+            if (readInt(zip64) != ZIP64_EOCD_SIGNATURE) {
+                throw new ZipException("no zip64 end of central directory in " + this.file);
+            }
+            total = readLong(zip64 + 32);
+            cdSize = readLong(zip64 + 40);
+            cdOffset = readLong(zip64 + 48);
+        }
+        if (cdOffset + cdSize > this.archiveLength || total > Integer.MAX_VALUE / 2) {
+            throw new ZipException("bad central directory in " + this.file);
+        }
+
+        int capacity = (int) total + 16;
+        this.names = new byte[(int) Math.min(Integer.MAX_VALUE - 8, Math.max(64, cdSize))];
+        this.nameOffsets = new int[capacity];
+        this.nameLengths = new int[capacity];
+        this.methods = new int[capacity];
+        this.crcs = new int[capacity];
+        this.compressedSizes = new long[capacity];
+        this.sizes = new long[capacity];
+        this.localOffsets = new long[capacity];
+        this.lastModified = new long[capacity];
+        this.table = new int[tableSize(capacity)];
+
+        long p = cdOffset;
+        for (long i = 0; i < total; i++) {
+            if (p + 46 > cdOffset + cdSize || readInt(p) != CENTRAL_SIGNATURE) {
+                throw new ZipException("bad central directory entry at " + p + " in " + this.file);
+            }
+            int flags = readShort(p + 8);
+            int method = readShort(p + 10);
+            int dosTime = readInt(p + 12);
+            int crc = readInt(p + 16);
+            long compressedSize = readInt(p + 20) & 0xffffffffL;
+            long size = readInt(p + 24) & 0xffffffffL;
+            int nameLength = readShort(p + 28);
+            int extraLength = readShort(p + 30);
+            int commentLength = readShort(p + 32);
+            long localOffset = readInt(p + 42) & 0xffffffffL;
+            long name = p + 46;
+            long modified = dosTime(dosTime);
+
+            // zip64 扩展字段只包含值为 0xffffffff 的那几项，按固定顺序
+            long extra = name + nameLength;
+            long extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = readShort(extra);
+                int length = readShort(extra + 2);
+                long field = extra + 4;
+                if (id == 0x0001) {
+                    if (size == 0xffffffffL && field + 8 <= extra + 4 + length) {
+                        size = readLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == 0xffffffffL && field + 8 <= extra + 4 + length) {
+                        compressedSize = readLong(field);
+                        field += 8;
+                    }
+                    if (localOffset == 0xffffffffL && field + 8 <= extra + 4 + length) {
+                        localOffset = readLong(field);
+                    }
+                } else if (id == 0x5455 && length >= 5 && (readByte(field) & 1) != 0) {
+                    // 扩展时间戳：UTC 秒数，比本地时间的 DOS 时间准确
+                    modified = (readInt(field + 1) & 0xffffffffL) * 1000;
+                }
+                extra += 4 + length;
+            }
+            p = extraEnd + commentLength;
+
+            boolean directory = nameLength > 0 && readByte(name + nameLength - 1) == '/';
+            if ((flags & 1) != 0 || (!directory && method != STORED && method != DEFLATED)
+                    || localOffset + LOCAL_HEADER_SIZE > cdOffset) {
+                // 加密的、其他压缩方式的条目不提供
+                continue;
+            }
+            int start = this.namesLength;
+            int skip = nameLength > 0 && readByte(name) == '/' ? 1 : 0;
+            ensureNames(nameLength);
+            for (int j = skip; j < nameLength; j++) {
+                this.names[this.namesLength++] = readByte(name + j);
+            }
+            int end = this.namesLength;
+            if (end == start || find(this.names, start, end) >= 0) {
+                // 空名字和重复的名字：和 ZipFile 一样，以第一个为准
+                this.namesLength = start;
+                continue;
+            }
+            // 只出现在文件名里的上级目录也要能找到
+            for (int j = start; j < end - 1; j++) {
+                if (this.names[j] == '/' && find(this.names, start, j + 1) < 0) {
+                    add(start, j + 1 - start, DIRECTORY, 0, 0, 0, 0, this.archiveModified);
+                }
+            }
+            add(start, end - start, directory ? DIRECTORY : method, crc, compressedSize, size, localOffset,
+                    modified != 0 ? modified : this.archiveModified);
+            if (!directory) {
+                this.files++;
+            }
+        }
+        // 根目录放在最后，不进哈希表
+        ensureCapacity();
+        this.methods[this.count] = DIRECTORY;
+        this.lastModified[this.count] = this.archiveModified;
+        resize(this.count + 1);
+        this.names = Arrays.copyOf(this.names, this.namesLength);
+    }
+
+    private void add(int start, int length, int method, int crc, long compressedSize, long size, long localOffset,
+                     long modified) {
+        ensureCapacity();
+        int index = this.count++;
+        this.nameOffsets[index] = start;
+        this.nameLengths[index] = length;
+        this.methods[index] = method;
+        this.crcs[index] = crc;
+        this.compressedSizes[index] = compressedSize;
+        this.sizes[index] = size;
+        this.localOffsets[index] = localOffset;
+        this.lastModified[index] = modified;
+        if (2 * this.count > this.table.length) {
+            rehash();
+        }
+        int mask = this.table.length - 1;
+        int slot = hash(this.names, start, start + length) & mask;
+        while (this.table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        this.table[slot] = index + 1;
+    }
+
+    private int find(byte[] name, int length) {
+        return find(name, 0, length);
+    }
+
+    private int find(byte[] name, int start, int end) {
+        int mask = this.table.length - 1;
+        for (int slot = hash(name, start, end) & mask; this.table[slot] != 0; slot = (slot + 1) & mask) {
+            int index = this.table[slot] - 1;
+            int offset = this.nameOffsets[index];
+            if (this.nameLengths[index] == end - start && equals(name, start, offset, end - start)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private boolean equals(byte[] name, int start, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (name[start + i] != this.names[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] b, int start, int end) {
+        int h = 0x811c9dc5;
+        for (int i = start; i < end; i++) {
+            h = (h ^ b[i]) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableSize(int entries) {
+        return Integer.highestOneBit(Math.max(16, entries) * 2 - 1) * 2;
+    }
+
+    private void rehash() {
+        this.table = new int[this.table.length * 2];
+        int mask = this.table.length - 1;
+        for (int index = 0; index < this.count; index++) {
+            int offset = this.nameOffsets[index];
+            int slot = hash(this.names, offset, offset + this.nameLengths[index]) & mask;
+            while (this.table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            this.table[slot] = index + 1;
+        }
+    }
+
+    private void ensureCapacity() {
+        if (this.count < this.methods.length) {
+            return;
+        }
+        resize(this.methods.length + this.methods.length / 2);
+    }
+
+    // 上级目录超出预估时扩大，读完后缩小到条目数
+    private void resize(int capacity) {
+        this.nameOffsets = Arrays.copyOf(this.nameOffsets, capacity);
+        this.nameLengths = Arrays.copyOf(this.nameLengths, capacity);
+        this.methods = Arrays.copyOf(this.methods, capacity);
+        this.crcs = Arrays.copyOf(this.crcs, capacity);
+        this.compressedSizes = Arrays.copyOf(this.compressedSizes, capacity);
+        this.sizes = Arrays.copyOf(this.sizes, capacity);
+        this.localOffsets = Arrays.copyOf(this.localOffsets, capacity);
+        this.lastModified = Arrays.copyOf(this.lastModified, capacity);
+    }
+
+    private void ensureNames(int length) {
+        if (this.namesLength + (long) length > this.names.length) {
+            long capacity = Math.max(2L * this.names.length, this.namesLength + (long) length);
+            if (capacity > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("names of " + this.file + " are too long");
+            }
+            this.names = Arrays.copyOf(this.names, (int) capacity);
+        }
+    }
+
+    // DOS 日期时间是本地时间，精确到 2 秒
+    private static long dosTime(int dosTime) {
+        int date = dosTime >>> 16;
+        int time = dosTime & 0xffff;
+        try {
+            return LocalDateTime.of(1980 + (date >>> 9), (date >>> 5) & 0xf, date & 0x1f,
+                    time >>> 11, (time >>> 5) & 0x3f, 2 * (time & 0x1f))
+                    .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeException e) {
+            return 0;
+        }
+    }
+
+    private byte readByte(long offset) {
+        return region(offset).get((int) (offset % MAP_REGION_SIZE));
+    }
+
+    private int readShort(long offset) {
+        return (readByte(offset) & 0xff) | (readByte(offset + 1) & 0xff) << 8;
+    }
+
+    private int readInt(long offset) {
+        return readShort(offset) | readShort(offset + 2) << 16;
+    }
+
+    private long readLong(long offset) {
+        return (readInt(offset) & 0xffffffffL) | (long) readInt(offset + 4) << 32;
+    }
+
+    @Override
+    public String toString() {
+        return "ZipArchive{file=" + file + ", files=" + files + ", directories=" + (count + 1 - files)
+                + ", index=" + (names.length + 4L * table.length + 48L * methods.length) / 1024 + " KB}";
+    }
+
+    /**
+     * Reads a range of the archive from the mapped regions; each stream has its own views of them.
+     */
+    private final class MappedInputStream extends InputStream {
+        private long position;
+        private final long end;
+
+        private MappedInputStream(long position, long length) throws IOException {
+            if (position + length > archiveLength) {
+                throw new ZipException("entry data beyond the end of " + file);
+            }
+            this.position = position;
+            this.end = position + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (this.position >= this.end) {
+                return -1;
+            }
+            return readByte(this.position++) & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (this.position >= this.end) {
+                return -1;
+            }
+            // 一次不跨过区域的末尾
+            long regionEnd = (this.position / MAP_REGION_SIZE + 1) * MAP_REGION_SIZE;
+            int n = (int) Math.min(len, Math.min(this.end, regionEnd) - this.position);
+            ByteBuffer view = region(this.position).duplicate();
+            view.position((int) (this.position % MAP_REGION_SIZE));
+            view.get(b, off, n);
+            this.position += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, this.end - this.position));
+            this.position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, this.end - this.position);
+        }
+    }
+}
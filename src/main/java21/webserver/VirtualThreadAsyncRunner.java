@@ -0,0 +1,39 @@
+package webserver;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs every connection on its own virtual thread. Only compiled by the
+ * java21 profile; SimpleWebServer loads it by name.
+ */
+public class VirtualThreadAsyncRunner extends AbstractAsyncRunner {
+    private final ThreadFactory threadFactory = Thread.ofVirtual().name("NanoHttpd Virtual #", 1).factory();
+    private final AtomicInteger active = new AtomicInteger();
+
+    @Override
+    protected boolean dispatch(NanoHTTPD.ClientHandler clientHandler) {
+        Thread t = this.threadFactory.newThread(() -> {
+            this.active.incrementAndGet();
+            try {
+                clientHandler.run();
+            } finally {
+                this.active.decrementAndGet();
+            }
+        });
+        t.start();
+        return true;
+    }
+
+    @Override
+    public int getActiveWorkers() {
+        return this.active.get();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return 0;
+    }
+}